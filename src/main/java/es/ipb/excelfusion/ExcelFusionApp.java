@@ -5,6 +5,8 @@ import org.eclipse.swt.widgets.Display;
 import org.eclipse.swt.widgets.Shell;
 
 import es.ipb.excelfusion.config.ImportConfiguration;
+import es.ipb.excelfusion.db.ConnectionPool;
+import es.ipb.excelfusion.service.RowSpool;
 import es.ipb.excelfusion.ui.wizard.Step1FileSelectionPage;
 import es.ipb.excelfusion.ui.wizard.Step2PreviewPage;
 import es.ipb.excelfusion.ui.wizard.Step3StructureValidationPage;
@@ -16,6 +18,9 @@ import es.ipb.excelfusion.ui.wizard.Step6ImportExecutionPage;
 public class ExcelFusionApp
 {
 
+	/** Database connections of the session: the import's plus one per parallel index build. */
+	private static final int CONNECTION_POOL_SIZE = 5;
+
 	public static void main (String[] args)
 	{
 
@@ -28,16 +33,18 @@ public class ExcelFusionApp
 		shell.setSize (900, 700);
 
 		ImportConfiguration config = new ImportConfiguration ();
+		RowSpool spool = new RowSpool ();
+		ConnectionPool pool = new ConnectionPool (CONNECTION_POOL_SIZE);
 
 		// Initialize WizardController here
 		es.ipb.excelfusion.ui.wizard.WizardController wizard = new es.ipb.excelfusion.ui.wizard.WizardController (
 		        shell);
 		Step1FileSelectionPage step1 = new Step1FileSelectionPage (config, wizard);
 		Step2PreviewPage step2 = new Step2PreviewPage (config);
-		Step3StructureValidationPage step3 = new Step3StructureValidationPage (config);
-		Step4TypeInferencePage step4 = new Step4TypeInferencePage (config);
-		Step5DatabaseConfigPage step5 = new Step5DatabaseConfigPage (config);
-		Step6ImportExecutionPage step6 = new Step6ImportExecutionPage (config);
+		Step3StructureValidationPage step3 = new Step3StructureValidationPage (config, spool);
+		Step4TypeInferencePage step4 = new Step4TypeInferencePage (config, spool);
+		Step5DatabaseConfigPage step5 = new Step5DatabaseConfigPage (config, pool);
+		Step6ImportExecutionPage step6 = new Step6ImportExecutionPage (config, spool, pool);
 
 		wizard.addPage (step1);
 		wizard.addPage (step2);
@@ -59,6 +66,8 @@ public class ExcelFusionApp
 		}
 
 		// Cleanup
+		spool.close ();
+		pool.close ();
 		display.dispose ();
 	}
 }
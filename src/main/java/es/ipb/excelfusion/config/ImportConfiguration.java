@@ -3,9 +3,12 @@ package es.ipb.excelfusion.config;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
+import es.ipb.excelfusion.db.DriverProfile;
+
 import es.ipb.excelfusion.ui.wizard.Step3StructureValidationPage.SheetValidationResult;
 import es.ipb.excelfusion.ui.wizard.Step4TypeInferencePage.ColumnDefinition;
 import es.ipb.excelfusion.ui.wizard.Step4TypeInferencePage.ColumnType;
@@ -19,6 +22,30 @@ import es.ipb.excelfusion.ui.wizard.Step5DatabaseConfigPage.DbType;
 public class ImportConfiguration
 {
 
+	/**
+	 * How formula cells are read.
+	 */
+	public enum FormulaMode
+	{
+		/** Use the results cached in the file by the application that saved it (no evaluation). */
+		CACHED_RESULT,
+		/** Recompute every formula, for files saved without cached results. */
+		EVALUATE
+	}
+
+	/**
+	 * How rows are sent to the target table.
+	 */
+	public enum InsertMode
+	{
+		/** Binary COPY on a PostgreSQL connection, MULTI_ROW on any other. */
+		COPY,
+		/** One INSERT per row, sent in JDBC batches. */
+		BATCHED,
+		/** INSERT ... VALUES (...), (...), ... with many rows per statement. */
+		MULTI_ROW
+	}
+
 	// === Step 1 ===
 	private File						 dataDirectory;
 	private List <File>					 selectedFiles	= new ArrayList <> ();
@@ -29,6 +56,8 @@ public class ImportConfiguration
 	private boolean						 autoIncrement;
 	private List <Boolean>				 fillEmptyColumns;
 	private List <String>				 sheetNames		= new ArrayList <> ();
+	private FormulaMode					 formulaMode	= FormulaMode.CACHED_RESULT;
+	private int							 maxConsecutiveEmptyRows;			  // 0 = read up to the last populated row
 
 	// === Step 3 ===
 	private List <SheetValidationResult> sheetsToImport	= new ArrayList <> ();
@@ -36,6 +65,7 @@ public class ImportConfiguration
 	// === Step 4 ===
 	private List <ColumnDefinition>		 columns		= new ArrayList <> ();
 	private Map <Integer, ColumnType>	 columnTypesByIndex;
+	private List <String>				 indexedColumns	= new ArrayList <> ();  // names of columns to index after the load
 
 	// === Step 5 ===
 	private DbType						 dbType;
@@ -46,6 +76,11 @@ public class ImportConfiguration
 	private String						 dbPassword;
 	private boolean						 createDbIfMissing;
 	private String						 tableName;
+	private boolean						 fastLoad;
+	private boolean						 skipBinaryLog;
+	private InsertMode					 insertMode		= InsertMode.COPY;
+	private DriverProfile				 driverProfile	= DriverProfile.BULK_LOAD;
+	private Map <String, String>		 driverProperties = new LinkedHashMap <> ();  // overrides of the profile
 
 	// === Getters / Setters ===
 
@@ -109,6 +144,29 @@ public class ImportConfiguration
 		this.sheetNames = sheetNames;
 	}
 
+	public FormulaMode getFormulaMode ()
+	{
+		return formulaMode;
+	}
+
+	public void setFormulaMode (FormulaMode formulaMode)
+	{
+		this.formulaMode = (formulaMode != null)? formulaMode : FormulaMode.CACHED_RESULT;
+	}
+
+	/**
+	 * Number of consecutive empty rows after which the rest of a sheet is ignored (0 = never).
+	 */
+	public int getMaxConsecutiveEmptyRows ()
+	{
+		return maxConsecutiveEmptyRows;
+	}
+
+	public void setMaxConsecutiveEmptyRows (int maxConsecutiveEmptyRows)
+	{
+		this.maxConsecutiveEmptyRows = Math.max (0, maxConsecutiveEmptyRows);
+	}
+
 	public List <SheetValidationResult> getSheetsToImport ()
 	{
 		return sheetsToImport;
@@ -219,6 +277,80 @@ public class ImportConfiguration
 		return tableName;
 	}
 
+	/**
+	 * Names of the columns (as in getColumns) that get an index once the rows are loaded.
+	 */
+	public List <String> getIndexedColumns ()
+	{
+		return indexedColumns;
+	}
+
+	public void setIndexedColumns (List <String> indexedColumns)
+	{
+		this.indexedColumns = (indexedColumns != null)? indexedColumns : new ArrayList <> ();
+	}
+
+	/**
+	 * Opt-in fast load: the target table is loaded with minimal logging and finished before the
+	 * commit (see the fast-load steps of each database).
+	 */
+	public boolean isFastLoad ()
+	{
+		return fastLoad;
+	}
+
+	public void setFastLoad (boolean fastLoad)
+	{
+		this.fastLoad = fastLoad;
+	}
+
+	/**
+	 * With fast load on MariaDB: keep the import out of the binary log (replicas do not get the
+	 * rows). Needs the privilege to set sql_log_bin.
+	 */
+	public boolean isSkipBinaryLog ()
+	{
+		return skipBinaryLog;
+	}
+
+	public void setSkipBinaryLog (boolean skipBinaryLog)
+	{
+		this.skipBinaryLog = skipBinaryLog;
+	}
+
+	public InsertMode getInsertMode ()
+	{
+		return insertMode;
+	}
+
+	public void setInsertMode (InsertMode insertMode)
+	{
+		this.insertMode = (insertMode != null)? insertMode : InsertMode.COPY;
+	}
+
+	public DriverProfile getDriverProfile ()
+	{
+		return driverProfile;
+	}
+
+	public void setDriverProfile (DriverProfile driverProfile)
+	{
+		this.driverProfile = (driverProfile != null)? driverProfile : DriverProfile.BULK_LOAD;
+	}
+
+	/**
+	 * JDBC driver properties that override those of the driver profile ("" = driver default).
+	 */
+	public Map <String, String> getDriverProperties ()
+	{
+		return driverProperties;
+	}
+
+	public void setDriverProperties (Map <String, String> driverProperties)
+	{
+		this.driverProperties = (driverProperties != null)? driverProperties : new LinkedHashMap <> ();
+	}
+
 	public void setFillEmptyColumns (List <Boolean> fillColumnList)
 	{
 		this.fillEmptyColumns = fillColumnList;
@@ -0,0 +1,383 @@
+package es.ipb.excelfusion.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+
+/**
+ * A small pool of connections to the database configured in the wizard, owned by the wizard
+ * session: the connection that step 5 tested is the one the import starts with, and parallel work
+ * (index builds) draws extra connections without a new handshake each.
+ *
+ * configure () sets the database; changing it drops the idle connections of the previous one.
+ * getConnection () hands out an idle connection (validated first if it sat idle for more than
+ * VALIDATE_AFTER_MS) or opens a new one, up to maxSize, and waits for one to come back beyond
+ * that. Validations and handshakes run outside the pool's lock, so they never hold up other
+ * borrowers or returning connections. Closing a handed-out connection returns it to the pool,
+ * rolled back and in auto-commit mode; session settings are left to the code that changed them.
+ * warmUp () opens connections in the background ahead of their use.
+ */
+public final class ConnectionPool implements ConnectionProvider, AutoCloseable
+{
+
+	/** Idle time after which a connection is validated before it is handed out. */
+	static final long					VALIDATE_AFTER_MS	 = 5_000;
+
+	private static final int			VALIDATE_TIMEOUT_S	 = 5;
+
+	/** Longest wait for a connection when all of them are in use. */
+	private static final long			BORROW_TIMEOUT_MS	 = 60_000;
+
+	private final int					maxSize;
+	private final Deque <Idle>			idle				 = new ArrayDeque <> ();
+
+	private Settings					settings;
+	private int							open;				 // handed out + idle + being opened
+	private boolean						closed;
+
+	/**
+	 * @param maxSize connections open at the same time, at most
+	 */
+	public ConnectionPool (int maxSize)
+	{
+		this.maxSize = Math.max (1, maxSize);
+	}
+
+	/**
+	 * Sets the database to connect to. Idle connections are kept if nothing changed, closed
+	 * otherwise; connections in use are closed when they come back.
+	 */
+	public synchronized void configure (String jdbcUrl, String user, String password,
+	                                    Map <String, String> driverProperties)
+	{
+		Settings next = new Settings (jdbcUrl, user, password, driverProperties);
+		if (next.equals (settings))
+		{
+			return;
+		}
+		settings = next;
+		closeIdle ();
+	}
+
+	@Override
+	public Connection getConnection () throws SQLException
+	{
+		long deadline = System.currentTimeMillis () + BORROW_TIMEOUT_MS;
+		while (true)
+		{
+			Idle candidate;
+			Settings target;
+			synchronized (this)
+			{
+				if (closed)
+				{
+					throw new SQLException ("Connection pool closed");
+				}
+				if (settings == null)
+				{
+					throw new SQLException ("Connection pool not configured");
+				}
+				candidate = idle.pollFirst ();
+				target = settings;
+				if (candidate != null)
+				{
+					if (System.currentTimeMillis () - candidate.since < VALIDATE_AFTER_MS)
+					{
+						return wrap (candidate.conn, candidate.settings);
+					}
+				}
+				else if (open < maxSize)
+				{
+					open++;
+				}
+				else
+				{
+					long wait = deadline - System.currentTimeMillis ();
+					if (wait <= 0)
+					{
+						throw new SQLException ("No database connection free after " + BORROW_TIMEOUT_MS + " ms");
+					}
+					waitFor (wait);
+					continue;
+				}
+			}
+
+			if (candidate == null)
+			{
+				return openNew (target);
+			}
+			// Validation is a round trip to the server: outside the lock, like the handshake
+			if (isValid (candidate.conn) && isCurrent (candidate.settings))
+			{
+				return wrap (candidate.conn, candidate.settings);
+			}
+			discard (candidate.conn);
+		}
+	}
+
+	/**
+	 * Opens connections in the background until count are idle or in use (errors are left for
+	 * getConnection to report).
+	 */
+	public void warmUp (int count)
+	{
+		Thread warmUp = new Thread ( () -> {
+			while (true)
+			{
+				Settings target;
+				synchronized (this)
+				{
+					if (closed || settings == null || open >= Math.min (count, maxSize))
+					{
+						return;
+					}
+					open++;
+					target = settings;
+				}
+				try
+				{
+					Connection conn = target.open ();
+					giveBack (conn, target);
+				}
+				catch (SQLException | RuntimeException e)
+				{
+					synchronized (this)
+					{
+						open--;
+						notifyAll ();
+					}
+					return;
+				}
+			}
+		}, "ConnectionPool-warmup");
+		warmUp.setDaemon (true);
+		warmUp.start ();
+	}
+
+	/**
+	 * Closes the idle connections; the ones in use are closed when they come back.
+	 */
+	@Override
+	public synchronized void close ()
+	{
+		closed = true;
+		closeIdle ();
+		notifyAll ();
+	}
+
+	/** Opens a connection for a slot already counted in open; the handshake runs outside the lock. */
+	private Connection openNew (Settings target) throws SQLException
+	{
+		try
+		{
+			return wrap (target.open (), target);
+		}
+		catch (SQLException | RuntimeException e)
+		{
+			synchronized (this)
+			{
+				open--;
+				notifyAll ();
+			}
+			throw e;
+		}
+	}
+
+	/** True if a connection that sat idle still answers (called without holding the lock). */
+	private static boolean isValid (Connection conn)
+	{
+		try
+		{
+			return conn.isValid (VALIDATE_TIMEOUT_S);
+		}
+		catch (SQLException e)
+		{
+			// Treated as invalid
+			return false;
+		}
+	}
+
+	/** True if connections opened with from can still be handed out. */
+	private synchronized boolean isCurrent (Settings from)
+	{
+		return !closed && from.equals (settings);
+	}
+
+	/** Called when a handed-out connection is closed. */
+	private void giveBack (Connection conn, Settings from)
+	{
+		boolean reusable;
+		try
+		{
+			if (!conn.isClosed () && !conn.getAutoCommit ())
+			{
+				conn.rollback ();
+				conn.setAutoCommit (true);
+			}
+			reusable = !conn.isClosed ();
+		}
+		catch (SQLException e)
+		{
+			reusable = false;
+		}
+
+		synchronized (this)
+		{
+			if (reusable && !closed && from.equals (settings))
+			{
+				idle.addFirst (new Idle (conn, from));
+				notifyAll ();
+				return;
+			}
+		}
+		discard (conn);
+	}
+
+	private synchronized void discard (Connection conn)
+	{
+		open--;
+		notifyAll ();
+		try
+		{
+			conn.close ();
+		}
+		catch (SQLException e)
+		{
+			// Nothing to do for a connection being thrown away
+		}
+	}
+
+	private void closeIdle ()
+	{
+		Idle entry;
+		while ((entry = idle.pollFirst ()) != null)
+		{
+			discard (entry.conn);
+		}
+	}
+
+	private void waitFor (long millis) throws SQLException
+	{
+		try
+		{
+			wait (millis);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread ().interrupt ();
+			throw new SQLException ("Interrupted while waiting for a database connection", e);
+		}
+	}
+
+	/**
+	 * The connection as handed out: every call goes to conn (unwrap included, so driver-specific
+	 * APIs work), except close, which gives it back to the pool once.
+	 */
+	private Connection wrap (Connection conn, Settings from)
+	{
+		InvocationHandler handler = new InvocationHandler ()
+		{
+			private boolean returned;
+
+			@Override
+			public Object invoke (Object proxy, Method method, Object[] args) throws Throwable
+			{
+				switch (method.getName ())
+				{
+					case "close":
+						if (!returned)
+						{
+							returned = true;
+							giveBack (conn, from);
+						}
+						return null;
+					case "isClosed":
+						return returned || conn.isClosed ();
+					case "equals":
+						return proxy == args[0];
+					case "hashCode":
+						return System.identityHashCode (proxy);
+					default:
+						if (returned)
+						{
+							throw new SQLException ("Connection already returned to the pool");
+						}
+						try
+						{
+							return method.invoke (conn, args);
+						}
+						catch (InvocationTargetException e)
+						{
+							throw e.getCause ();
+						}
+				}
+			}
+		};
+		return (Connection) Proxy.newProxyInstance (Connection.class.getClassLoader (),
+		                                            new Class <?>[] {Connection.class }, handler);
+	}
+
+	/** An idle connection and since when it is idle. */
+	private static final class Idle
+	{
+		final Connection conn;
+		final Settings	 settings;
+		final long		 since = System.currentTimeMillis ();
+
+		Idle (Connection conn, Settings settings)
+		{
+			this.conn = conn;
+			this.settings = settings;
+		}
+	}
+
+	/** Where and how connections are opened. */
+	private static final class Settings
+	{
+		final String			   jdbcUrl;
+		final String			   user;
+		final String			   password;
+		final Map <String, String> driverProperties;
+
+		Settings (String jdbcUrl, String user, String password, Map <String, String> driverProperties)
+		{
+			this.jdbcUrl = jdbcUrl;
+			this.user = user;
+			this.password = password;
+			this.driverProperties = (driverProperties != null)? new LinkedHashMap <> (driverProperties)
+			                                                  : new LinkedHashMap <> ();
+		}
+
+		Connection open () throws SQLException
+		{
+			return DatabaseConnections.open (jdbcUrl, user, password, driverProperties);
+		}
+
+		@Override
+		public boolean equals (Object o)
+		{
+			if (!(o instanceof Settings))
+			{
+				return false;
+			}
+			Settings other = (Settings) o;
+			return jdbcUrl.equals (other.jdbcUrl) && Objects.equals (user, other.user) &&
+			       Objects.equals (password, other.password) && driverProperties.equals (other.driverProperties);
+		}
+
+		@Override
+		public int hashCode ()
+		{
+			return jdbcUrl.hashCode ();
+		}
+	}
+}
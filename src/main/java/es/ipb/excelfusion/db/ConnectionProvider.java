@@ -0,0 +1,20 @@
+package es.ipb.excelfusion.db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+
+/**
+ * Supplies JDBC connections to the import engine.
+ * The default implementation opens a new connection through DriverManager;
+ * benchmarks and tools can plug in embedded databases or pooled connections.
+ */
+@FunctionalInterface
+public interface ConnectionProvider
+{
+
+	/**
+	 * Returns a connection ready to be used. The caller is responsible for closing it.
+	 */
+	Connection getConnection () throws SQLException;
+}
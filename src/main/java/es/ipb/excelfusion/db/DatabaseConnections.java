@@ -0,0 +1,71 @@
+package es.ipb.excelfusion.db;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.Properties;
+
+import org.postgresql.PGConnection;
+
+import es.ipb.excelfusion.ui.wizard.Step5DatabaseConfigPage.DbType;
+
+
+/**
+ * JDBC URLs and connections for the supported databases, shared by the wizard and the import.
+ */
+public final class DatabaseConnections
+{
+
+	private DatabaseConnections ()
+	{
+	}
+
+	public static String buildJdbcUrl (DbType dbType, String host, int port, String dbName)
+	{
+		return buildJdbcUrl (dbType, host, String.valueOf (port), dbName);
+	}
+
+	public static String buildJdbcUrl (DbType dbType, String host, String port, String dbName)
+	{
+		if (dbType == DbType.MARIADB)
+		{
+			return "jdbc:mariadb://" + host + ":" + port + "/" + dbName;
+		}
+		else
+		{
+			return "jdbc:postgresql://" + host + ":" + port + "/" + dbName;
+		}
+	}
+
+	/**
+	 * Opens a connection with the given driver properties (see DriverProfile.resolve).
+	 */
+	public static Connection open (String jdbcUrl, String user, String password, Map <String, String> driverProperties)
+	        throws SQLException
+	{
+		Properties props = new Properties ();
+		if (driverProperties != null)
+		{
+			props.putAll (driverProperties);
+		}
+		if (user != null)
+		{
+			props.setProperty ("user", user);
+		}
+		if (password != null)
+		{
+			props.setProperty ("password", password);
+		}
+		return DriverManager.getConnection (jdbcUrl, props);
+	}
+
+	/**
+	 * True if conn is a PostgreSQL driver connection (not, e.g., H2 in PostgreSQL mode), which has
+	 * the server's COPY and parallel index builds.
+	 */
+	public static boolean isPostgreSql (Connection conn) throws SQLException
+	{
+		return conn.isWrapperFor (PGConnection.class);
+	}
+}
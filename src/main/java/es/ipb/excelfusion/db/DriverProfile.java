@@ -0,0 +1,73 @@
+package es.ipb.excelfusion.db;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import es.ipb.excelfusion.ui.wizard.Step5DatabaseConfigPage.DbType;
+
+
+/**
+ * Named sets of JDBC driver properties for the import connection, per database type.
+ * Properties set in ImportConfiguration.getDriverProperties () override those of the profile.
+ */
+public enum DriverProfile
+{
+	/** The driver's own defaults. */
+	DEFAULT,
+
+	/**
+	 * Settings for loading many rows. MariaDB (Connector/J 3.x option names): send batches, INSERT
+	 * batches included, as one bulk command, and compress the protocol (cell text compresses well).
+	 * PostgreSQL: rewrite batched INSERTs, prepare statements on the server from their first use,
+	 * and transfer values in binary.
+	 */
+	BULK_LOAD;
+
+	/**
+	 * Driver properties of this profile for dbType, in a new mutable map.
+	 */
+	public Map <String, String> properties (DbType dbType)
+	{
+		Map <String, String> props = new LinkedHashMap <> ();
+		if (this == BULK_LOAD)
+		{
+			if (dbType == DbType.MARIADB)
+			{
+				props.put ("useBulkStmts", "true");
+				props.put ("useBulkStmtsForInserts", "true");
+				props.put ("useCompression", "true");
+			}
+			else
+			{
+				props.put ("reWriteBatchedInserts", "true");
+				props.put ("prepareThreshold", "1");
+				props.put ("binaryTransfer", "true");
+			}
+		}
+		return props;
+	}
+
+	/**
+	 * Properties of profile (null = DEFAULT) for dbType with overrides applied; an override with an
+	 * empty value removes the property, leaving the driver default.
+	 */
+	public static Map <String, String> resolve (DriverProfile profile, DbType dbType, Map <String, String> overrides)
+	{
+		Map <String, String> props = ((profile != null)? profile : DEFAULT).properties (dbType);
+		if (overrides != null)
+		{
+			for (Map.Entry <String, String> entry : overrides.entrySet ())
+			{
+				if (entry.getValue () == null || entry.getValue ().isEmpty ())
+				{
+					props.remove (entry.getKey ());
+				}
+				else
+				{
+					props.put (entry.getKey (), entry.getValue ());
+				}
+			}
+		}
+		return props;
+	}
+}
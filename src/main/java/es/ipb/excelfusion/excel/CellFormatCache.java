@@ -0,0 +1,875 @@
+package es.ipb.excelfusion.excel;
+
+import java.text.DateFormatSymbols;
+import java.text.DecimalFormatSymbols;
+import java.text.SimpleDateFormat;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+import org.apache.poi.ss.usermodel.BuiltinFormats;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.CellType;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.ss.usermodel.Date1904Support;
+import org.apache.poi.ss.usermodel.DateUtil;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.ss.util.NumberToTextConverter;
+import org.apache.poi.util.LocaleUtil;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+
+/**
+ * Formats cell values the way DataFormatter does, but compiles each distinct cell style /
+ * number format of a workbook only once.
+ *
+ * The most common formats get a dedicated renderer: General, integer ("0", "#,##0"),
+ * fixed decimals ("0.00", "#,##0.00") and purely numeric date/time patterns ("dd/mm/yyyy",
+ * "m/d/yy h:mm", ...). Numbers are rounded directly on the digits of their shortest round-trip
+ * text (Double.toString) and serial dates are converted arithmetically, so neither BigDecimal,
+ * DecimalFormat nor Calendar is involved. Anything else, and any value a fast renderer cannot
+ * reproduce exactly, is handed to the wrapped DataFormatter.
+ *
+ * Formula cells are shown with the result cached in the file (see FormulaEvaluation for files
+ * saved without one).
+ *
+ * Style indexes are workbook-specific: use one instance per open workbook. Instances are not
+ * thread-safe.
+ */
+public class CellFormatCache
+{
+
+	private static final String			   GENERAL			  = "General";
+
+	private static final long			   NEGATIVE_ZERO_BITS = Double.doubleToRawLongBits (-0.0d);
+
+	/** General renders integers up to this bound verbatim; larger values follow the 11-digit rules. */
+	private static final double			   MAX_GENERAL_INTEGER = 1E10;
+
+	/** Non-integers at or below this magnitude are printed in scientific notation by General. */
+	private static final double			   MIN_GENERAL_DECIMAL = 1E-10;
+
+	/** General prints non-integers with up to this many significant (and fraction) digits. */
+	private static final int			   GENERAL_SIGNIFICANT_DIGITS = 10;
+
+	/** Excel keeps 15 significant digits; shorter round-trip texts are already Excel's text. */
+	private static final int			   EXCEL_SIGNIFICANT_DIGITS = 15;
+
+	/** Range where NumberToTextConverter never switches to E notation. */
+	private static final double			   MIN_PLAIN_EXCEL_TEXT = 1E-3;
+	private static final double			   MAX_PLAIN_EXCEL_TEXT = 1E15;
+
+	/** Integers below this bound are exactly representable and print the same in every path. */
+	private static final double			   MAX_EXACT_INTEGER  = 1E15;
+
+	private static final int			   DAY_MILLISECONDS	  = 86_400_000;
+
+	private static final long			   EPOCH_DAY_1900	  = LocalDate.of (1900, 1, 1).toEpochDay ();
+
+	private static final long			   EPOCH_DAY_1904	  = LocalDate.of (1904, 1, 1).toEpochDay ();
+
+	/** 2000-01-27T19:33:20Z, formatted with pattern "y" to check calendar and digits. */
+	private static final long			   PROBE_DATE_MILLIS  = 949_000_000_000L;
+
+	/** First serial of year 10000 in the 1900 system; beyond it dates go through DateUtil. */
+	private static final double			   MAX_DATE_SERIAL	  = 2958466;
+
+	private final DataFormatter			   formatter;
+	private final Locale				   locale;
+	private final boolean				   date1904;
+	private final DateFormatSymbols		   dateSymbols;
+	private final char					   decimalSeparator;
+	private final char					   groupingSeparator;
+	private final boolean				   asciiNumbers;
+	/** Date fields can be computed arithmetically (Gregorian calendar, ASCII digits). */
+	private final boolean				   arithmeticDates;
+	/** Rules of the user time zone, or null when it has a fixed offset. */
+	private final ZoneRules				   zoneRules;
+
+	/** Digit scratch for number rendering, see loadDigits. */
+	private final char[]				   digitBuffer		  = new char[32];
+	private int							   digitCount;
+	private int							   pointPosition;
+	private boolean						   negative;
+
+	/** Scratch workbook for formatNumber fallbacks, created on first use. */
+	private XSSFWorkbook				   detachedWorkbook;
+	private Cell						   detachedCell;
+	private final Map <String, CellStyle>  detachedStyles	  = new HashMap <> ();
+
+	private CompiledFormat[]			   byStyleIndex		  = new CompiledFormat[32];
+	private final Map <Integer, CompiledFormat> byFormatIndex   = new HashMap <> ();
+
+	public CellFormatCache (Workbook workbook, Locale locale)
+	{
+		this (locale, (workbook instanceof Date1904Support) && ((Date1904Support) workbook).isDate1904 ());
+	}
+
+	public CellFormatCache (Locale locale, boolean date1904)
+	{
+		this.formatter = new DataFormatter (locale);
+		this.formatter.setUseCachedValuesForFormulaCells (true);
+		this.locale = locale;
+		this.date1904 = date1904;
+		this.dateSymbols = DateFormatSymbols.getInstance (locale);
+
+		DecimalFormatSymbols symbols = DecimalFormatSymbols.getInstance (locale);
+		this.decimalSeparator = symbols.getDecimalSeparator ();
+		this.groupingSeparator = symbols.getGroupingSeparator ();
+		// Plain digit rendering only matches DecimalFormat when the locale uses ASCII digits and '-'
+		this.asciiNumbers = symbols.getZeroDigit () == '0' && symbols.getMinusSign () == '-';
+
+		// DateUtil and DataFormatter's date formats use the calendar and digits of the default
+		// locales: arithmetic dates are only equivalent for Gregorian calendars with ASCII digits
+		TimeZone timeZone = LocaleUtil.getUserTimeZone ();
+		SimpleDateFormat probe = new SimpleDateFormat ("y", dateSymbols);
+		probe.setTimeZone (TimeZone.getTimeZone ("UTC"));
+		this.arithmeticDates = Calendar.getInstance (timeZone, LocaleUtil.getUserLocale ()) instanceof GregorianCalendar &&
+		                       probe.getCalendar () instanceof GregorianCalendar &&
+		                       "2000".equals (probe.format (new Date (PROBE_DATE_MILLIS)));
+		ZoneRules rules = timeZone.toZoneId ().getRules ();
+		this.zoneRules = rules.isFixedOffset ()? null : rules;
+	}
+
+	/**
+	 * Same result as DataFormatter.formatCellValue (cell), with formula cells showing their cached
+	 * result instead of the formula text.
+	 */
+	public String format (Cell cell)
+	{
+		if (cell == null)
+		{
+			return "";
+		}
+		CellType type = cell.getCellType ();
+		if (type == CellType.FORMULA && cell.getCachedFormulaResultType () == CellType.NUMERIC)
+		{
+			type = CellType.NUMERIC;
+		}
+		switch (type)
+		{
+			case STRING:
+				return cell.getStringCellValue ();
+			case BLANK:
+				return "";
+			case NUMERIC:
+				double value = cell.getNumericCellValue ();
+				String text = compiledFor (cell.getCellStyle ()).render (value, false);
+				return (text != null)? text : formatter.formatCellValue (cell);
+			default:
+				return formatter.formatCellValue (cell);
+		}
+	}
+
+	/**
+	 * Same result as DataFormatter.formatRawCellContents (value, formatIndex, formatString), using
+	 * this workbook's date system. Used by readers that do not materialize Cell objects.
+	 */
+	public String formatRaw (double value, int formatIndex, String formatString)
+	{
+		String text = compiledFor (formatIndex, formatString).render (value, true);
+		if (text != null)
+		{
+			return text;
+		}
+		return formatter.formatRawCellContents (value, formatIndex, (formatString != null)? formatString : GENERAL,
+		                                        date1904);
+	}
+
+	/**
+	 * Same result as format (Cell) for a numeric cell holding value with the given number format.
+	 *
+	 * DataFormatter renders cells and raw values through different paths that disagree for values
+	 * with more than 15 significant digits, fractions and E notation; readers that do not
+	 * materialize Cell objects use this method so their text matches the workbook reader. Values
+	 * no compiled format can render go through a detached cell of a scratch workbook.
+	 */
+	public String formatNumber (double value, int formatIndex, String formatString)
+	{
+		CompiledFormat compiled = compiledFor (formatIndex, formatString);
+		if (compiled.date && DateUtil.isValidExcelDate (value))
+		{
+			// Both paths format dates identically
+			return formatRaw (value, formatIndex, formatString);
+		}
+		String text = compiled.render (value, false);
+		if (text != null)
+		{
+			return text;
+		}
+		Cell cell = detachedCell (formatIndex, formatString);
+		cell.setCellValue (value);
+		return formatter.formatCellValue (cell);
+	}
+
+	/**
+	 * Same result as DateUtil.isCellDateFormatted (cell), answered from the compiled format.
+	 */
+	public boolean isDateFormatted (Cell cell)
+	{
+		return compiledFor (cell.getCellStyle ()).date && DateUtil.isValidExcelDate (cell.getNumericCellValue ());
+	}
+
+	/**
+	 * True when the given number format displays dates/times.
+	 */
+	public boolean isDateFormat (int formatIndex, String formatString)
+	{
+		return compiledFor (formatIndex, formatString).date;
+	}
+
+	public DataFormatter getDataFormatter ()
+	{
+		return formatter;
+	}
+
+	public boolean isDate1904 ()
+	{
+		return date1904;
+	}
+
+	private Cell detachedCell (int formatIndex, String formatString)
+	{
+		if (detachedCell == null)
+		{
+			detachedWorkbook = new XSSFWorkbook ();
+			detachedCell = detachedWorkbook.createSheet ().createRow (0).createCell (0);
+		}
+		String format = (formatString != null)? formatString : BuiltinFormats.getBuiltinFormat (formatIndex);
+		CellStyle style = detachedStyles.get (format);
+		if (style == null)
+		{
+			style = detachedWorkbook.createCellStyle ();
+			style.setDataFormat (detachedWorkbook.createDataFormat ().getFormat ((format != null)? format : GENERAL));
+			detachedStyles.put (format, style);
+		}
+		detachedCell.setCellStyle (style);
+		return detachedCell;
+	}
+
+	// === Compilation ===
+
+	private CompiledFormat compiledFor (CellStyle style)
+	{
+		if (style == null)
+		{
+			return compiledFor (0, GENERAL);
+		}
+		int styleIndex = style.getIndex () & 0xFFFF;
+		if (styleIndex >= byStyleIndex.length)
+		{
+			byStyleIndex = Arrays.copyOf (byStyleIndex, Math.max (styleIndex + 1, byStyleIndex.length * 2));
+		}
+		CompiledFormat compiled = byStyleIndex[styleIndex];
+		if (compiled == null)
+		{
+			compiled = compiledFor (style.getDataFormat (), style.getDataFormatString ());
+			byStyleIndex[styleIndex] = compiled;
+		}
+		return compiled;
+	}
+
+	private CompiledFormat compiledFor (int formatIndex, String formatString)
+	{
+		CompiledFormat compiled = byFormatIndex.get (formatIndex);
+		if (compiled == null)
+		{
+			compiled = compile (formatIndex, formatString);
+			byFormatIndex.put (formatIndex, compiled);
+		}
+		return compiled;
+	}
+
+	private CompiledFormat compile (int formatIndex, String formatString)
+	{
+		if (formatString == null || formatString.isEmpty () || GENERAL.equalsIgnoreCase (formatString) ||
+		    "@".equals (formatString))
+		{
+			return new GeneralFormat ();
+		}
+
+		if (DateUtil.isADateFormat (formatIndex, formatString))
+		{
+			String pattern = toSimpleDatePattern (formatString);
+			return (pattern != null)? new DatePatternFormat (pattern) : new DelegatedFormat (true);
+		}
+
+		boolean grouping = formatString.startsWith ("#,##0");
+		String rest = grouping? formatString.substring (5) : (formatString.startsWith ("0")? formatString.substring (1)
+		                                                                                    : null);
+		if (rest != null)
+		{
+			if (rest.isEmpty ())
+			{
+				return new FixedFormat (0, grouping);
+			}
+			if (rest.length () > 1 && rest.charAt (0) == '.' && rest.substring (1).chars ().allMatch (ch -> ch == '0'))
+			{
+				return new FixedFormat (rest.length () - 1, grouping);
+			}
+		}
+
+		return new DelegatedFormat (false);
+	}
+
+	/**
+	 * Translates purely numeric Excel date/time patterns into SimpleDateFormat patterns, using
+	 * the same month/minute disambiguation as DataFormatter. Returns null for anything else
+	 * (text months/days, AM/PM, elapsed time, literals, locale prefixes...).
+	 */
+	private static String toSimpleDatePattern (String excelPattern)
+	{
+		String s = excelPattern;
+		if (s.endsWith (";@"))
+		{
+			s = s.substring (0, s.length () - 2);
+		}
+		s = s.replace ("\\-", "-").replace ("\\/", "/").replace ("\\.", ".").replace ("\\ ", " ");
+
+		StringBuilder sb = new StringBuilder (s.length ());
+		boolean mIsMonth = true;
+		int pendingMonthStart = -1; // first 'M' written since the last reset, may turn into minutes
+		for (int i = 0; i < s.length (); i++)
+		{
+			char c = Character.toLowerCase (s.charAt (i));
+			switch (c)
+			{
+				case 'h':
+					mIsMonth = false;
+					sb.append ('H');
+					break;
+				case 'm':
+					if (mIsMonth)
+					{
+						if (pendingMonthStart < 0)
+						{
+							pendingMonthStart = sb.length ();
+						}
+						sb.append ('M');
+					}
+					else
+					{
+						sb.append ('m');
+					}
+					break;
+				case 's':
+					sb.append ('s');
+					// m right before seconds means minutes
+					if (pendingMonthStart >= 0)
+					{
+						for (int j = pendingMonthStart; j < sb.length (); j++)
+						{
+							if (sb.charAt (j) == 'M')
+							{
+								sb.setCharAt (j, 'm');
+							}
+						}
+					}
+					mIsMonth = true;
+					pendingMonthStart = -1;
+					break;
+				case 'd':
+				case 'y':
+					mIsMonth = true;
+					pendingMonthStart = -1;
+					sb.append (c);
+					break;
+				case ' ':
+					pendingMonthStart = -1;
+					sb.append (c);
+					break;
+				case '/':
+				case '-':
+				case '.':
+				case ':':
+				case ',':
+					sb.append (c);
+					break;
+				default:
+					return null;
+			}
+		}
+
+		// Text month names (mmm, mmmm, mmmmm) need locale symbols and Excel-specific truncation
+		if (sb.indexOf ("MMM") >= 0)
+		{
+			return null;
+		}
+		return sb.toString ();
+	}
+
+	// === Decimal digits ===
+
+	/**
+	 * Loads decimal text (plain or E notation, as produced by Double.toString or
+	 * NumberToTextConverter) into the digit scratch: value = 0.d1d2...dn x 10^pointPosition,
+	 * without leading or trailing zeros.
+	 */
+	private void loadDigits (String text)
+	{
+		digitCount = 0;
+		pointPosition = 0;
+		negative = false;
+
+		int i = 0;
+		int length = text.length ();
+		if (text.charAt (0) == '-')
+		{
+			negative = true;
+			i = 1;
+		}
+		boolean afterPoint = false;
+		for (; i < length; i++)
+		{
+			char ch = text.charAt (i);
+			if (ch == '.')
+			{
+				afterPoint = true;
+			}
+			else if (ch == 'E')
+			{
+				pointPosition += Integer.parseInt (text, i + 1, length, 10);
+				break;
+			}
+			else if (ch == '0' && digitCount == 0)
+			{
+				// Leading zero: only fraction zeros move the point
+				if (afterPoint)
+				{
+					pointPosition--;
+				}
+			}
+			else
+			{
+				digitBuffer[digitCount++] = ch;
+				if (!afterPoint)
+				{
+					pointPosition++;
+				}
+			}
+		}
+		while (digitCount > 0 && digitBuffer[digitCount - 1] == '0')
+		{
+			digitCount--;
+		}
+		if (digitCount == 0)
+		{
+			pointPosition = 0;
+		}
+	}
+
+	/**
+	 * Rounds the digit scratch HALF_UP so that at most the first 'keep' digits remain.
+	 */
+	private void roundDigits (int keep)
+	{
+		if (keep >= digitCount)
+		{
+			return;
+		}
+		if (keep < 0)
+		{
+			digitCount = 0;
+			pointPosition = 0;
+			return;
+		}
+		boolean up = digitBuffer[keep] >= '5';
+		digitCount = keep;
+		if (up)
+		{
+			int i = keep - 1;
+			while (i >= 0 && digitBuffer[i] == '9')
+			{
+				i--;
+			}
+			if (i < 0)
+			{
+				digitBuffer[0] = '1';
+				digitCount = 1;
+				pointPosition++;
+				return;
+			}
+			digitBuffer[i]++;
+			digitCount = i + 1;
+		}
+		while (digitCount > 0 && digitBuffer[digitCount - 1] == '0')
+		{
+			digitCount--;
+		}
+		if (digitCount == 0)
+		{
+			pointPosition = 0;
+		}
+	}
+
+	/**
+	 * True when the digit scratch, loaded with the shortest round-trip text of the value, is also
+	 * what NumberToTextConverter (Excel's 15 significant digits, plain notation) yields for it.
+	 */
+	private boolean hasExcelPrecision (double value)
+	{
+		double abs = Math.abs (value);
+		return digitCount <= EXCEL_SIGNIFICANT_DIGITS && abs >= MIN_PLAIN_EXCEL_TEXT && abs < MAX_PLAIN_EXCEL_TEXT;
+	}
+
+	private char digitAt (int index)
+	{
+		return (index >= 0 && index < digitCount)? digitBuffer[index] : '0';
+	}
+
+	/**
+	 * Appends the integer part of the digit scratch, with optional grouping.
+	 */
+	private void appendIntegerDigits (StringBuilder sb, boolean grouping)
+	{
+		if (pointPosition <= 0)
+		{
+			sb.append ('0');
+			return;
+		}
+		for (int i = 0; i < pointPosition; i++)
+		{
+			if (grouping && i > 0 && (pointPosition - i) % 3 == 0)
+			{
+				sb.append (groupingSeparator);
+			}
+			sb.append (digitAt (i));
+		}
+	}
+
+	// === Compiled formats ===
+
+	private abstract static class CompiledFormat
+	{
+		final boolean date;
+
+		CompiledFormat (boolean date)
+		{
+			this.date = date;
+		}
+
+		/**
+		 * Returns the display text, or null when the value needs the full DataFormatter.
+		 *
+		 * @param rawPath true for formatRaw (value goes through NumberToTextConverter first, as in POI)
+		 */
+		abstract String render (double value, boolean rawPath);
+	}
+
+	private static final class DelegatedFormat extends CompiledFormat
+	{
+		DelegatedFormat (boolean date)
+		{
+			super (date);
+		}
+
+		@Override
+		String render (double value, boolean rawPath)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * "General" (and "@" applied to numbers): integers verbatim, other values rounded to 10
+	 * significant digits. Scientific notation is left to DataFormatter.
+	 */
+	private final class GeneralFormat extends CompiledFormat
+	{
+		GeneralFormat ()
+		{
+			super (false);
+		}
+
+		@Override
+		String render (double value, boolean rawPath)
+		{
+			if (!asciiNumbers || Double.isNaN (value) || Double.isInfinite (value))
+			{
+				return null;
+			}
+
+			double v = value;
+			boolean loaded = false;
+			if (rawPath && v != Math.rint (v))
+			{
+				// POI hands the 15-digit Excel text to the General format, which reads it back as a double
+				loadDigits (Double.toString (v));
+				loaded = true;
+				if (!hasExcelPrecision (v))
+				{
+					String text = NumberToTextConverter.toText (v);
+					if (text.indexOf ('E') < 0)
+					{
+						v = Double.parseDouble (text);
+						loaded = false;
+					}
+				}
+			}
+
+			double abs = Math.abs (v);
+			if (v == Math.rint (v))
+			{
+				if (abs < MAX_GENERAL_INTEGER && Double.doubleToRawLongBits (v) != NEGATIVE_ZERO_BITS)
+				{
+					return Long.toString ((long) v);
+				}
+				return null;
+			}
+			if (abs >= MAX_GENERAL_INTEGER || abs <= MIN_GENERAL_DECIMAL)
+			{
+				return null;
+			}
+
+			// Same digits as BigDecimal.valueOf (v).round (10 significant digits, HALF_UP)
+			if (!loaded)
+			{
+				loadDigits (Double.toString (v));
+			}
+			roundDigits (GENERAL_SIGNIFICANT_DIGITS);
+			int fractionDigits = digitCount - pointPosition;
+			if (fractionDigits > GENERAL_SIGNIFICANT_DIGITS)
+			{
+				// "#.##########" would round a second time
+				return null;
+			}
+
+			StringBuilder sb = new StringBuilder (24);
+			if (negative)
+			{
+				sb.append ('-');
+			}
+			appendIntegerDigits (sb, false);
+			if (fractionDigits > 0)
+			{
+				sb.append (decimalSeparator);
+				for (int i = pointPosition; i < digitCount; i++)
+				{
+					sb.append (digitAt (i));
+				}
+			}
+			return sb.toString ();
+		}
+	}
+
+	/**
+	 * "0", "0.00", "#,##0", "#,##0.00" and similar: fixed decimals, optional grouping, HALF_UP.
+	 */
+	private final class FixedFormat extends CompiledFormat
+	{
+		private final int	  decimals;
+		private final boolean grouping;
+
+		FixedFormat (int decimals, boolean grouping)
+		{
+			super (false);
+			this.decimals = decimals;
+			this.grouping = grouping;
+		}
+
+		@Override
+		String render (double value, boolean rawPath)
+		{
+			if (!asciiNumbers || Double.isNaN (value) || Double.isInfinite (value) ||
+			    Double.doubleToRawLongBits (value) == NEGATIVE_ZERO_BITS)
+			{
+				return null;
+			}
+
+			StringBuilder sb = new StringBuilder (32);
+			if (value > -MAX_EXACT_INTEGER && value < MAX_EXACT_INTEGER && value == Math.rint (value))
+			{
+				loadDigits (Long.toString ((long) value));
+			}
+			else
+			{
+				// DataFormatter rounds the decimal text of the value, not its binary expansion: the
+				// shortest round-trip text for cells, Excel's 15-digit text for raw values
+				loadDigits (Double.toString (value));
+				if (rawPath && !hasExcelPrecision (value))
+				{
+					String text = NumberToTextConverter.toText (value);
+					if (text.indexOf ('E') >= 0)
+					{
+						return null;
+					}
+					loadDigits (text);
+				}
+				roundDigits (pointPosition + decimals);
+				if (negative && digitCount == 0)
+				{
+					// DecimalFormat keeps the sign of tiny negatives ("-0.00")
+					return null;
+				}
+			}
+
+			if (negative)
+			{
+				sb.append ('-');
+			}
+			appendIntegerDigits (sb, grouping);
+			if (decimals > 0)
+			{
+				sb.append (decimalSeparator);
+				for (int i = 0; i < decimals; i++)
+				{
+					sb.append (digitAt (pointPosition + i));
+				}
+			}
+			return sb.toString ();
+		}
+	}
+
+	/**
+	 * Numeric date/time patterns. Serial values are converted arithmetically (epoch day plus
+	 * milliseconds in the day, with the same 1900/1904 windowing as DateUtil) and the fields are
+	 * printed directly; the SimpleDateFormat is only used when that is not equivalent (DST gaps,
+	 * non-Gregorian default calendars, out-of-range serials).
+	 */
+	private final class DatePatternFormat extends CompiledFormat
+	{
+		private final SimpleDateFormat dateFormat;
+		/** Pattern letters (y, M, d, H, m, s) or literal characters. */
+		private final char[]		   tokens;
+		/** Repeat count of each pattern letter, 0 for literals. */
+		private final int[]			   widths;
+
+		DatePatternFormat (String pattern)
+		{
+			super (true);
+			this.dateFormat = new SimpleDateFormat (pattern, dateSymbols);
+			this.dateFormat.setTimeZone (LocaleUtil.getUserTimeZone ());
+
+			char[] t = new char[pattern.length ()];
+			int[] w = new int[pattern.length ()];
+			int count = 0;
+			for (int i = 0; i < pattern.length (); )
+			{
+				char ch = pattern.charAt (i);
+				int j = i + 1;
+				if (Character.isLetter (ch))
+				{
+					while (j < pattern.length () && pattern.charAt (j) == ch)
+					{
+						j++;
+					}
+					w[count] = j - i;
+				}
+				t[count++] = ch;
+				i = j;
+			}
+			this.tokens = Arrays.copyOf (t, count);
+			this.widths = Arrays.copyOf (w, count);
+		}
+
+		@Override
+		String render (double value, boolean rawPath)
+		{
+			if (!asciiNumbers || !DateUtil.isValidExcelDate (value))
+			{
+				return null;
+			}
+			if (!arithmeticDates || value < 0 || value >= MAX_DATE_SERIAL)
+			{
+				return dateFormat.format (DateUtil.getJavaDate (value, date1904));
+			}
+
+			int wholeDays = (int) Math.floor (value);
+			int millisInDay = (int) ((value - wholeDays) * DAY_MILLISECONDS + 0.5);
+			long epochDay;
+			if (date1904)
+			{
+				epochDay = EPOCH_DAY_1904 + wholeDays;
+			}
+			else
+			{
+				// Excel believes 1900-02-29 exists: serials from 61 on are one day ahead
+				epochDay = EPOCH_DAY_1900 + wholeDays - ((wholeDays < 61)? 1 : 2);
+			}
+			if (millisInDay >= DAY_MILLISECONDS)
+			{
+				epochDay++;
+				millisInDay -= DAY_MILLISECONDS;
+			}
+			LocalDate day = LocalDate.ofEpochDay (epochDay);
+			int secondOfDay = millisInDay / 1000;
+
+			if (zoneRules != null)
+			{
+				// Wall-clock times skipped by a DST change are shifted by Calendar: let it do so
+				ZoneOffsetTransition transition = zoneRules.getTransition (day.atTime (LocalTime.ofSecondOfDay (secondOfDay)));
+				if (transition != null && transition.isGap ())
+				{
+					return dateFormat.format (DateUtil.getJavaDate (value, date1904));
+				}
+			}
+
+			StringBuilder sb = new StringBuilder (tokens.length + 8);
+			for (int i = 0; i < tokens.length; i++)
+			{
+				char token = tokens[i];
+				int width = widths[i];
+				switch (token)
+				{
+					case 'y':
+						if (width == 2)
+						{
+							appendPadded (sb, day.getYear () % 100, 2);
+						}
+						else
+						{
+							appendPadded (sb, day.getYear (), width);
+						}
+						break;
+					case 'M':
+						appendPadded (sb, day.getMonthValue (), width);
+						break;
+					case 'd':
+						appendPadded (sb, day.getDayOfMonth (), width);
+						break;
+					case 'H':
+						appendPadded (sb, secondOfDay / 3600, width);
+						break;
+					case 'm':
+						appendPadded (sb, (secondOfDay / 60) % 60, width);
+						break;
+					case 's':
+						appendPadded (sb, secondOfDay % 60, width);
+						break;
+					default:
+						sb.append (token);
+						break;
+				}
+			}
+			return sb.toString ();
+		}
+	}
+
+	private static void appendPadded (StringBuilder sb, int value, int width)
+	{
+		for (int limit = 10, i = 1; i < width; i++, limit *= 10)
+		{
+			if (value < limit)
+			{
+				sb.append ('0');
+			}
+		}
+		sb.append (value);
+	}
+
+	@Override
+	public String toString ()
+	{
+		return "CellFormatCache[" + locale + (date1904? ", 1904" : "") + ", " + byFormatIndex.size () + " formats]";
+	}
+}
@@ -0,0 +1,499 @@
+package es.ipb.excelfusion.excel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+
+/**
+ * SheetRowReader for delimited text files (.csv, .tsv), presented as a single sheet named after
+ * the file.
+ *
+ * Records are split on the raw bytes: the delimiter, quote and line break characters are ASCII,
+ * so the scan is the same for UTF-8 and single-byte encodings and only the fields are decoded.
+ * Unquoted text is scanned a long (eight bytes) at a time, testing for the delimiter and both line
+ * break bytes at once, and rows before firstRow are skipped without decoding any field.
+ *
+ * Quoting follows RFC 4180, leniently: a quoted field may hold delimiters, line breaks and
+ * doubled quotes, and a quote inside an unquoted field is plain text. Every value is a string, as
+ * Excel shows it when it opens the file; empty lines are not rows.
+ *
+ * The file is read as UTF-8 (with or without BOM) unless its start is not valid UTF-8, in which
+ * case it is read as Windows-1252. The delimiter of a .csv file is the most frequent of comma,
+ * semicolon and tab in its first line; .tsv files always use tab.
+ */
+public class CsvSheetReader implements SheetRowReader
+{
+
+	/** Read buffer; grows when a single record does not fit. */
+	private static final int	   BUFFER_SIZE = 1 << 16;
+
+	/** Bytes inspected to choose the encoding and the delimiter. */
+	private static final int	   SNIFF_SIZE  = 1 << 16;
+
+	private static final byte	   QUOTE	   = '"';
+	private static final byte	   CR		   = '\r';
+	private static final byte	   LF		   = '\n';
+
+	private static final long	   ONES		   = 0x0101010101010101L;
+	private static final long	   HIGHS	   = 0x8080808080808080L;
+	private static final long	   QUOTES	   = ONES * QUOTE;
+	private static final long	   CRS		   = ONES * CR;
+	private static final long	   LFS		   = ONES * LF;
+
+	private static final VarHandle LONGS	   = MethodHandles.byteArrayViewVarHandle (long[].class,
+	                                                                                   ByteOrder.LITTLE_ENDIAN);
+
+	private static final Charset   WINDOWS_1252 = Charset.forName ("windows-1252");
+
+	private final File							file;
+	private final String						sheetName;
+	private final byte							delimiter;
+	private final Charset						charset;
+	private final int							bomLength;
+	private final MemoryGovernor.Reservation	reservation;
+
+	public CsvSheetReader (File file) throws IOException
+	{
+		this (file, MemoryGovernor.Reservation.NONE);
+	}
+
+	/** Holds reservation until closed. */
+	CsvSheetReader (File file, MemoryGovernor.Reservation reservation) throws IOException
+	{
+		this.file = file;
+		this.reservation = reservation;
+		String name = file.getName ();
+		int dot = name.lastIndexOf ('.');
+		this.sheetName = (dot > 0)? name.substring (0, dot) : name;
+
+		byte[] head = readHead (file);
+		if (head.length >= 2 && ((head[0] == (byte) 0xFF && head[1] == (byte) 0xFE) ||
+		                         (head[0] == (byte) 0xFE && head[1] == (byte) 0xFF)))
+		{
+			throw new IOException ("Cannot read " + name + ": UTF-16 text is not supported, save it as UTF-8");
+		}
+		boolean bom = head.length >= 3 && head[0] == (byte) 0xEF && head[1] == (byte) 0xBB && head[2] == (byte) 0xBF;
+		this.bomLength = bom? 3 : 0;
+		this.charset = (bom || isUtf8 (head, bomLength))? StandardCharsets.UTF_8 : WINDOWS_1252;
+		this.delimiter = name.toLowerCase (Locale.ROOT).endsWith (".tsv")? (byte) '\t' : sniffDelimiter (head, bomLength);
+	}
+
+	@Override
+	public List <String> getSheetNames ()
+	{
+		return Collections.singletonList (sheetName);
+	}
+
+	/** Field delimiter in use. */
+	public char getDelimiter ()
+	{
+		return (char) delimiter;
+	}
+
+	/** Encoding the fields are decoded with. */
+	public Charset getCharset ()
+	{
+		return charset;
+	}
+
+	/** Every cursor reads the file through its own stream. */
+	@Override
+	public boolean supportsConcurrentSheets ()
+	{
+		return true;
+	}
+
+	@Override
+	public RowCursor openSheet (String sheetName, int firstRow) throws IOException
+	{
+		if (!this.sheetName.equals (sheetName))
+		{
+			throw new IOException ("Sheet not found: " + sheetName);
+		}
+		InputStream in = Files.newInputStream (file.toPath ());
+		try
+		{
+			long skipped = in.skip (bomLength);
+			if (skipped != bomLength)
+			{
+				throw new IOException ("Cannot skip the byte order mark of " + file.getName ());
+			}
+		}
+		catch (IOException e)
+		{
+			in.close ();
+			throw e;
+		}
+		return new Cursor (in, Math.max (firstRow, 0));
+	}
+
+	@Override
+	public void close ()
+	{
+		reservation.close ();
+	}
+
+	private static byte[] readHead (File file) throws IOException
+	{
+		try (InputStream in = Files.newInputStream (file.toPath ()))
+		{
+			return in.readNBytes (SNIFF_SIZE);
+		}
+	}
+
+	/** True if head (from offset on) is valid UTF-8, a sequence cut at the end being allowed. */
+	private static boolean isUtf8 (byte[] head, int offset)
+	{
+		CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder ()
+		        .onMalformedInput (CodingErrorAction.REPORT).onUnmappableCharacter (CodingErrorAction.REPORT);
+		CoderResult result = decoder.decode (ByteBuffer.wrap (head, offset, head.length - offset),
+		                                     CharBuffer.allocate (head.length), false);
+		return !result.isError ();
+	}
+
+	/** Most frequent of comma, semicolon and tab outside quotes in the first line; comma on ties. */
+	private static byte sniffDelimiter (byte[] head, int offset)
+	{
+		int commas = 0;
+		int semicolons = 0;
+		int tabs = 0;
+		boolean quoted = false;
+		for (int i = offset; i < head.length; i++)
+		{
+			byte b = head[i];
+			if (b == QUOTE)
+			{
+				quoted = !quoted;
+			}
+			else if (quoted)
+			{
+				continue;
+			}
+			else if (b == CR || b == LF)
+			{
+				break;
+			}
+			else if (b == ',')
+			{
+				commas++;
+			}
+			else if (b == ';')
+			{
+				semicolons++;
+			}
+			else if (b == '\t')
+			{
+				tabs++;
+			}
+		}
+		if (semicolons > commas && semicolons >= tabs)
+		{
+			return ';';
+		}
+		return (tabs > commas)? (byte) '\t' : (byte) ',';
+	}
+
+	/** Marks every byte of word that is zero with its high bit; the lowest mark is exact. */
+	private static long zeroBytes (long word)
+	{
+		return (word - ONES) & ~word & HIGHS;
+	}
+
+	private final class Cursor implements RowCursor
+	{
+		private final InputStream in;
+		private final int		  firstRow;
+		private final RowData	  row;
+		private final long		  delimiterMask = ONES * (delimiter & 0xFF);
+
+		private byte[]			  buf			= new byte[BUFFER_SIZE];
+		private int				  pos;
+		private int				  limit;
+		private boolean			  eof;
+
+		/** Index of the record last read. */
+		private int				  recordIndex	= -1;
+
+		/** Bounds of the fields of the current record in buf. */
+		private int[]			  fieldStarts	= new int[64];
+		private int[]			  fieldEnds		= new int[64];
+		private int				  fieldCount;
+
+		/** Unquoted bytes of a quoted field. */
+		private byte[]			  scratch		= new byte[256];
+
+		Cursor (InputStream in, int firstRow)
+		{
+			this.in = in;
+			this.firstRow = firstRow;
+			this.row = new RowData (new CellFormatCache (Locale.getDefault (), false));
+		}
+
+		@Override
+		public boolean next () throws IOException
+		{
+			while (readRecord ())
+			{
+				if (recordIndex < firstRow || (fieldCount == 1 && fieldStarts[0] == fieldEnds[0]))
+				{
+					// Skipped row, or an empty line
+					continue;
+				}
+				row.reset (recordIndex);
+				for (int f = 0; f < fieldCount; f++)
+				{
+					row.setString (f, decode (fieldStarts[f], fieldEnds[f]));
+				}
+				return true;
+			}
+			return false;
+		}
+
+		@Override
+		public RowData getRow ()
+		{
+			return row;
+		}
+
+		@Override
+		public void close () throws IOException
+		{
+			eof = true;
+			pos = limit;
+			in.close ();
+		}
+
+		/** Splits the next record into fields; false at the end of the file. */
+		private boolean readRecord () throws IOException
+		{
+			if (pos >= limit && !eof)
+			{
+				fill ();
+			}
+			if (pos >= limit)
+			{
+				return false;
+			}
+			// A record cut by the end of the buffer is scanned again once more bytes are in
+			while (!scanRecord (pos))
+			{
+				fill ();
+			}
+			recordIndex++;
+			return true;
+		}
+
+		/**
+		 * Finds the fields of the record starting at start and moves pos past its line break.
+		 * False if the buffer ends before the record does (never at the end of the file).
+		 */
+		private boolean scanRecord (int start)
+		{
+			fieldCount = 0;
+			int fieldStart = start;
+			int i = start;
+			while (true)
+			{
+				if (i == fieldStart && i < limit && buf[i] == QUOTE)
+				{
+					i = skipQuoted (i + 1);
+					if (i < 0)
+					{
+						if (!eof)
+						{
+							return false;
+						}
+						// Unterminated quote: the rest of the file is the field
+						i = limit;
+					}
+				}
+				int j = findSpecial (i);
+				if (j == limit)
+				{
+					if (!eof)
+					{
+						return false;
+					}
+					addField (fieldStart, j);
+					pos = j;
+					return true;
+				}
+				addField (fieldStart, j);
+				byte b = buf[j];
+				if (b == delimiter)
+				{
+					fieldStart = i = j + 1;
+					continue;
+				}
+				if (b == CR)
+				{
+					if (j + 1 == limit && !eof)
+					{
+						return false;
+					}
+					pos = (j + 1 < limit && buf[j + 1] == LF)? j + 2 : j + 1;
+				}
+				else
+				{
+					pos = j + 1;
+				}
+				return true;
+			}
+		}
+
+		/** Index after the quote closing a quoted field whose text starts at i; -1 if not in buf. */
+		private int skipQuoted (int i)
+		{
+			while (true)
+			{
+				int j = indexOfQuote (i);
+				if (j == limit || (j + 1 == limit && !eof))
+				{
+					return -1;
+				}
+				if (j + 1 < limit && buf[j + 1] == QUOTE)
+				{
+					i = j + 2;
+					continue;
+				}
+				return j + 1;
+			}
+		}
+
+		/** First delimiter, CR or LF at or after i, or limit. */
+		private int findSpecial (int i)
+		{
+			long delimiters = delimiterMask;
+			for (; i + Long.BYTES <= limit; i += Long.BYTES)
+			{
+				long word = (long) LONGS.get (buf, i);
+				long found = zeroBytes (word ^ delimiters) | zeroBytes (word ^ CRS) | zeroBytes (word ^ LFS);
+				if (found != 0)
+				{
+					return i + (Long.numberOfTrailingZeros (found) >>> 3);
+				}
+			}
+			for (; i < limit; i++)
+			{
+				byte b = buf[i];
+				if (b == delimiter || b == CR || b == LF)
+				{
+					return i;
+				}
+			}
+			return limit;
+		}
+
+		/** First quote at or after i, or limit. */
+		private int indexOfQuote (int i)
+		{
+			for (; i + Long.BYTES <= limit; i += Long.BYTES)
+			{
+				long found = zeroBytes ((long) LONGS.get (buf, i) ^ QUOTES);
+				if (found != 0)
+				{
+					return i + (Long.numberOfTrailingZeros (found) >>> 3);
+				}
+			}
+			for (; i < limit; i++)
+			{
+				if (buf[i] == QUOTE)
+				{
+					return i;
+				}
+			}
+			return limit;
+		}
+
+		private void addField (int start, int end)
+		{
+			if (fieldCount == fieldStarts.length)
+			{
+				fieldStarts = Arrays.copyOf (fieldStarts, fieldCount * 2);
+				fieldEnds = Arrays.copyOf (fieldEnds, fieldCount * 2);
+			}
+			fieldStarts[fieldCount] = start;
+			fieldEnds[fieldCount] = end;
+			fieldCount++;
+		}
+
+		private String decode (int start, int end)
+		{
+			if (start == end)
+			{
+				return null;
+			}
+			if (buf[start] != QUOTE)
+			{
+				return new String (buf, start, end - start, charset);
+			}
+			// Drop the enclosing quotes and undouble the inner ones; text after the closing quote is kept
+			if (scratch.length < end - start)
+			{
+				scratch = new byte[Math.max (end - start, scratch.length * 2)];
+			}
+			int length = 0;
+			boolean quoted = true;
+			for (int i = start + 1; i < end; i++)
+			{
+				byte b = buf[i];
+				if (quoted && b == QUOTE)
+				{
+					if (i + 1 < end && buf[i + 1] == QUOTE)
+					{
+						scratch[length++] = QUOTE;
+						i++;
+					}
+					else
+					{
+						quoted = false;
+					}
+					continue;
+				}
+				scratch[length++] = b;
+			}
+			return new String (scratch, 0, length, charset);
+		}
+
+		/** Moves the unread bytes to the front of buf and reads more after them. */
+		private void fill () throws IOException
+		{
+			int remaining = limit - pos;
+			if (pos > 0)
+			{
+				System.arraycopy (buf, pos, buf, 0, remaining);
+			}
+			else if (remaining == buf.length)
+			{
+				buf = Arrays.copyOf (buf, buf.length * 2);
+			}
+			pos = 0;
+			limit = remaining;
+			int n = in.read (buf, limit, buf.length - limit);
+			if (n < 0)
+			{
+				eof = true;
+			}
+			else
+			{
+				limit += n;
+			}
+		}
+	}
+}
@@ -0,0 +1,177 @@
+package es.ipb.excelfusion.excel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellType;
+import org.apache.poi.ss.usermodel.CellValue;
+import org.apache.poi.ss.usermodel.FormulaEvaluator;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+
+
+/**
+ * Recomputes formula results for files saved without cached values (FormulaMode.EVALUATE).
+ *
+ * Every sheet gets its own FormulaEvaluator on a worker thread, and the workers only read the
+ * workbook. Once all sheets are done the results are stored as the cells' cached values on
+ * the calling thread, so everything downstream reads formula cells the same way in both modes.
+ * HSSF workbooks are evaluated one sheet at a time, because their record model is not safe for
+ * concurrent readers.
+ */
+public final class FormulaEvaluation
+{
+
+	private FormulaEvaluation ()
+	{
+	}
+
+	/**
+	 * Evaluates the formula cells of the given sheets between firstRow and lastRow (0-based,
+	 * inclusive; a negative lastRow means up to the end of each sheet) and stores the results.
+	 * Cells that cannot be evaluated (unsupported functions, missing external workbooks) keep
+	 * their cached value.
+	 *
+	 * @return number of formula cells whose result was updated
+	 */
+	public static int evaluateSheets (Workbook workbook, List <Sheet> sheets, int firstRow, int lastRow)
+	{
+		if (sheets.isEmpty ())
+		{
+			return 0;
+		}
+
+		List <SheetResults> results = new ArrayList <> (sheets.size ());
+		int threads = (workbook instanceof HSSFWorkbook)? 1
+		                                                 : Math.min (sheets.size (),
+		                                                             Runtime.getRuntime ().availableProcessors ());
+		if (threads <= 1)
+		{
+			for (Sheet sheet : sheets)
+			{
+				results.add (evaluate (workbook, sheet, firstRow, lastRow));
+			}
+		}
+		else
+		{
+			ExecutorService pool = Executors.newFixedThreadPool (threads, r -> {
+				Thread t = new Thread (r, "FormulaEvaluation");
+				t.setDaemon (true);
+				return t;
+			});
+			try
+			{
+				List <Future <SheetResults>> futures = new ArrayList <> (sheets.size ());
+				for (Sheet sheet : sheets)
+				{
+					futures.add (pool.submit ( () -> evaluate (workbook, sheet, firstRow, lastRow)));
+				}
+				for (Future <SheetResults> future : futures)
+				{
+					results.add (future.get ());
+				}
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread ().interrupt ();
+				throw new IllegalStateException ("Formula evaluation interrupted", e);
+			}
+			catch (ExecutionException e)
+			{
+				throw new IllegalStateException ("Formula evaluation failed: " + e.getCause ().getMessage (),
+				                                 e.getCause ());
+			}
+			finally
+			{
+				pool.shutdownNow ();
+			}
+		}
+
+		// Single-threaded write-back
+		int updated = 0;
+		for (SheetResults sheetResults : results)
+		{
+			for (int i = 0; i < sheetResults.cells.size (); i++)
+			{
+				CellValue value = sheetResults.values.get (i);
+				if (value != null)
+				{
+					storeCachedResult (sheetResults.cells.get (i), value);
+					updated++;
+				}
+			}
+		}
+		return updated;
+	}
+
+	private static SheetResults evaluate (Workbook workbook, Sheet sheet, int firstRow, int lastRow)
+	{
+		FormulaEvaluator evaluator = workbook.getCreationHelper ().createFormulaEvaluator ();
+		evaluator.setIgnoreMissingWorkbooks (true);
+
+		SheetResults results = new SheetResults ();
+		int last = (lastRow < 0)? sheet.getLastRowNum () : Math.min (lastRow, sheet.getLastRowNum ());
+		for (int r = Math.max (firstRow, 0); r <= last; r++)
+		{
+			Row row = sheet.getRow (r);
+			if (row == null)
+			{
+				continue;
+			}
+			for (Cell cell : row)
+			{
+				if (cell.getCellType () != CellType.FORMULA)
+				{
+					continue;
+				}
+				CellValue value;
+				try
+				{
+					value = evaluator.evaluate (cell);
+				}
+				catch (RuntimeException e)
+				{
+					value = null;
+				}
+				results.cells.add (cell);
+				results.values.add (value);
+			}
+		}
+		return results;
+	}
+
+	private static void storeCachedResult (Cell cell, CellValue value)
+	{
+		// On formula cells the setters only replace the cached result, the formula is kept
+		switch (value.getCellType ())
+		{
+			case NUMERIC:
+				cell.setCellValue (value.getNumberValue ());
+				break;
+			case STRING:
+				cell.setCellValue (value.getStringValue ());
+				break;
+			case BOOLEAN:
+				cell.setCellValue (value.getBooleanValue ());
+				break;
+			case ERROR:
+				cell.setCellErrorValue (value.getErrorValue ());
+				break;
+			default:
+				break;
+		}
+	}
+
+	private static final class SheetResults
+	{
+		final List <Cell>	   cells  = new ArrayList <> ();
+		final List <CellValue> values = new ArrayList <> ();
+	}
+}
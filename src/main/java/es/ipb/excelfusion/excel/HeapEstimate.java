@@ -0,0 +1,98 @@
+package es.ipb.excelfusion.excel;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+
+/**
+ * Estimated heap working set of a file, loaded as a workbook and streamed, for MemoryGovernor.
+ *
+ * OOXML packages are sized from their zip directory, without inflating anything: a loaded XSSF
+ * workbook takes about 16 bytes of heap per byte of uncompressed sheet and shared strings XML
+ * (some 700 bytes per cell), while a streaming reader only keeps the shared strings table (unless
+ * it is spilled) and a few MB of buffers and batches per sheet parsed at a time. A loaded HSSF
+ * workbook takes about 7 bytes per byte of file. Figures measured with POI 5.
+ */
+final class HeapEstimate
+{
+
+	private static final int  XSSF_BYTES_PER_PART_BYTE	  = 16;
+	private static final int  HSSF_BYTES_PER_FILE_BYTE	  = 7;
+
+	/**
+	 * Strings of an in-memory shared strings table and their UTF-8 copies (kept once a binary COPY
+	 * has written them, SharedStringStore.copyUtf8), per byte of its part.
+	 */
+	private static final int  STRING_BYTES_PER_PART_BYTE  = 3;
+
+	/** Offsets of a spilled table (8 bytes per string of 16+ bytes), plus its LRU window. */
+	private static final int  PART_BYTES_PER_OFFSET_BYTE  = 2;
+	private static final long SPILLED_WINDOW_BYTES		  = 4L << 20;
+
+	/** Parse buffers, row data and queued batches of one sheet being streamed. */
+	private static final long SHEET_STREAM_BYTES		  = 4L << 20;
+
+	/** Heap of the file loaded as a workbook; Long.MAX_VALUE if it cannot be loaded (XLSB, CSV). */
+	final long				  workbookBytes;
+
+	/** Heap of the reader SheetReaders.open picks (the workbook itself for XLS). */
+	final long				  streamingBytes;
+
+	private HeapEstimate (long workbookBytes, long streamingBytes)
+	{
+		this.workbookBytes = workbookBytes;
+		this.streamingBytes = streamingBytes;
+	}
+
+	static HeapEstimate of (File file, long spillThreshold)
+	{
+		if (SheetReaders.isDelimitedText (file))
+		{
+			return new HeapEstimate (Long.MAX_VALUE, SHEET_STREAM_BYTES);
+		}
+		if (!SheetReaders.isXlsx (file) && !SheetReaders.isXlsb (file))
+		{
+			long workbook = file.length () * HSSF_BYTES_PER_FILE_BYTE;
+			return new HeapEstimate (workbook, workbook);
+		}
+
+		long partBytes = 0;
+		long stringBytes = 0;
+		int sheets = 0;
+		try (ZipFile zip = new ZipFile (file))
+		{
+			Enumeration <? extends ZipEntry> entries = zip.entries ();
+			while (entries.hasMoreElements ())
+			{
+				ZipEntry entry = entries.nextElement ();
+				String name = entry.getName ();
+				long size = Math.max (entry.getSize (), 0);
+				if (name.startsWith ("xl/worksheets/") && !name.contains ("/_rels/"))
+				{
+					partBytes += size;
+					sheets++;
+				}
+				else if (name.startsWith ("xl/sharedStrings"))
+				{
+					partBytes += size;
+					stringBytes += size;
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			// Not a readable package; the reader reports it when opening
+			return new HeapEstimate (0, 0);
+		}
+
+		long strings = (stringBytes > spillThreshold)? stringBytes / PART_BYTES_PER_OFFSET_BYTE + SPILLED_WINDOW_BYTES
+		                                             : stringBytes * STRING_BYTES_PER_PART_BYTE;
+		int parallelSheets = Math.max (1, Math.min (sheets, Runtime.getRuntime ().availableProcessors ()));
+		long streaming = strings + parallelSheets * SHEET_STREAM_BYTES;
+		long workbook = SheetReaders.isXlsb (file)? Long.MAX_VALUE : partBytes * XSSF_BYTES_PER_PART_BYTE;
+		return new HeapEstimate (workbook, streaming);
+	}
+}
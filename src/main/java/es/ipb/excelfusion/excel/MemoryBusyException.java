@@ -0,0 +1,19 @@
+package es.ipb.excelfusion.excel;
+
+import java.io.IOException;
+
+
+/**
+ * A reader opened without waiting (SheetReaders.open (file, false)) did not fit in the memory
+ * budget next to the readers already open; it may fit once they are closed.
+ */
+public final class MemoryBusyException extends IOException
+{
+
+	private static final long serialVersionUID = 1L;
+
+	MemoryBusyException (String message)
+	{
+		super (message);
+	}
+}
@@ -0,0 +1,159 @@
+package es.ipb.excelfusion.excel;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+/**
+ * Admission control for the heap taken by open sheet readers.
+ *
+ * Every reader opened through SheetReaders reserves its estimated working set (HeapEstimate) from
+ * a budget of HEAP_SHARE of the maximum heap and gives it back on close. A reader that does not
+ * fit waits until others are closed, so files parsed at the same time stay within the budget
+ * together instead of running the JVM out of memory; interactive callers use tryReserve, which
+ * fails at once instead of waiting. The first reader is always admitted, however large, since
+ * nothing else could free memory for it; whether a loaded workbook fits at all is checked before
+ * opening it (SheetReaders.fitsInMemory).
+ */
+public final class MemoryGovernor
+{
+
+	/** Share of the maximum heap that open readers may reserve together. */
+	private static final double			HEAP_SHARE		= 0.6;
+
+	/** Longest wait for other readers to release memory. */
+	private static final long			WAIT_TIMEOUT_MS	= 60_000;
+
+	private static final MemoryGovernor	SHARED			= new MemoryGovernor (
+	        (long) (Runtime.getRuntime ().maxMemory () * HEAP_SHARE));
+
+	private final long					budget;
+	private long						reserved;
+	private int							admitted;
+
+	MemoryGovernor (long budget)
+	{
+		this.budget = budget;
+	}
+
+	/** Governor of this JVM. */
+	public static MemoryGovernor shared ()
+	{
+		return SHARED;
+	}
+
+	/** Bytes that open readers may reserve together. */
+	public long getBudget ()
+	{
+		return budget;
+	}
+
+	/** Bytes currently reserved by open readers. */
+	public synchronized long getReserved ()
+	{
+		return reserved;
+	}
+
+	/**
+	 * Waits until bytes fit in the budget next to the readers already open, and reserves them.
+	 * Requests above the budget are capped to it (they run alone).
+	 */
+	Reservation reserve (long bytes, String fileName) throws IOException
+	{
+		long amount = cap (bytes);
+		long deadline = System.nanoTime () + TimeUnit.MILLISECONDS.toNanos (WAIT_TIMEOUT_MS);
+		synchronized (this)
+		{
+			while (!fits (amount))
+			{
+				long remaining = deadline - System.nanoTime ();
+				if (remaining <= 0)
+				{
+					throw new IOException ("Not enough memory to open " + fileName + ": it needs about " +
+					                       toMb (bytes) + " MB and open files hold " + toMb (reserved) + " of " +
+					                       toMb (budget) + " MB");
+				}
+				try
+				{
+					TimeUnit.NANOSECONDS.timedWait (this, remaining);
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread ().interrupt ();
+					throw new InterruptedIOException ("Interrupted while waiting for memory to open " + fileName);
+				}
+			}
+			reserved += amount;
+			admitted++;
+		}
+		return new Reservation (this, amount);
+	}
+
+	/**
+	 * Reserves bytes if they fit in the budget right now; never waits, for callers that must not
+	 * block (the UI thread). Returns null if other open readers hold the memory.
+	 */
+	synchronized Reservation tryReserve (long bytes)
+	{
+		long amount = cap (bytes);
+		if (!fits (amount))
+		{
+			return null;
+		}
+		reserved += amount;
+		admitted++;
+		return new Reservation (this, amount);
+	}
+
+	private long cap (long bytes)
+	{
+		return Math.max (0, Math.min (bytes, budget));
+	}
+
+	/** True if amount can be reserved now; the first reader always can. Holds the lock. */
+	private boolean fits (long amount)
+	{
+		return admitted == 0 || reserved + amount <= budget;
+	}
+
+	private synchronized void release (long amount)
+	{
+		reserved -= amount;
+		admitted--;
+		notifyAll ();
+	}
+
+	static long toMb (long bytes)
+	{
+		return (bytes + (1L << 20) - 1) >> 20;
+	}
+
+	/** Memory held by one open reader; closing it more than once has no effect. */
+	static final class Reservation implements Closeable
+	{
+		/** For readers created directly rather than through SheetReaders. */
+		static final Reservation	 NONE	= new Reservation (null, 0);
+
+		private final MemoryGovernor governor;
+		private final long			 bytes;
+		private final AtomicBoolean	 closed	= new AtomicBoolean ();
+
+		private Reservation (MemoryGovernor governor, long bytes)
+		{
+			this.governor = governor;
+			this.bytes = bytes;
+		}
+
+		@Override
+		public void close ()
+		{
+			if (governor != null && closed.compareAndSet (false, true))
+			{
+				governor.release (bytes);
+			}
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package es.ipb.excelfusion.excel;
+
+/**
+ * Text helpers for SpreadsheetML string content.
+ */
+final class OoxmlText
+{
+
+	private OoxmlText ()
+	{
+	}
+
+	/**
+	 * Replaces the _xHHHH_ escapes Excel writes for control characters (e.g. _x000D_ for a
+	 * carriage return), as XSSFRichTextString.getString () does for workbook cells.
+	 */
+	static String decodeEscapes (String value)
+	{
+		if (value == null || value.indexOf ("_x") < 0)
+		{
+			return value;
+		}
+		StringBuilder decoded = null;
+		int copied = 0;
+		int i = value.indexOf ("_x");
+		while (i >= 0 && i + 7 <= value.length ())
+		{
+			int code = (value.charAt (i + 6) == '_')? hex4 (value, i + 2) : -1;
+			if (code >= 0)
+			{
+				if (decoded == null)
+				{
+					decoded = new StringBuilder (value.length ());
+				}
+				decoded.append (value, copied, i).append ((char) code);
+				copied = i + 7;
+				i = value.indexOf ("_x", copied);
+			}
+			else
+			{
+				i = value.indexOf ("_x", i + 1);
+			}
+		}
+		if (decoded == null)
+		{
+			return value;
+		}
+		return decoded.append (value, copied, value.length ()).toString ();
+	}
+
+	private static int hex4 (String value, int start)
+	{
+		int code = 0;
+		for (int i = start; i < start + 4; i++)
+		{
+			char ch = value.charAt (i);
+			int digit;
+			if (ch >= '0' && ch <= '9')
+			{
+				digit = ch - '0';
+			}
+			else if (ch >= 'a' && ch <= 'f')
+			{
+				digit = ch - 'a' + 10;
+			}
+			else if (ch >= 'A' && ch <= 'F')
+			{
+				digit = ch - 'A' + 10;
+			}
+			else
+			{
+				return -1;
+			}
+			code = (code << 4) | digit;
+		}
+		return code;
+	}
+}
@@ -0,0 +1,18 @@
+package es.ipb.excelfusion.excel;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+
+/**
+ * Forward-only iteration over the rows of one sheet. Close it to stop early.
+ */
+public interface RowCursor extends Closeable
+{
+
+	/** Moves to the next row; false once the sheet is exhausted. */
+	boolean next () throws IOException;
+
+	/** Current row. The same instance is refilled by every call to next (). */
+	RowData getRow ();
+}
@@ -0,0 +1,302 @@
+package es.ipb.excelfusion.excel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellType;
+import org.apache.poi.ss.usermodel.DateUtil;
+
+
+/**
+ * One sheet row as delivered by a SheetRowReader. The instance is reused for every row of a
+ * cursor: copy what you need before advancing.
+ *
+ * Cells are either raw slots filled by a streaming reader (kind, number, number format, text or
+ * shared string index) or POI Cell objects from a workbook; display text is only formatted (or
+ * looked up in the shared strings table) when asked for, through the format cache of the
+ * workbook, and then kept for the rest of the row.
+ */
+public final class RowData
+{
+
+	/**
+	 * Value kind of a cell (formula cells report the kind of their cached result).
+	 */
+	public enum Kind
+	{
+		BLANK, STRING, NUMERIC, BOOLEAN, ERROR
+	}
+
+	private static final Kind[] KINDS		= Kind.values ();
+
+	private final CellFormatCache formats;
+	private final SharedStringStore sharedStrings;
+
+	private int					rowIndex;
+	private int					cellCount;
+	private int					slotCount;
+
+	private byte[]				kinds		= new byte[16];
+	private double[]			numbers		= new double[16];
+	private int[]				formatIndexes = new int[16];
+	private String[]			formatStrings = new String[16];
+	private String[]			texts		= new String[16];
+	private Cell[]				cells		= new Cell[16];
+	private int[]				sharedIndexes = new int[16];
+
+	public RowData (CellFormatCache formats)
+	{
+		this (formats, SharedStringStore.EMPTY);
+	}
+
+	/**
+	 * @param sharedStrings table that setSharedString indexes refer to
+	 */
+	RowData (CellFormatCache formats, SharedStringStore sharedStrings)
+	{
+		this.formats = formats;
+		this.sharedStrings = sharedStrings;
+	}
+
+	/** 0-based index of the row in the sheet. */
+	public int getRowIndex ()
+	{
+		return rowIndex;
+	}
+
+	/** Number of columns up to and including the last non-blank cell (0 for an empty row). */
+	public int getCellCount ()
+	{
+		return cellCount;
+	}
+
+	public boolean isEmpty ()
+	{
+		return cellCount == 0;
+	}
+
+	public Kind getKind (int column)
+	{
+		if (column >= slotCount)
+		{
+			return Kind.BLANK;
+		}
+		return KINDS[kinds[column]];
+	}
+
+	public boolean isBlank (int column)
+	{
+		return getKind (column) == Kind.BLANK;
+	}
+
+	/** Numeric value of a NUMERIC cell (0 for other kinds). */
+	public double getNumber (int column)
+	{
+		if (column >= slotCount || kinds[column] != Kind.NUMERIC.ordinal ())
+		{
+			return 0;
+		}
+		Cell cell = cells[column];
+		return (cell != null)? cell.getNumericCellValue () : numbers[column];
+	}
+
+	/** True for NUMERIC cells whose number format displays a date or time. */
+	public boolean isDate (int column)
+	{
+		if (getKind (column) != Kind.NUMERIC)
+		{
+			return false;
+		}
+		Cell cell = cells[column];
+		if (cell != null)
+		{
+			return formats.isDateFormatted (cell);
+		}
+		return formats.isDateFormat (formatIndexes[column], formatStrings[column]) &&
+		       DateUtil.isValidExcelDate (numbers[column]);
+	}
+
+	/** Display text of the cell, as DataFormatter shows it ("" for blank cells). */
+	public String getText (int column)
+	{
+		if (column >= slotCount)
+		{
+			return "";
+		}
+		String text = texts[column];
+		if (text == null)
+		{
+			Cell cell = cells[column];
+			if (cell != null)
+			{
+				text = formats.format (cell);
+			}
+			else if (kinds[column] == Kind.NUMERIC.ordinal ())
+			{
+				text = formats.formatNumber (numbers[column], formatIndexes[column], formatStrings[column]);
+			}
+			else if (kinds[column] == Kind.STRING.ordinal ())
+			{
+				text = sharedStrings.get (sharedIndexes[column]);
+			}
+			else
+			{
+				text = "";
+			}
+			texts[column] = text;
+		}
+		return text;
+	}
+
+	/**
+	 * Index of the cell's text in the shared strings table of the reader
+	 * (SheetRowReader.getSharedStrings), or -1 if the cell does not refer to it.
+	 */
+	public int getSharedStringIndex (int column)
+	{
+		if (column >= slotCount || kinds[column] != Kind.STRING.ordinal ())
+		{
+			return -1;
+		}
+		return sharedIndexes[column];
+	}
+
+	/** Display texts of columns 0 .. getCellCount () - 1. */
+	public List <String> getTexts ()
+	{
+		List <String> values = new ArrayList <> (cellCount);
+		for (int c = 0; c < cellCount; c++)
+		{
+			values.add (getText (c));
+		}
+		return values;
+	}
+
+	// === Filling (readers) ===
+
+	void reset (int rowIndex)
+	{
+		for (int c = 0; c < slotCount; c++)
+		{
+			kinds[c] = 0;
+			texts[c] = null;
+			cells[c] = null;
+			formatStrings[c] = null;
+		}
+		this.rowIndex = rowIndex;
+		this.cellCount = 0;
+		this.slotCount = 0;
+	}
+
+	void setString (int column, String text)
+	{
+		if (text == null || text.isEmpty ())
+		{
+			return;
+		}
+		slot (column, Kind.STRING);
+		texts[column] = text;
+	}
+
+	/**
+	 * Text cell referring to the shared strings table; the string is only looked up when its text
+	 * is asked for. Empty strings are ignored, like in setString.
+	 */
+	void setSharedString (int column, int index)
+	{
+		if (sharedStrings.isEmpty (index))
+		{
+			return;
+		}
+		slot (column, Kind.STRING);
+		sharedIndexes[column] = index;
+	}
+
+	void setNumber (int column, double value, int formatIndex, String formatString)
+	{
+		slot (column, Kind.NUMERIC);
+		numbers[column] = value;
+		formatIndexes[column] = formatIndex;
+		formatStrings[column] = formatString;
+	}
+
+	void setBoolean (int column, boolean value)
+	{
+		slot (column, Kind.BOOLEAN);
+		texts[column] = value? "TRUE" : "FALSE";
+	}
+
+	void setError (int column, String text)
+	{
+		slot (column, Kind.ERROR);
+		texts[column] = text;
+	}
+
+	/**
+	 * Workbook cell; blank and empty text cells are ignored. Numbers are read from the cell when
+	 * asked for, text cells are read once here.
+	 */
+	void setCell (int column, Cell cell)
+	{
+		CellType type = cell.getCellType ();
+		if (type == CellType.FORMULA)
+		{
+			type = cell.getCachedFormulaResultType ();
+		}
+		switch (type)
+		{
+			case STRING:
+				setString (column, cell.getStringCellValue ());
+				break;
+			case NUMERIC:
+				slot (column, Kind.NUMERIC);
+				cells[column] = cell;
+				break;
+			case BOOLEAN:
+				setBoolean (column, cell.getBooleanCellValue ());
+				break;
+			case ERROR:
+				slot (column, Kind.ERROR);
+				cells[column] = cell;
+				break;
+			default:
+				break;
+		}
+	}
+
+	private void slot (int column, Kind kind)
+	{
+		if (column >= kinds.length)
+		{
+			grow (column + 1);
+		}
+		// Slots between the previous last cell and this one are blank
+		for (int c = slotCount; c < column; c++)
+		{
+			kinds[c] = 0;
+			texts[c] = null;
+			cells[c] = null;
+			formatStrings[c] = null;
+		}
+		kinds[column] = (byte) kind.ordinal ();
+		texts[column] = null;
+		cells[column] = null;
+		sharedIndexes[column] = -1;
+		slotCount = Math.max (slotCount, column + 1);
+		cellCount = Math.max (cellCount, column + 1);
+	}
+
+	private void grow (int minCapacity)
+	{
+		int capacity = Math.max (minCapacity, kinds.length * 2);
+		kinds = Arrays.copyOf (kinds, capacity);
+		numbers = Arrays.copyOf (numbers, capacity);
+		formatIndexes = Arrays.copyOf (formatIndexes, capacity);
+		formatStrings = Arrays.copyOf (formatStrings, capacity);
+		texts = Arrays.copyOf (texts, capacity);
+		cells = Arrays.copyOf (cells, capacity);
+		sharedIndexes = Arrays.copyOf (sharedIndexes, capacity);
+	}
+}
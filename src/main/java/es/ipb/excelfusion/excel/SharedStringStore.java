@@ -0,0 +1,539 @@
+package es.ipb.excelfusion.excel;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.apache.poi.openxml4j.opc.PackagePart;
+import org.apache.poi.util.XMLHelper;
+import org.apache.poi.xssf.binary.XSSFBParseException;
+import org.apache.poi.xssf.binary.XSSFBParser;
+import org.apache.poi.xssf.binary.XSSFBUtils;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+
+/**
+ * Shared strings table (xl/sharedStrings.xml, or xl/sharedStrings.bin for XLSB) of a streamed
+ * file.
+ *
+ * Small tables are kept as a String array. Tables whose part is larger than the spill
+ * threshold are written as UTF-8 to a temp file while parsing, and only an offset per string
+ * stays on the heap: lookups decode from a read-only memory mapping of that file, with the most
+ * recently used strings kept in a small LRU window. The temp file is deleted on close, or on
+ * exit where it is still mapped (Windows).
+ *
+ * Cells only keep the index of their string (RowData.getSharedStringIndex), so a sink that writes
+ * UTF-8 (the PostgreSQL binary COPY) copies the bytes of a string (copyUtf8) instead of encoding
+ * it again for every cell: an in-memory table encodes each string once, on first use, and keeps
+ * the bytes; a spilled table copies them straight from its temp file.
+ *
+ * Lookups are thread-safe.
+ */
+public abstract class SharedStringStore implements Closeable
+{
+
+	/** Parts above this uncompressed size are spilled to a temp file. */
+	public static final long  DEFAULT_SPILL_THRESHOLD = 64L << 20;
+
+	/** Strings kept decoded by a spilled store. */
+	private static final int  LRU_CAPACITY			  = 16_384;
+
+	/** Mapping unit of a spilled store (a single MappedByteBuffer is limited to 2 GB). */
+	private static final long SEGMENT_SIZE			  = 1L << 30;
+
+	/** Record type of a string in a binary table (BrtSstItem). */
+	private static final int  BRT_SST_ITEM			  = 19;
+
+	public static final SharedStringStore EMPTY		  = new ArrayStore (new String[0]);
+
+	/** Number of strings in the table. */
+	public abstract int size ();
+
+	/** String at the given index (as stored in the <v> of a t="s" cell). */
+	public abstract String get (int index);
+
+	/** Length of string index in UTF-8 bytes. */
+	public abstract int utf8Length (int index);
+
+	/** Copies the UTF-8 bytes of string index (utf8Length of them) to dest at offset. */
+	public abstract void copyUtf8 (int index, byte[] dest, int offset);
+
+	/** True if string index only holds characters up to ' ' (or nothing). */
+	public abstract boolean isBlank (int index);
+
+	/** True if string index is "" (read as a blank cell). */
+	abstract boolean isEmpty (int index);
+
+	/** True when the table lives in a temp file rather than on the heap. */
+	public abstract boolean isSpilled ();
+
+	@Override
+	public void close () throws IOException
+	{
+	}
+
+	/**
+	 * Parses the shared strings part, spilling it to a temp file when its uncompressed size is
+	 * above spillThreshold (parts of unknown size are kept in memory).
+	 */
+	public static SharedStringStore load (PackagePart part, long spillThreshold) throws IOException
+	{
+		return load (part, spillThreshold, SharedStringStore::parse);
+	}
+
+	/**
+	 * Same as load, for the binary table (xl/sharedStrings.bin) of an XLSB file.
+	 */
+	public static SharedStringStore loadBinary (PackagePart part, long spillThreshold) throws IOException
+	{
+		return load (part, spillThreshold, SharedStringStore::parseBinary);
+	}
+
+	private static SharedStringStore load (PackagePart part, long spillThreshold, TableParser parser)
+	        throws IOException
+	{
+		if (part == null)
+		{
+			return EMPTY;
+		}
+		long size = part.getSize ();
+		try (InputStream in = part.getInputStream ())
+		{
+			if (size > spillThreshold)
+			{
+				FileStore store = new FileStore ();
+				try
+				{
+					parser.parse (in, store::append);
+					store.finish ();
+					return store;
+				}
+				catch (IOException | RuntimeException e)
+				{
+					store.close ();
+					throw e;
+				}
+			}
+			List <String> strings = new ArrayList <> ();
+			parser.parse (in, strings::add);
+			return new ArrayStore (strings.toArray (new String[0]));
+		}
+	}
+
+	private interface StringSink
+	{
+		void accept (String value) throws IOException;
+	}
+
+	private interface TableParser
+	{
+		void parse (InputStream in, StringSink sink) throws IOException;
+	}
+
+	private static void parse (InputStream in, StringSink sink) throws IOException
+	{
+		try
+		{
+			XMLReader reader = XMLHelper.newXMLReader ();
+			reader.setContentHandler (new TableHandler (sink));
+			reader.parse (new InputSource (in));
+		}
+		catch (ParserConfigurationException e)
+		{
+			throw new IOException ("Cannot create XML parser", e);
+		}
+		catch (SAXException e)
+		{
+			if (e.getCause () instanceof IOException)
+			{
+				throw (IOException) e.getCause ();
+			}
+			throw new IOException ("Invalid shared strings table: " + e.getMessage (), e);
+		}
+	}
+
+	private static void parseBinary (InputStream in, StringSink sink) throws IOException
+	{
+		StringBuilder text = new StringBuilder ();
+		XSSFBParser parser = new XSSFBParser (in)
+		{
+			@Override
+			public void handleRecord (int recordType, byte[] data)
+			{
+				if (recordType != BRT_SST_ITEM)
+				{
+					return;
+				}
+				// RichStr: a flags byte, then the text (formatting runs and phonetic text follow it)
+				text.setLength (0);
+				XSSFBUtils.readXLWideString (data, 1, text);
+				try
+				{
+					sink.accept (OoxmlText.decodeEscapes (text.toString ()));
+				}
+				catch (IOException e)
+				{
+					throw new UncheckedIOException (e);
+				}
+			}
+		};
+		try
+		{
+			parser.parse ();
+		}
+		catch (UncheckedIOException e)
+		{
+			throw e.getCause ();
+		}
+		catch (XSSFBParseException e)
+		{
+			throw new IOException ("Invalid shared strings table: " + e.getMessage (), e);
+		}
+	}
+
+	/**
+	 * Collects the text of every <si>: plain <t> or the runs of rich text, without phonetic runs,
+	 * with _xHHHH_ escapes decoded.
+	 */
+	private static final class TableHandler extends DefaultHandler
+	{
+		private final StringSink	sink;
+		private final StringBuilder text = new StringBuilder ();
+		private boolean				inItem;
+		private boolean				inText;
+		private int					phoneticDepth;
+
+		TableHandler (StringSink sink)
+		{
+			this.sink = sink;
+		}
+
+		@Override
+		public void startElement (String uri, String localName, String qName, Attributes attributes)
+		{
+			switch (localName)
+			{
+				case "si":
+					inItem = true;
+					text.setLength (0);
+					break;
+				case "rPh":
+					phoneticDepth++;
+					break;
+				case "t":
+					inText = inItem && phoneticDepth == 0;
+					break;
+				default:
+					break;
+			}
+		}
+
+		@Override
+		public void endElement (String uri, String localName, String qName) throws SAXException
+		{
+			switch (localName)
+			{
+				case "si":
+					inItem = false;
+					try
+					{
+						sink.accept (OoxmlText.decodeEscapes (text.toString ()));
+					}
+					catch (IOException e)
+					{
+						throw new SAXException (e);
+					}
+					break;
+				case "rPh":
+					phoneticDepth--;
+					break;
+				case "t":
+					inText = false;
+					break;
+				default:
+					break;
+			}
+		}
+
+		@Override
+		public void characters (char[] ch, int start, int length)
+		{
+			if (inText)
+			{
+				text.append (ch, start, length);
+			}
+		}
+	}
+
+	private static final class ArrayStore extends SharedStringStore
+	{
+		private final String[]					 strings;
+		private final AtomicReferenceArray <byte[]> utf8;
+
+		ArrayStore (String[] strings)
+		{
+			this.strings = strings;
+			this.utf8 = new AtomicReferenceArray <> (strings.length);
+		}
+
+		@Override
+		public int size ()
+		{
+			return strings.length;
+		}
+
+		@Override
+		public String get (int index)
+		{
+			return strings[index];
+		}
+
+		@Override
+		public int utf8Length (int index)
+		{
+			return utf8 (index).length;
+		}
+
+		@Override
+		public void copyUtf8 (int index, byte[] dest, int offset)
+		{
+			byte[] bytes = utf8 (index);
+			System.arraycopy (bytes, 0, dest, offset, bytes.length);
+		}
+
+		@Override
+		public boolean isBlank (int index)
+		{
+			String value = strings[index];
+			for (int i = 0, n = value.length (); i < n; i++)
+			{
+				if (value.charAt (i) > ' ')
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private byte[] utf8 (int index)
+		{
+			byte[] bytes = utf8.get (index);
+			if (bytes == null)
+			{
+				// Racing threads encode the same bytes; either copy may stay
+				bytes = strings[index].getBytes (StandardCharsets.UTF_8);
+				utf8.set (index, bytes);
+			}
+			return bytes;
+		}
+
+		@Override
+		boolean isEmpty (int index)
+		{
+			return strings[index].isEmpty ();
+		}
+
+		@Override
+		public boolean isSpilled ()
+		{
+			return false;
+		}
+	}
+
+	private static final class FileStore extends SharedStringStore
+	{
+		private final File						   file;
+		private OutputStream					   out;
+		private long							   position;
+		/** Start of string i; offsets[count] is the end of the last string. */
+		private long[]							   offsets = new long[1024];
+		private int								   count;
+		private MappedByteBuffer[]				   segments;
+		private final Map <Integer, String>		   recent  = new LinkedHashMap <Integer, String> (LRU_CAPACITY, 0.75f, true)
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry (Map.Entry <Integer, String> eldest)
+			{
+				return size () > LRU_CAPACITY;
+			}
+		};
+
+		FileStore () throws IOException
+		{
+			this.file = File.createTempFile ("excelfusion-sst", ".tmp");
+			this.file.deleteOnExit ();
+			this.out = new BufferedOutputStream (Files.newOutputStream (file.toPath ()), 1 << 16);
+		}
+
+		void append (String value) throws IOException
+		{
+			byte[] bytes = value.getBytes (StandardCharsets.UTF_8);
+			if (count + 1 >= offsets.length)
+			{
+				offsets = Arrays.copyOf (offsets, offsets.length * 2);
+			}
+			offsets[count++] = position;
+			out.write (bytes);
+			position += bytes.length;
+			offsets[count] = position;
+		}
+
+		void finish () throws IOException
+		{
+			out.close ();
+			out = null;
+			int segmentCount = (int) ((position + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+			segments = new MappedByteBuffer[segmentCount];
+			try (FileChannel channel = FileChannel.open (file.toPath (), StandardOpenOption.READ))
+			{
+				for (int s = 0; s < segmentCount; s++)
+				{
+					long start = s * SEGMENT_SIZE;
+					segments[s] = channel.map (FileChannel.MapMode.READ_ONLY, start,
+					                           Math.min (SEGMENT_SIZE, position - start));
+				}
+			}
+		}
+
+		@Override
+		public int size ()
+		{
+			return count;
+		}
+
+		@Override
+		public String get (int index)
+		{
+			if (index < 0 || index >= count)
+			{
+				throw new IndexOutOfBoundsException ("Shared string " + index + " of " + count);
+			}
+			synchronized (recent)
+			{
+				String cached = recent.get (index);
+				if (cached != null)
+				{
+					return cached;
+				}
+			}
+			byte[] bytes = new byte[utf8Length (index)];
+			copyUtf8 (index, bytes, 0);
+			String value = new String (bytes, StandardCharsets.UTF_8);
+			synchronized (recent)
+			{
+				recent.put (index, value);
+			}
+			return value;
+		}
+
+		@Override
+		public int utf8Length (int index)
+		{
+			if (index < 0 || index >= count)
+			{
+				throw new IndexOutOfBoundsException ("Shared string " + index + " of " + count);
+			}
+			return (int) (offsets[index + 1] - offsets[index]);
+		}
+
+		@Override
+		public void copyUtf8 (int index, byte[] dest, int offset)
+		{
+			long start = offsets[index];
+			int length = utf8Length (index);
+			int copied = 0;
+			while (copied < length)
+			{
+				// A string may straddle two segments
+				long at = start + copied;
+				MappedByteBuffer segment = segments[(int) (at / SEGMENT_SIZE)];
+				int from = (int) (at % SEGMENT_SIZE);
+				int chunk = Math.min (length - copied, segment.capacity () - from);
+				segment.get (from, dest, offset + copied, chunk);
+				copied += chunk;
+			}
+		}
+
+		@Override
+		public boolean isBlank (int index)
+		{
+			long end = offsets[index] + utf8Length (index);
+			for (long at = offsets[index]; at < end; at++)
+			{
+				// Bytes of a multi-byte character are all above 0x7F
+				if ((segments[(int) (at / SEGMENT_SIZE)].get ((int) (at % SEGMENT_SIZE)) & 0xFF) > ' ')
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		boolean isEmpty (int index)
+		{
+			if (index < 0 || index >= count)
+			{
+				throw new IndexOutOfBoundsException ("Shared string " + index + " of " + count);
+			}
+			return offsets[index + 1] == offsets[index];
+		}
+
+		@Override
+		public boolean isSpilled ()
+		{
+			return true;
+		}
+
+		/** Never fails: a file that cannot be deleted now is deleted on exit. */
+		@Override
+		public void close ()
+		{
+			if (out != null)
+			{
+				try
+				{
+					out.close ();
+				}
+				catch (IOException e)
+				{
+					// The file is thrown away below
+				}
+				out = null;
+			}
+			segments = null;
+			synchronized (recent)
+			{
+				recent.clear ();
+			}
+			// The mappings are only released when collected, and Windows does not delete a mapped file
+			if (!file.delete ())
+			{
+				file.deleteOnExit ();
+			}
+		}
+	}
+}
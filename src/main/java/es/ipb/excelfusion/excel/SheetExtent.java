@@ -0,0 +1,77 @@
+package es.ipb.excelfusion.excel;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellType;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+
+
+/**
+ * Real row/column extent of a sheet, based on cells that hold a value.
+ *
+ * Sheets where whole columns or rows were once formatted report getLastRowNum () near 1,048,575
+ * and getLastCellNum () in the thousands, because every styled blank cell is stored. Looping up
+ * to those bounds is what makes such files slow; these helpers find the last cell that actually
+ * has content instead, visiting only the cells present in the file.
+ */
+public final class SheetExtent
+{
+
+	private SheetExtent ()
+	{
+	}
+
+	/**
+	 * Index (0-based) of the last row with at least one non-blank cell, or -1 if there is none.
+	 */
+	public static int lastPopulatedRow (Sheet sheet)
+	{
+		for (int r = sheet.getLastRowNum (); r >= sheet.getFirstRowNum () && r >= 0; r--)
+		{
+			Row row = sheet.getRow (r);
+			if (row != null && populatedCellCount (row) > 0)
+			{
+				return r;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Number of columns up to and including the last non-blank cell of the row (0 if the row is
+	 * null or only holds blank cells). Trailing styled blank cells are ignored.
+	 */
+	public static int populatedCellCount (Row row)
+	{
+		if (row == null)
+		{
+			return 0;
+		}
+		int count = 0;
+		for (Cell cell : row)
+		{
+			if (!isBlank (cell))
+			{
+				count = Math.max (count, cell.getColumnIndex () + 1);
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * True for BLANK cells and empty text cells.
+	 */
+	public static boolean isBlank (Cell cell)
+	{
+		if (cell == null)
+		{
+			return true;
+		}
+		CellType type = cell.getCellType ();
+		if (type == CellType.BLANK)
+		{
+			return true;
+		}
+		return type == CellType.STRING && cell.getStringCellValue ().isEmpty ();
+	}
+}
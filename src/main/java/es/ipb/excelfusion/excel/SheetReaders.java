@@ -0,0 +1,159 @@
+package es.ipb.excelfusion.excel;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+
+/**
+ * Chooses the SheetRowReader for a file.
+ *
+ * XLSX/XLSM files are streamed (XlsxStreamingReader): a loaded XSSF workbook takes a few hundred
+ * times its file size in heap, and building it is slower than reading the XML directly. XLSB
+ * files are streamed record by record (XlsbStreamingReader); POI has no workbook model for them,
+ * so their formulas cannot be recalculated. CSV/TSV files are read as one sheet of text
+ * (CsvSheetReader). XLS files are loaded as a workbook (WorkbookSheetReader), as are XLSX/XLS
+ * files whose formulas must be recalculated (openWorkbook).
+ *
+ * Every reader reserves its estimated heap (HeapEstimate) from the MemoryGovernor until it is
+ * closed, waiting while other open files hold the budget (or failing at once with
+ * MemoryBusyException, for callers on the UI thread). Workbooks that would not fit in the
+ * budget even alone are not loaded: callers check fitsInMemory and stream instead, and XLS files,
+ * which can only be loaded, are refused with an IOException rather than an OutOfMemoryError.
+ */
+public final class SheetReaders
+{
+
+	private SheetReaders ()
+	{
+	}
+
+	public static SheetRowReader open (File file) throws IOException
+	{
+		return open (file, true);
+	}
+
+	/**
+	 * @param wait false to fail with MemoryBusyException instead of waiting for memory held by
+	 *            other open readers (callers on the UI thread)
+	 */
+	public static SheetRowReader open (File file, boolean wait) throws IOException
+	{
+		HeapEstimate estimate = HeapEstimate.of (file, SharedStringStore.DEFAULT_SPILL_THRESHOLD);
+		if (isXlsx (file))
+		{
+			return admit (file, estimate.streamingBytes, wait,
+			              r -> new XlsxStreamingReader (file, SharedStringStore.DEFAULT_SPILL_THRESHOLD, r));
+		}
+		if (isXlsb (file))
+		{
+			return admit (file, estimate.streamingBytes, wait,
+			              r -> new XlsbStreamingReader (file, SharedStringStore.DEFAULT_SPILL_THRESHOLD, r));
+		}
+		if (isDelimitedText (file))
+		{
+			return admit (file, estimate.streamingBytes, wait, r -> new CsvSheetReader (file, r));
+		}
+		checkFits (file, estimate.workbookBytes);
+		return admit (file, estimate.workbookBytes, wait, r -> new WorkbookSheetReader (file, r));
+	}
+
+	/** Workbook reader, needed for formula evaluation. Check fitsInMemory first. */
+	public static WorkbookSheetReader openWorkbook (File file) throws IOException
+	{
+		return openWorkbook (file, true);
+	}
+
+	/**
+	 * @param wait false to fail with MemoryBusyException instead of waiting (see open)
+	 */
+	public static WorkbookSheetReader openWorkbook (File file, boolean wait) throws IOException
+	{
+		HeapEstimate estimate = HeapEstimate.of (file, SharedStringStore.DEFAULT_SPILL_THRESHOLD);
+		checkFits (file, estimate.workbookBytes);
+		return admit (file, estimate.workbookBytes, wait, r -> new WorkbookSheetReader (file, r));
+	}
+
+	/** True if the file, loaded as a workbook, is estimated to fit in the reader memory budget. */
+	public static boolean fitsInMemory (File file)
+	{
+		return workbookHeapEstimate (file) <= MemoryGovernor.shared ().getBudget ();
+	}
+
+	/** Estimated heap of the file loaded as a workbook, in bytes (Long.MAX_VALUE if it cannot be). */
+	public static long workbookHeapEstimate (File file)
+	{
+		return HeapEstimate.of (file, SharedStringStore.DEFAULT_SPILL_THRESHOLD).workbookBytes;
+	}
+
+	/**
+	 * False for files openWorkbook cannot load: XLSB (only their cached results can be read) and
+	 * delimited text (no formulas).
+	 */
+	public static boolean canEvaluateFormulas (File file)
+	{
+		return !isXlsb (file) && !isDelimitedText (file);
+	}
+
+	static boolean isXlsx (File file)
+	{
+		String name = file.getName ().toLowerCase (Locale.ROOT);
+		return name.endsWith (".xlsx") || name.endsWith (".xlsm");
+	}
+
+	static boolean isXlsb (File file)
+	{
+		return file.getName ().toLowerCase (Locale.ROOT).endsWith (".xlsb");
+	}
+
+	static boolean isDelimitedText (File file)
+	{
+		String name = file.getName ().toLowerCase (Locale.ROOT);
+		return name.endsWith (".csv") || name.endsWith (".tsv");
+	}
+
+	private interface ReaderFactory <T extends SheetRowReader>
+	{
+		T open (MemoryGovernor.Reservation reservation) throws IOException;
+	}
+
+	/** Reserves bytes for the reader, for as long as it stays open. */
+	private static <T extends SheetRowReader> T admit (File file, long bytes, boolean wait, ReaderFactory <T> factory)
+	        throws IOException
+	{
+		MemoryGovernor governor = MemoryGovernor.shared ();
+		MemoryGovernor.Reservation reservation = wait? governor.reserve (bytes, file.getName ())
+		                                             : governor.tryReserve (bytes);
+		if (reservation == null)
+		{
+			throw new MemoryBusyException ("Not enough memory to open " + file.getName () + " now: it needs about " +
+			                               MemoryGovernor.toMb (bytes) + " MB and files being read hold " +
+			                               MemoryGovernor.toMb (governor.getReserved ()) + " of " +
+			                               MemoryGovernor.toMb (governor.getBudget ()) + " MB. Try again later.");
+		}
+		try
+		{
+			return factory.open (reservation);
+		}
+		catch (IOException | RuntimeException | Error e)
+		{
+			reservation.close ();
+			throw e;
+		}
+	}
+
+	private static void checkFits (File file, long workbookBytes) throws IOException
+	{
+		if (workbookBytes == Long.MAX_VALUE)
+		{
+			throw new IOException (file.getName () + " cannot be loaded as a workbook");
+		}
+		long budget = MemoryGovernor.shared ().getBudget ();
+		if (workbookBytes > budget)
+		{
+			throw new IOException (file.getName () + " is too large to load: it needs about " +
+			                       MemoryGovernor.toMb (workbookBytes) + " MB of heap and the reader budget is " +
+			                       MemoryGovernor.toMb (budget) + " MB (raise -Xmx)");
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package es.ipb.excelfusion.excel;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Read access to the rows of a spreadsheet file, independent of how the file is parsed.
+ *
+ * Obtain instances through SheetReaders, which picks the implementation for the file.
+ */
+public interface SheetRowReader extends Closeable
+{
+
+	/** Sheet names in workbook order. */
+	List <String> getSheetNames ();
+
+	/**
+	 * Opens a cursor over the rows of a sheet, starting at firstRow (0-based). Only rows present in
+	 * the file are returned, in ascending order; row indexes may have gaps.
+	 */
+	RowCursor openSheet (String sheetName, int firstRow) throws IOException;
+
+	/**
+	 * True if cursors over different sheets may be opened and read from different threads at
+	 * the same time.
+	 */
+	default boolean supportsConcurrentSheets ()
+	{
+		return false;
+	}
+
+	/**
+	 * Shared strings table that RowData.getSharedStringIndex refers to; null if the reader has
+	 * none (cells then always carry their text).
+	 */
+	default SharedStringStore getSharedStrings ()
+	{
+		return null;
+	}
+
+	/**
+	 * Display texts of one row up to its last non-blank cell (empty if the row has no values).
+	 */
+	default List <String> readRowTexts (String sheetName, int rowIndex) throws IOException
+	{
+		try (RowCursor cursor = openSheet (sheetName, rowIndex))
+		{
+			if (cursor.next () && cursor.getRow ().getRowIndex () == rowIndex)
+			{
+				return cursor.getRow ().getTexts ();
+			}
+			return new ArrayList <> ();
+		}
+	}
+}
@@ -0,0 +1,1068 @@
+package es.ipb.excelfusion.excel;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+
+/**
+ * Byte-level scanner for the <sheetData> of a worksheet part, working directly on the inflated
+ * bytes of the zip entry.
+ *
+ * Only the markup Excel and the usual generators write is recognized: <row r>, <c r t s>, <v>,
+ * <f> and inline strings (<is>). Cell references, style and shared string indexes are parsed
+ * from the bytes in place and numbers are converted without an intermediate String, so a
+ * numeric or shared-string cell allocates nothing. Anything else inside <sheetData> (namespace
+ * prefixes, CDATA, DOCTYPE, non UTF-8 encodings, unknown elements) raises
+ * UnsupportedMarkupException, and the caller continues with the StAX parser.
+ */
+final class SheetXmlScanner implements Closeable
+{
+
+	/**
+	 * Markup outside what the scanner handles; rows already returned are valid.
+	 */
+	static final class UnsupportedMarkupException extends IOException
+	{
+		private static final long serialVersionUID = 1L;
+
+		UnsupportedMarkupException (String message)
+		{
+			super (message);
+		}
+	}
+
+	/** Exactly representable powers of ten (Clinger's fast path). */
+	private static final double[] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+	                                               1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21,
+	                                               1e22 };
+
+	/** Mantissas below 2^53 are exact doubles. */
+	private static final long	  MAX_EXACT_MANTISSA = 1L << 53;
+
+	private static final byte[]	  SHEET_DATA		 = bytes ("sheetData");
+	private static final byte[]	  ROW				 = bytes ("row");
+	private static final byte[]	  CELL				 = bytes ("c");
+	private static final byte[]	  VALUE				 = bytes ("v");
+	private static final byte[]	  FORMULA			 = bytes ("f");
+	private static final byte[]	  INLINE_STRING		 = bytes ("is");
+	private static final byte[]	  TEXT				 = bytes ("t");
+	private static final byte[]	  PHONETIC_RUN		 = bytes ("rPh");
+	private static final byte[]	  ROW_END			 = bytes ("</row>");
+	private static final byte[]	  COMMENT_END		 = bytes ("-->");
+	private static final byte[]	  PI_END			 = bytes ("?>");
+
+	/** Cell types (t attribute). */
+	private static final int	  TYPE_NUMBER		 = 0;
+	private static final int	  TYPE_SHARED		 = 1;
+	private static final int	  TYPE_INLINE		 = 2;
+	private static final int	  TYPE_FORMULA_TEXT	 = 3;
+	private static final int	  TYPE_BOOLEAN		 = 4;
+	private static final int	  TYPE_ERROR		 = 5;
+	private static final int	  TYPE_UNKNOWN		 = 6;
+
+	private final InputStream	  in;
+	private final RowData		  row;
+	private final XlsxStreamingReader reader;
+
+	private byte[]				  buffer			 = new byte[1 << 16];
+	private int					  pos;
+	private int					  limit;
+	private boolean				  endOfStream;
+
+	private boolean				  inSheetData;
+	private boolean				  done;
+	private int					  lastRowIndex		 = -1;
+
+	/** Attribute value positions of the current tag (start, end), -1 when absent. */
+	private int					  refStart, refEnd, typeStart, typeEnd, styleStart, styleEnd;
+
+	/** Decoded text scratch. */
+	private byte[]				  text				 = new byte[256];
+	private int					  textLength;
+
+	SheetXmlScanner (InputStream in, RowData row, XlsxStreamingReader reader)
+	{
+		this.in = in;
+		this.row = row;
+		this.reader = reader;
+	}
+
+	RowData getRow ()
+	{
+		return row;
+	}
+
+	/**
+	 * Reads the next row at or after firstRow into getRow ().
+	 *
+	 * @return false at the end of the sheet data
+	 */
+	boolean next (int firstRow) throws IOException
+	{
+		if (done)
+		{
+			return false;
+		}
+		if (!inSheetData)
+		{
+			seekSheetData ();
+			if (done)
+			{
+				return false;
+			}
+		}
+
+		while (true)
+		{
+			int tagEnd = nextTag ();
+			if (tagEnd < 0)
+			{
+				throw new UnsupportedMarkupException ("Unexpected end of sheet data");
+			}
+			if (buffer[pos + 1] == '/')
+			{
+				if (nameIs (pos + 2, tagEnd, SHEET_DATA))
+				{
+					done = true;
+					return false;
+				}
+				throw unsupported ("end tag");
+			}
+			if (!nameIs (pos + 1, tagEnd, ROW))
+			{
+				throw unsupported ("element");
+			}
+
+			readAttributes (pos + 1 + ROW.length, tagEnd);
+			boolean empty = buffer[tagEnd - 1] == '/';
+			int rowIndex = (refStart >= 0)? parseIndex (refStart, refEnd) - 1 : lastRowIndex + 1;
+			lastRowIndex = rowIndex;
+			pos = tagEnd + 1;
+
+			if (rowIndex < firstRow)
+			{
+				if (!empty)
+				{
+					skipPast (ROW_END);
+				}
+				continue;
+			}
+
+			row.reset (rowIndex);
+			if (!empty)
+			{
+				readCells ();
+			}
+			return true;
+		}
+	}
+
+	@Override
+	public void close () throws IOException
+	{
+		done = true;
+		in.close ();
+	}
+
+	// === Structure ===
+
+	private void seekSheetData () throws IOException
+	{
+		checkEncoding ();
+		while (true)
+		{
+			int tagEnd = nextTag ();
+			if (tagEnd < 0)
+			{
+				// No unprefixed <sheetData>: let the namespace-aware parser deal with it
+				throw new UnsupportedMarkupException ("No <sheetData> element");
+			}
+			if (nameIs (pos + 1, tagEnd, SHEET_DATA))
+			{
+				inSheetData = true;
+				done = buffer[tagEnd - 1] == '/';
+				pos = tagEnd + 1;
+				return;
+			}
+			pos = tagEnd + 1;
+		}
+	}
+
+	/** Cells of the current row, up to and including </row>. */
+	private void readCells () throws IOException
+	{
+		int column = -1;
+		while (true)
+		{
+			int tagEnd = nextTag ();
+			if (tagEnd < 0)
+			{
+				throw new UnsupportedMarkupException ("Unexpected end of row");
+			}
+			if (buffer[pos + 1] == '/')
+			{
+				if (nameIs (pos + 2, tagEnd, ROW))
+				{
+					pos = tagEnd + 1;
+					return;
+				}
+				throw unsupported ("end tag");
+			}
+			if (!nameIs (pos + 1, tagEnd, CELL))
+			{
+				throw unsupported ("element");
+			}
+
+			readAttributes (pos + 1 + CELL.length, tagEnd);
+			int referenced = (refStart >= 0)? parseColumn (refStart, refEnd) : -1;
+			column = (referenced >= 0)? referenced : column + 1;
+			int type = cellType ();
+			int style = (styleStart >= 0)? parseIndex (styleStart, styleEnd) : 0;
+			boolean empty = buffer[tagEnd - 1] == '/';
+			pos = tagEnd + 1;
+			if (!empty)
+			{
+				readCell (column, type, style);
+			}
+		}
+	}
+
+	/** Content of the current <c>, up to and including </c>. */
+	private void readCell (int column, int type, int style) throws IOException
+	{
+		boolean formula = false;
+		boolean hasValue = false;
+		double number = 0;
+		int index = 0;
+		String value = null;
+
+		while (true)
+		{
+			int tagEnd = nextTag ();
+			if (tagEnd < 0)
+			{
+				throw new UnsupportedMarkupException ("Unexpected end of cell");
+			}
+			boolean empty = buffer[tagEnd - 1] == '/';
+			if (buffer[pos + 1] == '/')
+			{
+				if (!nameIs (pos + 2, tagEnd, CELL))
+				{
+					throw unsupported ("end tag");
+				}
+				pos = tagEnd + 1;
+				break;
+			}
+			if (nameIs (pos + 1, tagEnd, VALUE))
+			{
+				pos = tagEnd + 1;
+				if (empty)
+				{
+					continue;
+				}
+				int end = contentEnd (VALUE);
+				if (end > pos)
+				{
+					hasValue = true;
+					switch (type)
+					{
+						case TYPE_NUMBER:
+							number = parseNumber (pos, end);
+							break;
+						case TYPE_SHARED:
+							index = parseIndex (pos, end);
+							break;
+						default:
+							value = decodeText (pos, end);
+							break;
+					}
+				}
+				pos = end + 3 + VALUE.length;
+			}
+			else if (nameIs (pos + 1, tagEnd, FORMULA))
+			{
+				formula = true;
+				pos = tagEnd + 1;
+				if (!empty)
+				{
+					pos = contentEnd (FORMULA) + 3 + FORMULA.length;
+				}
+			}
+			else if (nameIs (pos + 1, tagEnd, INLINE_STRING))
+			{
+				pos = tagEnd + 1;
+				value = empty? "" : readInlineString ();
+				hasValue = true;
+			}
+			else
+			{
+				throw unsupported ("cell element");
+			}
+		}
+
+		switch (type)
+		{
+			case TYPE_NUMBER:
+				if (hasValue)
+				{
+					reader.storeNumber (row, column, number, style);
+				}
+				else if (formula)
+				{
+					// A formula without cached result reads as 0, as in the workbook reader
+					reader.storeNumber (row, column, 0, style);
+				}
+				break;
+			case TYPE_SHARED:
+				if (hasValue)
+				{
+					row.setSharedString (column, index);
+				}
+				break;
+			case TYPE_INLINE:
+			case TYPE_FORMULA_TEXT:
+				row.setString (column, value);
+				break;
+			case TYPE_BOOLEAN:
+				if (hasValue)
+				{
+					row.setBoolean (column, "1".equals (value) || "true".equalsIgnoreCase (value));
+				}
+				break;
+			case TYPE_ERROR:
+				if (hasValue)
+				{
+					row.setError (column, value);
+				}
+				break;
+			default:
+				break;
+		}
+	}
+
+	/** Text of an <is> element (its <t> runs, without phonetic runs), up to and including </is>. */
+	private String readInlineString () throws IOException
+	{
+		StringBuilder result = new StringBuilder ();
+		int phoneticDepth = 0;
+		while (true)
+		{
+			int tagEnd = nextTag ();
+			if (tagEnd < 0)
+			{
+				throw new UnsupportedMarkupException ("Unexpected end of inline string");
+			}
+			boolean empty = buffer[tagEnd - 1] == '/';
+			if (buffer[pos + 1] == '/')
+			{
+				if (nameIs (pos + 2, tagEnd, INLINE_STRING))
+				{
+					pos = tagEnd + 1;
+					return result.toString ();
+				}
+				if (nameIs (pos + 2, tagEnd, PHONETIC_RUN))
+				{
+					phoneticDepth--;
+				}
+				pos = tagEnd + 1;
+				continue;
+			}
+			if (nameIs (pos + 1, tagEnd, TEXT) && !empty)
+			{
+				pos = tagEnd + 1;
+				int end = contentEnd (TEXT);
+				if (phoneticDepth == 0)
+				{
+					result.append (decodeText (pos, end));
+				}
+				pos = end + 3 + TEXT.length;
+				continue;
+			}
+			if (nameIs (pos + 1, tagEnd, PHONETIC_RUN) && !empty)
+			{
+				phoneticDepth++;
+			}
+			// Run properties and other formatting elements carry no text
+			pos = tagEnd + 1;
+		}
+	}
+
+	// === Tokens ===
+
+	/**
+	 * Moves pos to the next element tag (skipping text, comments and processing instructions)
+	 * and returns the index of its closing '>', or -1 at the end of the stream.
+	 */
+	private int nextTag () throws IOException
+	{
+		while (true)
+		{
+			int lt = find ((byte) '<', 0);
+			if (lt < 0)
+			{
+				return -1;
+			}
+			pos += lt;
+			if (!ensure (2))
+			{
+				return -1;
+			}
+			byte next = buffer[pos + 1];
+			if (next == '!')
+			{
+				if (ensure (4) && buffer[pos + 2] == '-' && buffer[pos + 3] == '-')
+				{
+					skipPast (COMMENT_END);
+					continue;
+				}
+				if (inSheetData)
+				{
+					throw unsupported ("CDATA or declaration");
+				}
+				// DOCTYPE and the like before <sheetData>
+				throw new UnsupportedMarkupException ("Markup declaration");
+			}
+			if (next == '?')
+			{
+				skipPast (PI_END);
+				continue;
+			}
+			int gt = find ((byte) '>', 1);
+			if (gt < 0)
+			{
+				return -1;
+			}
+			int tagEnd = pos + gt;
+			if (inSheetData && hasPrefix (pos + 1, tagEnd))
+			{
+				throw unsupported ("prefixed element");
+			}
+			return tagEnd;
+		}
+	}
+
+	/** True if the tag name starting at start is exactly name. */
+	private boolean nameIs (int start, int tagEnd, byte[] name)
+	{
+		if (start + name.length > tagEnd)
+		{
+			return false;
+		}
+		for (int i = 0; i < name.length; i++)
+		{
+			if (buffer[start + i] != name[i])
+			{
+				return false;
+			}
+		}
+		byte after = buffer[start + name.length];
+		return after == '>' || after == '/' || after == ' ' || after == '\t' || after == '\n' || after == '\r';
+	}
+
+	private boolean hasPrefix (int start, int tagEnd)
+	{
+		for (int i = (buffer[start] == '/')? start + 1 : start; i < tagEnd; i++)
+		{
+			byte b = buffer[i];
+			if (b == ':')
+			{
+				return true;
+			}
+			if (b == '>' || b == '/' || b == ' ' || b == '\t' || b == '\n' || b == '\r')
+			{
+				return false;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Records the positions of the r, t and s attribute values of the tag whose name ends at
+	 * start.
+	 */
+	private void readAttributes (int start, int tagEnd) throws UnsupportedMarkupException
+	{
+		refStart = typeStart = styleStart = -1;
+		int i = start;
+		while (true)
+		{
+			while (i < tagEnd && isWhitespace (buffer[i]))
+			{
+				i++;
+			}
+			if (i >= tagEnd || buffer[i] == '/')
+			{
+				return;
+			}
+			int nameStart = i;
+			while (i < tagEnd && buffer[i] != '=' && !isWhitespace (buffer[i]))
+			{
+				i++;
+			}
+			int nameLength = i - nameStart;
+			while (i < tagEnd && isWhitespace (buffer[i]))
+			{
+				i++;
+			}
+			if (i >= tagEnd || buffer[i] != '=')
+			{
+				throw unsupported ("attribute");
+			}
+			i++;
+			while (i < tagEnd && isWhitespace (buffer[i]))
+			{
+				i++;
+			}
+			if (i >= tagEnd || (buffer[i] != '"' && buffer[i] != '\''))
+			{
+				throw unsupported ("attribute");
+			}
+			byte quote = buffer[i++];
+			int valueStart = i;
+			while (i < tagEnd && buffer[i] != quote)
+			{
+				i++;
+			}
+			if (i >= tagEnd)
+			{
+				throw unsupported ("attribute");
+			}
+			int valueEnd = i++;
+
+			if (nameLength == 1)
+			{
+				switch (buffer[nameStart])
+				{
+					case 'r':
+						refStart = valueStart;
+						refEnd = valueEnd;
+						break;
+					case 't':
+						typeStart = valueStart;
+						typeEnd = valueEnd;
+						break;
+					case 's':
+						styleStart = valueStart;
+						styleEnd = valueEnd;
+						break;
+					default:
+						break;
+				}
+			}
+		}
+	}
+
+	private int cellType ()
+	{
+		if (typeStart < 0)
+		{
+			return TYPE_NUMBER;
+		}
+		int length = typeEnd - typeStart;
+		byte first = buffer[typeStart];
+		if (length == 1)
+		{
+			switch (first)
+			{
+				case 'n':
+					return TYPE_NUMBER;
+				case 's':
+					return TYPE_SHARED;
+				case 'b':
+					return TYPE_BOOLEAN;
+				case 'e':
+					return TYPE_ERROR;
+				case 'd':
+					return TYPE_FORMULA_TEXT;
+				default:
+					return TYPE_UNKNOWN;
+			}
+		}
+		if (length == 3 && first == 's' && buffer[typeStart + 1] == 't' && buffer[typeStart + 2] == 'r')
+		{
+			return TYPE_FORMULA_TEXT;
+		}
+		if (length == 9 && first == 'i' && buffer[typeStart + 6] == 'S')
+		{
+			return TYPE_INLINE;
+		}
+		return TYPE_UNKNOWN;
+	}
+
+	/**
+	 * Index of the '<' ending the text content of the current element, which must be followed by
+	 * its end tag.
+	 */
+	private int contentEnd (byte[] name) throws IOException
+	{
+		int lt = find ((byte) '<', 0);
+		if (lt < 0 || !ensure (lt + 3 + name.length))
+		{
+			throw new UnsupportedMarkupException ("Unexpected end of element");
+		}
+		int end = pos + lt;
+		if (buffer[end + 1] != '/' || buffer[end + 2 + name.length] != '>')
+		{
+			throw unsupported ("content");
+		}
+		for (int i = 0; i < name.length; i++)
+		{
+			if (buffer[end + 2 + i] != name[i])
+			{
+				throw unsupported ("content");
+			}
+		}
+		return end;
+	}
+
+	private void skipPast (byte[] marker) throws IOException
+	{
+		int scanned = 0;
+		while (true)
+		{
+			int at = find (marker[0], scanned);
+			if (at < 0 || !ensure (at + marker.length))
+			{
+				throw new UnsupportedMarkupException ("Unexpected end of part");
+			}
+			boolean match = true;
+			for (int i = 1; i < marker.length; i++)
+			{
+				if (buffer[pos + at + i] != marker[i])
+				{
+					match = false;
+					break;
+				}
+			}
+			if (match)
+			{
+				pos += at + marker.length;
+				return;
+			}
+			scanned = at + 1;
+		}
+	}
+
+	// === Values ===
+
+	/** 1-based row number of a row reference, or the digits of a cell reference. */
+	private int parseIndex (int start, int end) throws UnsupportedMarkupException
+	{
+		int value = 0;
+		int i = start;
+		while (i < end && buffer[i] >= 'A' && buffer[i] <= 'Z')
+		{
+			i++;
+		}
+		if (i == end)
+		{
+			throw unsupported ("number");
+		}
+		for (; i < end; i++)
+		{
+			int digit = buffer[i] - '0';
+			if (digit < 0 || digit > 9 || value > (Integer.MAX_VALUE - digit) / 10)
+			{
+				throw unsupported ("number");
+			}
+			value = value * 10 + digit;
+		}
+		return value;
+	}
+
+	/** 0-based column of a reference such as "AB12", or -1 without column letters. */
+	private int parseColumn (int start, int end)
+	{
+		int column = 0;
+		for (int i = start; i < end; i++)
+		{
+			byte b = buffer[i];
+			if (b < 'A' || b > 'Z')
+			{
+				break;
+			}
+			column = column * 26 + (b - 'A' + 1);
+		}
+		return column - 1;
+	}
+
+	/**
+	 * Same result as Double.parseDouble on the ASCII text. Decimals with up to 15 significant
+	 * digits and a small exponent take the exact fast path (one multiplication or division of
+	 * exactly representable doubles); everything else goes through Double.parseDouble.
+	 */
+	private double parseNumber (int start, int end) throws UnsupportedMarkupException
+	{
+		int i = start;
+		boolean negative = false;
+		if (buffer[i] == '-' || buffer[i] == '+')
+		{
+			negative = buffer[i] == '-';
+			i++;
+		}
+		long mantissa = 0;
+		int digits = 0;
+		int scale = 0;
+		int exponent = 0;
+		boolean point = false;
+		boolean simple = i < end;
+		for (; i < end; i++)
+		{
+			byte b = buffer[i];
+			if (b >= '0' && b <= '9')
+			{
+				if (mantissa == 0 && b == '0')
+				{
+					if (point)
+					{
+						scale++;
+					}
+					continue;
+				}
+				if (++digits > 15)
+				{
+					simple = false;
+					break;
+				}
+				mantissa = mantissa * 10 + (b - '0');
+				if (point)
+				{
+					scale++;
+				}
+			}
+			else if (b == '.' && !point)
+			{
+				point = true;
+			}
+			else if ((b == 'E' || b == 'e') && i + 1 < end)
+			{
+				int j = i + 1;
+				boolean negativeExponent = buffer[j] == '-';
+				if (buffer[j] == '-' || buffer[j] == '+')
+				{
+					j++;
+				}
+				if (j == end || end - j > 3)
+				{
+					simple = false;
+					break;
+				}
+				for (; j < end; j++)
+				{
+					int digit = buffer[j] - '0';
+					if (digit < 0 || digit > 9)
+					{
+						simple = false;
+						break;
+					}
+					exponent = exponent * 10 + digit;
+				}
+				if (negativeExponent)
+				{
+					exponent = -exponent;
+				}
+				break;
+			}
+			else
+			{
+				simple = false;
+				break;
+			}
+		}
+
+		int power = exponent - scale;
+		if (simple && mantissa < MAX_EXACT_MANTISSA && power >= -22 && power <= 22)
+		{
+			double value = (power >= 0)? mantissa * POWERS_OF_TEN[power] : mantissa / POWERS_OF_TEN[-power];
+			return negative? -value : value;
+		}
+
+		for (int k = start; k < end; k++)
+		{
+			if (buffer[k] == '&')
+			{
+				throw unsupported ("entity in number");
+			}
+		}
+		try
+		{
+			return Double.parseDouble (new String (buffer, start, end - start, StandardCharsets.ISO_8859_1));
+		}
+		catch (NumberFormatException e)
+		{
+			throw unsupported ("number");
+		}
+	}
+
+	/** Text content with character references, entities and line ends decoded. */
+	private String decodeText (int start, int end) throws UnsupportedMarkupException
+	{
+		boolean plain = true;
+		for (int i = start; i < end; i++)
+		{
+			if (buffer[i] == '&' || buffer[i] == '\r')
+			{
+				plain = false;
+				break;
+			}
+		}
+		if (plain)
+		{
+			return OoxmlText.decodeEscapes (new String (buffer, start, end - start, StandardCharsets.UTF_8));
+		}
+
+		textLength = 0;
+		for (int i = start; i < end; i++)
+		{
+			byte b = buffer[i];
+			if (b == '\r')
+			{
+				// XML line-end normalization: CR LF and lone CR become LF
+				appendText ((byte) '\n');
+				if (i + 1 < end && buffer[i + 1] == '\n')
+				{
+					i++;
+				}
+			}
+			else if (b == '&')
+			{
+				int semicolon = i + 1;
+				while (semicolon < end && buffer[semicolon] != ';')
+				{
+					semicolon++;
+				}
+				if (semicolon == end)
+				{
+					throw unsupported ("entity");
+				}
+				appendCodePoint (entity (i + 1, semicolon));
+				i = semicolon;
+			}
+			else
+			{
+				appendText (b);
+			}
+		}
+		return OoxmlText.decodeEscapes (new String (text, 0, textLength, StandardCharsets.UTF_8));
+	}
+
+	private int entity (int start, int end) throws UnsupportedMarkupException
+	{
+		int length = end - start;
+		if (length >= 2 && buffer[start] == '#')
+		{
+			boolean hex = buffer[start + 1] == 'x';
+			int code = 0;
+			for (int i = start + (hex? 2 : 1); i < end; i++)
+			{
+				int digit = Character.digit (buffer[i], hex? 16 : 10);
+				if (digit < 0 || code > 0x10FFFF)
+				{
+					throw unsupported ("character reference");
+				}
+				code = code * (hex? 16 : 10) + digit;
+			}
+			if (code > 0x10FFFF)
+			{
+				throw unsupported ("character reference");
+			}
+			return code;
+		}
+		if (matches (start, end, "amp"))
+		{
+			return '&';
+		}
+		if (matches (start, end, "lt"))
+		{
+			return '<';
+		}
+		if (matches (start, end, "gt"))
+		{
+			return '>';
+		}
+		if (matches (start, end, "quot"))
+		{
+			return '"';
+		}
+		if (matches (start, end, "apos"))
+		{
+			return '\'';
+		}
+		throw unsupported ("entity");
+	}
+
+	private boolean matches (int start, int end, String name)
+	{
+		if (end - start != name.length ())
+		{
+			return false;
+		}
+		for (int i = 0; i < name.length (); i++)
+		{
+			if (buffer[start + i] != name.charAt (i))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void appendCodePoint (int code)
+	{
+		if (code < 0x80)
+		{
+			appendText ((byte) code);
+		}
+		else
+		{
+			for (byte b : new String (Character.toChars (code)).getBytes (StandardCharsets.UTF_8))
+			{
+				appendText (b);
+			}
+		}
+	}
+
+	private void appendText (byte b)
+	{
+		if (textLength == text.length)
+		{
+			text = Arrays.copyOf (text, text.length * 2);
+		}
+		text[textLength++] = b;
+	}
+
+	// === Buffer ===
+
+	/**
+	 * Offset from pos of the first occurrence of b at or after pos + from, reading more input as
+	 * needed; -1 at the end of the stream.
+	 */
+	private int find (byte b, int from) throws IOException
+	{
+		int offset = from;
+		while (true)
+		{
+			for (int i = pos + offset; i < limit; i++)
+			{
+				if (buffer[i] == b)
+				{
+					return i - pos;
+				}
+			}
+			offset = limit - pos;
+			if (!fill ())
+			{
+				return -1;
+			}
+		}
+	}
+
+	/** Makes sure count bytes from pos are buffered; false at the end of the stream. */
+	private boolean ensure (int count) throws IOException
+	{
+		while (limit - pos < count)
+		{
+			if (!fill ())
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Reads more input, keeping the bytes from pos on (moved to the start of the buffer, which
+	 * grows when a single token fills it).
+	 */
+	private boolean fill () throws IOException
+	{
+		if (endOfStream)
+		{
+			return false;
+		}
+		if (pos > 0)
+		{
+			System.arraycopy (buffer, pos, buffer, 0, limit - pos);
+			limit -= pos;
+			pos = 0;
+		}
+		if (limit == buffer.length)
+		{
+			buffer = Arrays.copyOf (buffer, buffer.length * 2);
+		}
+		int read = in.read (buffer, limit, buffer.length - limit);
+		if (read < 0)
+		{
+			endOfStream = true;
+			return false;
+		}
+		limit += read;
+		return true;
+	}
+
+	/** Rejects byte order marks and encodings other than UTF-8. */
+	private void checkEncoding () throws IOException
+	{
+		if (!ensure (3))
+		{
+			return;
+		}
+		if ((buffer[0] & 0xFF) == 0xEF && (buffer[1] & 0xFF) == 0xBB && (buffer[2] & 0xFF) == 0xBF)
+		{
+			pos = 3;
+		}
+		else if ((buffer[0] & 0xFF) == 0xFE || (buffer[0] & 0xFF) == 0xFF || buffer[0] == 0)
+		{
+			throw new UnsupportedMarkupException ("UTF-16 or UTF-32 content");
+		}
+
+		if (!ensure (5) || buffer[pos] != '<' || buffer[pos + 1] != '?')
+		{
+			return;
+		}
+		int end = find ((byte) '>', 0);
+		if (end < 0)
+		{
+			return;
+		}
+		String declaration = new String (buffer, pos, end, StandardCharsets.ISO_8859_1);
+		int at = declaration.indexOf ("encoding");
+		if (at >= 0)
+		{
+			int quote = at + 8;
+			while (quote < declaration.length () && declaration.charAt (quote) != '"' &&
+			       declaration.charAt (quote) != '\'')
+			{
+				quote++;
+			}
+			int close = (quote < declaration.length ())? declaration.indexOf (declaration.charAt (quote), quote + 1)
+			                                           : -1;
+			String encoding = (close > quote)? declaration.substring (quote + 1, close) : "";
+			if (!"UTF-8".equalsIgnoreCase (encoding) && !"UTF8".equalsIgnoreCase (encoding))
+			{
+				throw new UnsupportedMarkupException ("Encoding " + encoding);
+			}
+		}
+	}
+
+	private UnsupportedMarkupException unsupported (String what)
+	{
+		int end = Math.min (limit, pos + 40);
+		return new UnsupportedMarkupException ("Unsupported " + what + " in sheet data near '" +
+		                                       new String (buffer, pos, Math.max (0, end - pos),
+		                                                   StandardCharsets.UTF_8) + "'");
+	}
+
+	private static boolean isWhitespace (byte b)
+	{
+		return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+	}
+
+	private static byte[] bytes (String ascii)
+	{
+		return ascii.getBytes (StandardCharsets.US_ASCII);
+	}
+}
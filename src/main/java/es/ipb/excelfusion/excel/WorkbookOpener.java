@@ -0,0 +1,38 @@
+package es.ipb.excelfusion.excel;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.ss.usermodel.WorkbookFactory;
+
+
+/**
+ * Opens workbooks read-only, straight from the file.
+ *
+ * WorkbookFactory.create (InputStream) first copies the whole compressed file into a heap buffer
+ * (and for XLSX, every package part). Opening from a File lets POI use random access instead:
+ * XLSX packages are read through a ZipFile, entries inflated on demand, and XLS files through a
+ * memory-mapped POIFS file system. Read-only mode also means nothing is written back on close.
+ *
+ * Cell values may still be changed in memory (e.g. by FormulaEvaluation), they are just never
+ * saved.
+ */
+public final class WorkbookOpener
+{
+
+	private WorkbookOpener ()
+	{
+	}
+
+	public static Workbook open (File file) throws IOException
+	{
+		return WorkbookFactory.create (file, null, true);
+	}
+
+	public static Workbook open (Path path) throws IOException
+	{
+		return open (path.toFile ());
+	}
+}
@@ -0,0 +1,140 @@
+package es.ipb.excelfusion.excel;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+
+
+/**
+ * SheetRowReader over a fully loaded POI workbook (XLS, and XLSX files that fit comfortably in
+ * memory or need formula evaluation).
+ */
+public class WorkbookSheetReader implements SheetRowReader
+{
+
+	private final Workbook						workbook;
+	private final CellFormatCache				formats;
+	private final MemoryGovernor.Reservation	reservation;
+
+	public WorkbookSheetReader (File file) throws IOException
+	{
+		this (file, MemoryGovernor.Reservation.NONE);
+	}
+
+	/** Holds reservation until closed. */
+	WorkbookSheetReader (File file, MemoryGovernor.Reservation reservation) throws IOException
+	{
+		this.workbook = WorkbookOpener.open (file);
+		this.formats = new CellFormatCache (workbook, Locale.getDefault ());
+		this.reservation = reservation;
+	}
+
+	@Override
+	public List <String> getSheetNames ()
+	{
+		List <String> names = new ArrayList <> (workbook.getNumberOfSheets ());
+		for (int i = 0; i < workbook.getNumberOfSheets (); i++)
+		{
+			names.add (workbook.getSheetName (i));
+		}
+		return names;
+	}
+
+	/**
+	 * Recomputes the formulas of the given sheets between firstRow and lastRow (see
+	 * FormulaEvaluation.evaluateSheets).
+	 *
+	 * @return number of formula cells whose result was updated
+	 */
+	public int evaluateFormulas (List <String> sheetNames, int firstRow, int lastRow)
+	{
+		List <Sheet> sheets = new ArrayList <> (sheetNames.size ());
+		for (String name : sheetNames)
+		{
+			Sheet sheet = workbook.getSheet (name);
+			if (sheet != null)
+			{
+				sheets.add (sheet);
+			}
+		}
+		return FormulaEvaluation.evaluateSheets (workbook, sheets, firstRow, lastRow);
+	}
+
+	@Override
+	public RowCursor openSheet (String sheetName, int firstRow) throws IOException
+	{
+		Sheet sheet = workbook.getSheet (sheetName);
+		if (sheet == null)
+		{
+			throw new IOException ("Sheet not found: " + sheetName);
+		}
+		return new SheetCursor (sheet, firstRow);
+	}
+
+	@Override
+	public void close () throws IOException
+	{
+		try
+		{
+			workbook.close ();
+		}
+		finally
+		{
+			reservation.close ();
+		}
+	}
+
+	private final class SheetCursor implements RowCursor
+	{
+		private final Sheet	  sheet;
+		private final int	  lastRow;
+		private final RowData row = new RowData (formats);
+		private int			  next;
+
+		SheetCursor (Sheet sheet, int firstRow)
+		{
+			this.sheet = sheet;
+			this.lastRow = SheetExtent.lastPopulatedRow (sheet);
+			this.next = Math.max (firstRow, 0);
+		}
+
+		@Override
+		public boolean next ()
+		{
+			while (next <= lastRow)
+			{
+				Row source = sheet.getRow (next++);
+				if (source == null)
+				{
+					continue;
+				}
+				row.reset (source.getRowNum ());
+				for (Cell cell : source)
+				{
+					row.setCell (cell.getColumnIndex (), cell);
+				}
+				return true;
+			}
+			return false;
+		}
+
+		@Override
+		public RowData getRow ()
+		{
+			return row;
+		}
+
+		@Override
+		public void close ()
+		{
+			next = lastRow + 1;
+		}
+	}
+}
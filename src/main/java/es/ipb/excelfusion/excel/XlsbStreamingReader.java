@@ -0,0 +1,497 @@
+package es.ipb.excelfusion.excel;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.openxml4j.opc.PackagePart;
+import org.apache.poi.ss.usermodel.BuiltinFormats;
+import org.apache.poi.ss.usermodel.FormulaError;
+import org.apache.poi.util.LittleEndian;
+import org.apache.poi.xssf.binary.XSSFBParseException;
+import org.apache.poi.xssf.binary.XSSFBParser;
+import org.apache.poi.xssf.binary.XSSFBUtils;
+import org.apache.poi.xssf.eventusermodel.XSSFBReader;
+
+
+/**
+ * SheetRowReader for XLSB (binary workbook) files.
+ *
+ * The package layout is the same as XLSX, but every part is a sequence of binary records instead
+ * of XML. Sheet records are read one at a time straight from the inflated zip entry, and cell
+ * values arrive already typed (IEEE doubles, RK numbers, shared string indexes), so there is no
+ * text to parse. Styles and the shared strings table are loaded up front, the latter through
+ * SharedStringStore (spilled to a temp file when large).
+ *
+ * Values follow the workbook reader like XlsxStreamingReader: formula cells give their cached
+ * result and numbers are formatted with the cell's number format. Cursors are independent, so
+ * different sheets may be read from different threads.
+ */
+public class XlsbStreamingReader implements SheetRowReader
+{
+
+	// Record types (MS-XLSB 2.3.2)
+	private static final int				 BRT_ROW_HDR		 = 0;
+	private static final int				 BRT_CELL_RK		 = 2;
+	private static final int				 BRT_CELL_ERROR		 = 3;
+	private static final int				 BRT_CELL_BOOL		 = 4;
+	private static final int				 BRT_CELL_REAL		 = 5;
+	private static final int				 BRT_CELL_ST		 = 6;
+	private static final int				 BRT_CELL_ISST		 = 7;
+	private static final int				 BRT_FMLA_STRING	 = 8;
+	private static final int				 BRT_FMLA_NUM		 = 9;
+	private static final int				 BRT_FMLA_BOOL		 = 10;
+	private static final int				 BRT_FMLA_ERROR		 = 11;
+	private static final int				 BRT_FMT			 = 44;
+	private static final int				 BRT_XF				 = 47;
+	private static final int				 BRT_CELL_RSTRING	 = 62;
+	private static final int				 BRT_END_SHEET_DATA	 = 146;
+	private static final int				 BRT_WB_PROP		 = 153;
+	private static final int				 BRT_BEGIN_CELL_XFS	 = 617;
+	private static final int				 BRT_END_CELL_XFS	 = 618;
+
+	/** Cell records start with the column (4 bytes) and style (3 bytes + 1 flags byte). */
+	private static final int				 CELL_HEADER_LENGTH	 = 8;
+
+	private static final String				 SHARED_STRINGS_TYPE = "application/vnd.ms-excel.sharedStrings";
+
+	private final OPCPackage				 pkg;
+	private final SharedStringStore			 strings;
+	private final Map <String, PackagePart>	 sheetParts			 = new LinkedHashMap <> ();
+	private final boolean					 date1904;
+
+	/** Number format index and string of every cell style. */
+	private final int[]						 formatIndexes;
+	private final String[]					 formatStrings;
+
+	private final MemoryGovernor.Reservation reservation;
+
+	public XlsbStreamingReader (File file, long spillThreshold) throws IOException
+	{
+		this (file, spillThreshold, MemoryGovernor.Reservation.NONE);
+	}
+
+	/** Holds reservation until closed. */
+	XlsbStreamingReader (File file, long spillThreshold, MemoryGovernor.Reservation reservation) throws IOException
+	{
+		this.reservation = reservation;
+		try
+		{
+			this.pkg = OPCPackage.open (file, PackageAccess.READ);
+		}
+		catch (OpenXML4JException e)
+		{
+			throw new IOException ("Cannot open " + file.getName () + ": " + e.getMessage (), e);
+		}
+
+		SharedStringStore loaded = null;
+		try
+		{
+			XSSFBReader reader = new XSSFBReader (pkg);
+			XSSFBReader.SheetIterator sheets = reader.getSheetIterator ();
+			while (sheets.hasNext ())
+			{
+				sheets.next ().close ();
+				sheetParts.put (sheets.getSheetName (), sheets.getSheetPart ());
+			}
+
+			StyleFormats styles;
+			try (InputStream in = reader.getStylesData ())
+			{
+				styles = new StyleFormats (in);
+				styles.parse ();
+			}
+			formatIndexes = styles.formatIndexes ();
+			formatStrings = new String[formatIndexes.length];
+			for (int s = 0; s < formatIndexes.length; s++)
+			{
+				formatStrings[s] = styles.formatString (formatIndexes[s]);
+			}
+
+			try (InputStream in = reader.getWorkbookData ())
+			{
+				WorkbookProperties properties = new WorkbookProperties (in);
+				properties.parse ();
+				date1904 = properties.date1904;
+			}
+
+			List <PackagePart> parts = pkg.getPartsByContentType (SHARED_STRINGS_TYPE);
+			loaded = SharedStringStore.loadBinary (parts.isEmpty ()? null : parts.get (0), spillThreshold);
+			strings = loaded;
+		}
+		catch (IOException | OpenXML4JException | RuntimeException e)
+		{
+			if (loaded != null)
+			{
+				loaded.close ();
+			}
+			pkg.revert ();
+			if (e instanceof IOException)
+			{
+				throw (IOException) e;
+			}
+			throw new IOException ("Cannot read " + file.getName () + ": " + e.getMessage (), e);
+		}
+	}
+
+	@Override
+	public List <String> getSheetNames ()
+	{
+		return Collections.unmodifiableList (new ArrayList <> (sheetParts.keySet ()));
+	}
+
+	@Override
+	public SharedStringStore getSharedStrings ()
+	{
+		return strings;
+	}
+
+	/** True when the shared strings table was spilled to a temp file. */
+	public boolean isSharedStringsSpilled ()
+	{
+		return strings.isSpilled ();
+	}
+
+	/** Every cursor has its own part stream and CellFormatCache. */
+	@Override
+	public boolean supportsConcurrentSheets ()
+	{
+		return true;
+	}
+
+	@Override
+	public RowCursor openSheet (String sheetName, int firstRow) throws IOException
+	{
+		PackagePart part = sheetParts.get (sheetName);
+		if (part == null)
+		{
+			throw new IOException ("Sheet not found: " + sheetName);
+		}
+		return new SheetCursor (part.getInputStream (), Math.max (firstRow, 0));
+	}
+
+	@Override
+	public void close () throws IOException
+	{
+		try
+		{
+			strings.close ();
+		}
+		finally
+		{
+			pkg.revert ();
+			reservation.close ();
+		}
+	}
+
+	/**
+	 * Number formats of the cell styles (BrtXf records inside cellXfs) and the custom formats
+	 * (BrtFmt).
+	 */
+	private static final class StyleFormats extends XSSFBParser
+	{
+		private final List <Integer>		 styles		   = new ArrayList <> ();
+		private final Map <Integer, String>	 customFormats = new HashMap <> ();
+		private boolean						 inCellXfs;
+
+		StyleFormats (InputStream in)
+		{
+			super (in);
+		}
+
+		@Override
+		public void handleRecord (int recordType, byte[] data)
+		{
+			switch (recordType)
+			{
+				case BRT_BEGIN_CELL_XFS:
+					inCellXfs = true;
+					break;
+				case BRT_END_CELL_XFS:
+					inCellXfs = false;
+					break;
+				case BRT_XF:
+					if (inCellXfs)
+					{
+						// ixfeParent (2 bytes), then iFmt
+						styles.add (LittleEndian.getUShort (data, 2));
+					}
+					break;
+				case BRT_FMT:
+					StringBuilder format = new StringBuilder ();
+					XSSFBUtils.readXLWideString (data, 2, format);
+					customFormats.put (LittleEndian.getUShort (data, 0), format.toString ());
+					break;
+				default:
+					break;
+			}
+		}
+
+		int[] formatIndexes ()
+		{
+			int[] indexes = new int[styles.size ()];
+			for (int s = 0; s < indexes.length; s++)
+			{
+				indexes[s] = styles.get (s);
+			}
+			return indexes;
+		}
+
+		String formatString (int formatIndex)
+		{
+			String custom = customFormats.get (formatIndex);
+			return (custom != null)? custom : BuiltinFormats.getBuiltinFormat (formatIndex);
+		}
+	}
+
+	/** Reads the 1904 date system flag of BrtWbProp. */
+	private static final class WorkbookProperties extends XSSFBParser
+	{
+		boolean date1904;
+
+		WorkbookProperties (InputStream in)
+		{
+			super (in);
+		}
+
+		@Override
+		public void handleRecord (int recordType, byte[] data)
+		{
+			if (recordType == BRT_WB_PROP && data.length >= 4)
+			{
+				date1904 = (data[0] & 1) != 0;
+			}
+		}
+	}
+
+	private final class SheetCursor implements RowCursor
+	{
+		private final InputStream	in;
+		private final int			firstRow;
+		private final RowData		row;
+		private final StringBuilder	text	   = new StringBuilder ();
+
+		/** Current record (the buffer may be longer than the record). */
+		private byte[]				data	   = new byte[256];
+
+		/** Header of the next row, read while finishing the current one; -1 if none. */
+		private int					pendingRow = -1;
+		private boolean				done;
+
+		SheetCursor (InputStream in, int firstRow)
+		{
+			this.in = new BufferedInputStream (in, 1 << 16);
+			this.firstRow = firstRow;
+			this.row = new RowData (new CellFormatCache (Locale.getDefault (), date1904), strings);
+		}
+
+		@Override
+		public boolean next () throws IOException
+		{
+			if (done)
+			{
+				return false;
+			}
+			boolean open = false;
+			if (pendingRow >= 0)
+			{
+				open = startRow (pendingRow);
+				pendingRow = -1;
+			}
+			try
+			{
+				while (true)
+				{
+					int type = nextRecord ();
+					if (type < 0 || type == BRT_END_SHEET_DATA)
+					{
+						done = true;
+						return open;
+					}
+					if (type == BRT_ROW_HDR)
+					{
+						int rowIndex = (int) LittleEndian.getUInt (data, 0);
+						if (open)
+						{
+							pendingRow = rowIndex;
+							return true;
+						}
+						open = startRow (rowIndex);
+					}
+					else if (open)
+					{
+						readCell (type);
+					}
+				}
+			}
+			catch (XSSFBParseException | IndexOutOfBoundsException e)
+			{
+				throw new IOException ("Invalid sheet record: " + e.getMessage (), e);
+			}
+		}
+
+		@Override
+		public RowData getRow ()
+		{
+			return row;
+		}
+
+		@Override
+		public void close () throws IOException
+		{
+			done = true;
+			in.close ();
+		}
+
+		private boolean startRow (int rowIndex)
+		{
+			if (rowIndex < firstRow)
+			{
+				return false;
+			}
+			row.reset (rowIndex);
+			return true;
+		}
+
+		private void readCell (int type)
+		{
+			int column = (int) LittleEndian.getUInt (data, 0);
+			int style = (data[4] & 0xFF) | (data[5] & 0xFF) << 8 | (data[6] & 0xFF) << 16;
+			switch (type)
+			{
+				case BRT_CELL_RK:
+					setNumber (column, rkNumber (LittleEndian.getInt (data, CELL_HEADER_LENGTH)), style);
+					break;
+				case BRT_CELL_REAL:
+				case BRT_FMLA_NUM:
+					setNumber (column, LittleEndian.getDouble (data, CELL_HEADER_LENGTH), style);
+					break;
+				case BRT_CELL_ISST:
+					row.setSharedString (column, (int) LittleEndian.getUInt (data, CELL_HEADER_LENGTH));
+					break;
+				case BRT_CELL_ST:
+				case BRT_FMLA_STRING:
+					row.setString (column, readString (CELL_HEADER_LENGTH));
+					break;
+				case BRT_CELL_RSTRING:
+					// RichStr: a flags byte before the text
+					row.setString (column, readString (CELL_HEADER_LENGTH + 1));
+					break;
+				case BRT_CELL_BOOL:
+				case BRT_FMLA_BOOL:
+					row.setBoolean (column, data[CELL_HEADER_LENGTH] != 0);
+					break;
+				case BRT_CELL_ERROR:
+				case BRT_FMLA_ERROR:
+					row.setError (column, errorText (data[CELL_HEADER_LENGTH]));
+					break;
+				default:
+					// Blank (styled) cells and records other than cells
+					break;
+			}
+		}
+
+		private void setNumber (int column, double value, int style)
+		{
+			if (style < formatIndexes.length && formatStrings[style] != null)
+			{
+				row.setNumber (column, value, formatIndexes[style], formatStrings[style]);
+			}
+			else
+			{
+				row.setNumber (column, value, 0, BuiltinFormats.getBuiltinFormat (0));
+			}
+		}
+
+		private String readString (int offset)
+		{
+			text.setLength (0);
+			XSSFBUtils.readXLWideString (data, offset, text);
+			return text.toString ();
+		}
+
+		/**
+		 * Reads the next record into data; returns its type, or -1 at the end of the part.
+		 * Types take one or two bytes and lengths up to four, 7 bits per byte.
+		 */
+		private int nextRecord () throws IOException
+		{
+			int b = in.read ();
+			if (b < 0)
+			{
+				return -1;
+			}
+			int type = b & 0x7F;
+			if ((b & 0x80) != 0)
+			{
+				type |= (readByte () & 0x7F) << 7;
+			}
+			int size = 0;
+			for (int i = 0; i < 4; i++)
+			{
+				int s = readByte ();
+				size |= (s & 0x7F) << (7 * i);
+				if ((s & 0x80) == 0)
+				{
+					break;
+				}
+			}
+			if (size > XSSFBParser.getMaxRecordLength ())
+			{
+				throw new IOException ("Sheet record of " + size + " bytes exceeds the maximum length");
+			}
+			if (size > data.length)
+			{
+				data = new byte[Math.max (size, data.length * 2)];
+			}
+			int read = 0;
+			while (read < size)
+			{
+				int n = in.read (data, read, size - read);
+				if (n < 0)
+				{
+					throw new EOFException ("Truncated sheet record");
+				}
+				read += n;
+			}
+			return type;
+		}
+
+		private int readByte () throws IOException
+		{
+			int b = in.read ();
+			if (b < 0)
+			{
+				throw new EOFException ("Truncated sheet record header");
+			}
+			return b;
+		}
+	}
+
+	/**
+	 * RkNumber (MS-XLSB 2.5.122): bit 0 = divide by 100, bit 1 = 30-bit signed integer instead of
+	 * the high 30 bits of a double.
+	 */
+	static double rkNumber (int rk)
+	{
+		double value = ((rk & 2) != 0)? (double) (rk >> 2) : Double.longBitsToDouble ((long) (rk & ~3) << 32);
+		return ((rk & 1) != 0)? value / 100 : value;
+	}
+
+	private static String errorText (byte code)
+	{
+		return FormulaError.isValidCode (code)? FormulaError.forInt (code).getString () : FormulaError.NA.getString ();
+	}
+}
@@ -0,0 +1,595 @@
+package es.ipb.excelfusion.excel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.openxml4j.opc.PackagePart;
+import org.apache.poi.ss.usermodel.BuiltinFormats;
+import org.apache.poi.util.XMLHelper;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.model.StylesTable;
+import org.apache.poi.xssf.usermodel.XSSFCellStyle;
+import org.apache.poi.xssf.usermodel.XSSFRelation;
+
+
+/**
+ * SheetRowReader that streams the sheet XML of an XLSX/XLSM package instead of building a
+ * workbook, so memory use does not grow with the number of rows.
+ *
+ * The package is opened read-only from the file: parts are inflated from the zip on demand and
+ * never buffered whole. Only the styles and the shared strings table are loaded up front, and a
+ * large shared strings table is kept in a temp file (see SharedStringStore).
+ *
+ * Sheet XML is read by SheetXmlScanner, which parses the usual SpreadsheetML straight from the
+ * inflated bytes; at the first markup it does not handle, the cursor continues with a StAX
+ * parser from the next row (Parser.STAX uses StAX throughout).
+ *
+ * Values follow the workbook reader: formula cells give their cached result and numbers are
+ * formatted with the cell's number format. Each cursor formats with its own CellFormatCache, so
+ * different sheets may be read from different threads.
+ */
+public class XlsxStreamingReader implements SheetRowReader
+{
+
+	/** Sheet XML parser. */
+	public enum Parser
+	{
+		/** Byte-level scanner, falling back to STAX for unusual markup. */
+		SCANNER,
+		/** Namespace-aware StAX parser. */
+		STAX
+	}
+
+	private final OPCPackage				 pkg;
+	private final SharedStringStore			 strings;
+	private final Map <String, PackagePart>	 sheetParts = new LinkedHashMap <> ();
+	private final boolean					 date1904;
+	private final XMLInputFactory			 xmlFactory = XMLHelper.newXMLInputFactory ();
+
+	/** Number format index and string of every cell style. */
+	private final int[]						 formatIndexes;
+	private final String[]					 formatStrings;
+
+	private final MemoryGovernor.Reservation reservation;
+
+	private volatile Parser					 parser		= Parser.SCANNER;
+
+	public XlsxStreamingReader (File file, long spillThreshold) throws IOException
+	{
+		this (file, spillThreshold, MemoryGovernor.Reservation.NONE);
+	}
+
+	/** Holds reservation until closed. */
+	XlsxStreamingReader (File file, long spillThreshold, MemoryGovernor.Reservation reservation) throws IOException
+	{
+		this.reservation = reservation;
+		try
+		{
+			this.pkg = OPCPackage.open (file, PackageAccess.READ);
+		}
+		catch (OpenXML4JException e)
+		{
+			throw new IOException ("Cannot open " + file.getName () + ": " + e.getMessage (), e);
+		}
+
+		SharedStringStore loaded = null;
+		try
+		{
+			XSSFReader reader = new XSSFReader (pkg);
+			XSSFReader.SheetIterator sheets = reader.getSheetIterator ();
+			while (sheets.hasNext ())
+			{
+				sheets.next ().close ();
+				sheetParts.put (sheets.getSheetName (), sheets.getSheetPart ());
+			}
+
+			StylesTable styles = reader.getStylesTable ();
+			int styleCount = (styles == null)? 0 : styles.getNumCellStyles ();
+			formatIndexes = new int[styleCount];
+			formatStrings = new String[styleCount];
+			for (int s = 0; s < styleCount; s++)
+			{
+				XSSFCellStyle style = styles.getStyleAt (s);
+				if (style != null)
+				{
+					formatIndexes[s] = style.getDataFormat ();
+					formatStrings[s] = style.getDataFormatString ();
+				}
+			}
+
+			try (InputStream in = reader.getWorkbookData ())
+			{
+				date1904 = readDate1904 (in);
+			}
+
+			List <PackagePart> parts = pkg.getPartsByContentType (XSSFRelation.SHARED_STRINGS.getContentType ());
+			loaded = SharedStringStore.load (parts.isEmpty ()? null : parts.get (0), spillThreshold);
+			strings = loaded;
+		}
+		catch (IOException | OpenXML4JException | XMLStreamException | RuntimeException e)
+		{
+			if (loaded != null)
+			{
+				loaded.close ();
+			}
+			pkg.revert ();
+			if (e instanceof IOException)
+			{
+				throw (IOException) e;
+			}
+			throw new IOException ("Cannot read " + file.getName () + ": " + e.getMessage (), e);
+		}
+	}
+
+	@Override
+	public List <String> getSheetNames ()
+	{
+		return Collections.unmodifiableList (new ArrayList <> (sheetParts.keySet ()));
+	}
+
+	@Override
+	public SharedStringStore getSharedStrings ()
+	{
+		return strings;
+	}
+
+	/** True when the shared strings table was spilled to a temp file. */
+	public boolean isSharedStringsSpilled ()
+	{
+		return strings.isSpilled ();
+	}
+
+	/** Every cursor has its own part stream, parser and CellFormatCache. */
+	@Override
+	public boolean supportsConcurrentSheets ()
+	{
+		return true;
+	}
+
+	/** Parser used by cursors opened from now on. */
+	public void setParser (Parser parser)
+	{
+		this.parser = parser;
+	}
+
+	@Override
+	public RowCursor openSheet (String sheetName, int firstRow) throws IOException
+	{
+		RowData row = new RowData (new CellFormatCache (Locale.getDefault (), date1904), strings);
+		if (parser == Parser.SCANNER)
+		{
+			return new ScannerCursor (sheetName, Math.max (firstRow, 0), row);
+		}
+		return openStax (sheetName, Math.max (firstRow, 0), row);
+	}
+
+	@Override
+	public void close () throws IOException
+	{
+		try
+		{
+			strings.close ();
+		}
+		finally
+		{
+			pkg.revert ();
+			reservation.close ();
+		}
+	}
+
+	private InputStream openPart (String sheetName) throws IOException
+	{
+		PackagePart part = sheetParts.get (sheetName);
+		if (part == null)
+		{
+			throw new IOException ("Sheet not found: " + sheetName);
+		}
+		return part.getInputStream ();
+	}
+
+	private StaxCursor openStax (String sheetName, int firstRow, RowData row) throws IOException
+	{
+		InputStream in = openPart (sheetName);
+		try
+		{
+			return new StaxCursor (in, firstRow, row);
+		}
+		catch (XMLStreamException e)
+		{
+			in.close ();
+			throw new IOException ("Invalid sheet XML in " + sheetName + ": " + e.getMessage (), e);
+		}
+	}
+
+	/** Stores a numeric cell with the number format of its style (General for unknown styles). */
+	void storeNumber (RowData row, int column, double value, int style)
+	{
+		if (style >= 0 && style < formatIndexes.length)
+		{
+			row.setNumber (column, value, formatIndexes[style], formatStrings[style]);
+		}
+		else
+		{
+			row.setNumber (column, value, 0, BuiltinFormats.getBuiltinFormat (0));
+		}
+	}
+
+	private boolean readDate1904 (InputStream in) throws XMLStreamException
+	{
+		XMLStreamReader xml = xmlFactory.createXMLStreamReader (in);
+		try
+		{
+			while (xml.hasNext ())
+			{
+				if (xml.next () == XMLStreamConstants.START_ELEMENT)
+				{
+					String name = xml.getLocalName ();
+					if ("workbookPr".equals (name))
+					{
+						String value = xml.getAttributeValue (null, "date1904");
+						return "1".equals (value) || "true".equals (value);
+					}
+					if ("sheets".equals (name))
+					{
+						return false;
+					}
+				}
+			}
+			return false;
+		}
+		finally
+		{
+			xml.close ();
+		}
+	}
+
+	/**
+	 * 0-based column of a cell reference such as "AB12", or -1 if it has no column letters.
+	 */
+	static int columnOf (String reference)
+	{
+		int column = 0;
+		int i = 0;
+		for (; i < reference.length (); i++)
+		{
+			char ch = reference.charAt (i);
+			if (ch < 'A' || ch > 'Z')
+			{
+				break;
+			}
+			column = column * 26 + (ch - 'A' + 1);
+		}
+		return column - 1;
+	}
+
+	/**
+	 * Cursor reading with SheetXmlScanner. On unsupported markup it reopens the part with StAX,
+	 * starting after the last row returned, and delegates to that cursor from then on.
+	 */
+	private final class ScannerCursor implements RowCursor
+	{
+		private final String		  sheetName;
+		private final int			  firstRow;
+		private final RowData		  row;
+		private SheetXmlScanner		  scanner;
+		private RowCursor			  fallback;
+		private int					  lastRowIndex = -1;
+
+		ScannerCursor (String sheetName, int firstRow, RowData row) throws IOException
+		{
+			this.sheetName = sheetName;
+			this.firstRow = firstRow;
+			this.row = row;
+			this.scanner = new SheetXmlScanner (openPart (sheetName), row, XlsxStreamingReader.this);
+		}
+
+		@Override
+		public boolean next () throws IOException
+		{
+			if (fallback != null)
+			{
+				return fallback.next ();
+			}
+			try
+			{
+				if (!scanner.next (firstRow))
+				{
+					return false;
+				}
+				lastRowIndex = row.getRowIndex ();
+				return true;
+			}
+			catch (SheetXmlScanner.UnsupportedMarkupException e)
+			{
+				scanner.close ();
+				scanner = null;
+				fallback = openStax (sheetName, Math.max (firstRow, lastRowIndex + 1), row);
+				return fallback.next ();
+			}
+		}
+
+		@Override
+		public RowData getRow ()
+		{
+			return row;
+		}
+
+		@Override
+		public void close () throws IOException
+		{
+			if (fallback != null)
+			{
+				fallback.close ();
+			}
+			else
+			{
+				scanner.close ();
+			}
+		}
+	}
+
+	private final class StaxCursor implements RowCursor
+	{
+		private final InputStream	  in;
+		private final XMLStreamReader xml;
+		private final int			  firstRow;
+		private final RowData		  row;
+		private int					  lastRowIndex = -1;
+		private boolean				  done;
+
+		StaxCursor (InputStream in, int firstRow, RowData row) throws XMLStreamException
+		{
+			this.in = in;
+			// XMLInputFactory is not guaranteed to be thread-safe
+			synchronized (xmlFactory)
+			{
+				this.xml = xmlFactory.createXMLStreamReader (in);
+			}
+			this.firstRow = firstRow;
+			this.row = row;
+		}
+
+		@Override
+		public boolean next () throws IOException
+		{
+			if (done)
+			{
+				return false;
+			}
+			try
+			{
+				while (xml.hasNext ())
+				{
+					if (xml.next () != XMLStreamConstants.START_ELEMENT || !"row".equals (xml.getLocalName ()))
+					{
+						continue;
+					}
+					String r = xml.getAttributeValue (null, "r");
+					int rowIndex = (r != null)? Integer.parseInt (r) - 1 : lastRowIndex + 1;
+					lastRowIndex = rowIndex;
+					if (rowIndex < firstRow)
+					{
+						skipElement ();
+						continue;
+					}
+					readRow (rowIndex);
+					return true;
+				}
+				done = true;
+				return false;
+			}
+			catch (XMLStreamException | NumberFormatException e)
+			{
+				throw new IOException ("Invalid sheet XML: " + e.getMessage (), e);
+			}
+		}
+
+		@Override
+		public RowData getRow ()
+		{
+			return row;
+		}
+
+		@Override
+		public void close () throws IOException
+		{
+			done = true;
+			try
+			{
+				xml.close ();
+			}
+			catch (XMLStreamException e)
+			{
+				// The stream below is closed anyway
+			}
+			in.close ();
+		}
+
+		/** Reads the cells of the current <row> element, up to its end tag. */
+		private void readRow (int rowIndex) throws XMLStreamException
+		{
+			row.reset (rowIndex);
+			int column = -1;
+			while (true)
+			{
+				int event = xml.next ();
+				if (event == XMLStreamConstants.END_ELEMENT)
+				{
+					return;
+				}
+				if (event != XMLStreamConstants.START_ELEMENT)
+				{
+					continue;
+				}
+				if (!"c".equals (xml.getLocalName ()))
+				{
+					skipElement ();
+					continue;
+				}
+				String reference = xml.getAttributeValue (null, "r");
+				int referenced = (reference != null)? columnOf (reference) : -1;
+				column = (referenced >= 0)? referenced : column + 1;
+				readCell (column);
+			}
+		}
+
+		/** Reads the current <c> element, up to its end tag, into the given column. */
+		private void readCell (int column) throws XMLStreamException
+		{
+			String type = xml.getAttributeValue (null, "t");
+			String style = xml.getAttributeValue (null, "s");
+			String value = null;
+			String inline = null;
+			boolean formula = false;
+
+			while (true)
+			{
+				int event = xml.next ();
+				if (event == XMLStreamConstants.END_ELEMENT)
+				{
+					break;
+				}
+				if (event != XMLStreamConstants.START_ELEMENT)
+				{
+					continue;
+				}
+				switch (xml.getLocalName ())
+				{
+					case "v":
+						value = xml.getElementText ();
+						break;
+					case "f":
+						formula = true;
+						skipElement ();
+						break;
+					case "is":
+						inline = readInlineString ();
+						break;
+					default:
+						skipElement ();
+						break;
+				}
+			}
+
+			if (type == null || "n".equals (type))
+			{
+				if (value != null && !value.isEmpty ())
+				{
+					storeNumber (row, column, Double.parseDouble (value), styleIndex (style));
+				}
+				else if (formula)
+				{
+					// A formula without cached result reads as 0, as in the workbook reader
+					storeNumber (row, column, 0, styleIndex (style));
+				}
+				return;
+			}
+			switch (type)
+			{
+				case "s":
+					if (value != null && !value.isEmpty ())
+					{
+						row.setSharedString (column, Integer.parseInt (value.trim ()));
+					}
+					break;
+				case "inlineStr":
+					row.setString (column, OoxmlText.decodeEscapes ((inline != null)? inline : value));
+					break;
+				case "str":
+				case "d":
+					row.setString (column, OoxmlText.decodeEscapes (value));
+					break;
+				case "b":
+					if (value != null && !value.isEmpty ())
+					{
+						row.setBoolean (column, "1".equals (value) || "true".equalsIgnoreCase (value));
+					}
+					break;
+				case "e":
+					if (value != null && !value.isEmpty ())
+					{
+						row.setError (column, value);
+					}
+					break;
+				default:
+					break;
+			}
+		}
+
+		private int styleIndex (String style)
+		{
+			return (style != null)? Integer.parseInt (style) : 0;
+		}
+
+		/** Text of an <is> element: its <t> runs, without phonetic runs. */
+		private String readInlineString () throws XMLStreamException
+		{
+			StringBuilder text = new StringBuilder ();
+			int depth = 1;
+			int phoneticDepth = 0;
+			while (depth > 0)
+			{
+				int event = xml.next ();
+				if (event == XMLStreamConstants.START_ELEMENT)
+				{
+					String name = xml.getLocalName ();
+					if ("rPh".equals (name))
+					{
+						phoneticDepth++;
+						depth++;
+					}
+					else if ("t".equals (name) && phoneticDepth == 0)
+					{
+						text.append (xml.getElementText ());
+					}
+					else
+					{
+						depth++;
+					}
+				}
+				else if (event == XMLStreamConstants.END_ELEMENT)
+				{
+					depth--;
+					if ("rPh".equals (xml.getLocalName ()))
+					{
+						phoneticDepth--;
+					}
+				}
+			}
+			return text.toString ();
+		}
+
+		/** Skips the current element and its content, leaving the reader on its end tag. */
+		private void skipElement () throws XMLStreamException
+		{
+			int depth = 1;
+			while (depth > 0)
+			{
+				int event = xml.next ();
+				if (event == XMLStreamConstants.START_ELEMENT)
+				{
+					depth++;
+				}
+				else if (event == XMLStreamConstants.END_ELEMENT)
+				{
+					depth--;
+				}
+			}
+		}
+	}
+}
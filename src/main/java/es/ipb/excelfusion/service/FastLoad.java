@@ -0,0 +1,47 @@
+package es.ipb.excelfusion.service;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.function.Consumer;
+
+import es.ipb.excelfusion.config.ImportConfiguration;
+import es.ipb.excelfusion.ui.wizard.Step5DatabaseConfigPage.DbType;
+
+
+/**
+ * Database-specific steps of the opt-in fast-load mode (ImportConfiguration.isFastLoad): how the
+ * target table is created, and what runs on the import connection before the rows are loaded and
+ * after them (before the commit). Whatever beforeLoad changes, afterLoad puts back, or
+ * afterTransaction for what cannot change inside a transaction or was left by a rollback.
+ */
+interface FastLoad
+{
+
+	/**
+	 * Fast-load steps for dbType, or null if it has none.
+	 */
+	static FastLoad forDatabase (DbType dbType, ImportConfiguration config)
+	{
+		if (dbType == DbType.POSTGRESQL)
+		{
+			return new PgFastLoad ();
+		}
+		if (dbType == DbType.MARIADB)
+		{
+			return new MariaDbFastLoad (config.isSkipBinaryLog ());
+		}
+		return null;
+	}
+
+	/** What follows CREATE in the table DDL, e.g. "UNLOGGED TABLE". */
+	String tableKind ();
+
+	void beforeLoad (Connection conn, String tableName, Consumer <String> log) throws SQLException;
+
+	void afterLoad (Connection conn, String tableName, Consumer <String> log) throws SQLException;
+
+	/** Runs after the commit or the rollback. */
+	default void afterTransaction (Connection conn, Consumer <String> log) throws SQLException
+	{
+	}
+}
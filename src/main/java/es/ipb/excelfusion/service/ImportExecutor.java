@@ -3,35 +3,29 @@ package es.ipb.excelfusion.service;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
-import java.sql.DriverManager;
-import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.sql.Types;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
-import java.util.List;
 import java.util.Locale;
 import java.util.Set;
 
-import org.apache.poi.ss.usermodel.Cell;
-import org.apache.poi.ss.usermodel.DataFormatter;
-import org.apache.poi.ss.usermodel.Row;
-import org.apache.poi.ss.usermodel.Row.MissingCellPolicy;
-import org.apache.poi.ss.usermodel.Sheet;
-import org.apache.poi.ss.usermodel.Workbook;
-import org.apache.poi.ss.usermodel.WorkbookFactory;
-
 import es.ipb.excelfusion.config.ImportConfiguration;
+import es.ipb.excelfusion.config.ImportConfiguration.FormulaMode;
+import es.ipb.excelfusion.config.ImportConfiguration.InsertMode;
+import es.ipb.excelfusion.db.ConnectionPool;
+import es.ipb.excelfusion.db.ConnectionProvider;
+import es.ipb.excelfusion.db.DatabaseConnections;
+import es.ipb.excelfusion.db.DriverProfile;
+import es.ipb.excelfusion.excel.SheetRowReader;
 import es.ipb.excelfusion.ui.wizard.Step3StructureValidationPage.SheetValidationResult;
 import es.ipb.excelfusion.ui.wizard.Step4TypeInferencePage.ColumnDefinition;
 import es.ipb.excelfusion.ui.wizard.Step5DatabaseConfigPage.DbType;
@@ -48,30 +42,98 @@ public class ImportExecutor
 
 	private final ImportConfiguration	 config;
 	private final ImportProgressListener listener;
+	private final ConnectionProvider	 connectionProvider;
+	private final RowSpool				 spool;
+	private final ConnectionPool		 pool;
+	private final ImportMetrics			 metrics = new ImportMetrics ();
 
 	public ImportExecutor (ImportConfiguration config, ImportProgressListener listener)
+	{
+		this (config, listener, null);
+	}
+
+	/**
+	 * @param connectionProvider source of the import connection; null = DriverManager with the configured URL
+	 */
+	public ImportExecutor (ImportConfiguration config, ImportProgressListener listener,
+	                       ConnectionProvider connectionProvider)
+	{
+		this (config, listener, connectionProvider, null);
+	}
+
+	/**
+	 * @param spool sheets pre-parsed while the wizard was open; null = parse every sheet here
+	 */
+	public ImportExecutor (ImportConfiguration config, ImportProgressListener listener,
+	                       ConnectionProvider connectionProvider, RowSpool spool)
+	{
+		this (config, listener, connectionProvider, spool, null);
+	}
+
+	/**
+	 * @param pool connections of the wizard session, configured here for the import; null = a new
+	 *            connection per use
+	 */
+	public ImportExecutor (ImportConfiguration config, ImportProgressListener listener, RowSpool spool,
+	                       ConnectionPool pool)
+	{
+		this (config, listener, null, spool, pool);
+	}
+
+	private ImportExecutor (ImportConfiguration config, ImportProgressListener listener,
+	                        ConnectionProvider connectionProvider, RowSpool spool, ConnectionPool pool)
 	{
 		this.config = config;
 		this.listener = listener;
+		this.connectionProvider = connectionProvider;
+		this.spool = spool;
+		this.pool = pool;
 	}
 
 	public void execute () throws Exception
 	{
+		metrics.start ();
 		try
 		{
 			doExecute ();
+			metrics.finish ();
+			log (String.format (Locale.ROOT, "Imported %d rows in %d ms (%.0f rows/s, %s%s).", metrics.getTotalRows (),
+			                    metrics.getElapsedMillis (), metrics.getRowsPerSecond (), metrics.getLoadMethod (),
+			                    (metrics.getDriverProfile () != null)? ", driver profile " + metrics.getDriverProfile ()
+			                                                         : ""));
+			StringBuilder phases = new StringBuilder ();
+			for (java.util.Map.Entry <String, Long> phase : metrics.getPhaseMillis ().entrySet ())
+			{
+				phases.append ((phases.length () == 0)? "Phases: " : ", ").append (phase.getKey ()).append (' ')
+				      .append (phase.getValue ()).append (" ms");
+			}
+			log (phases.toString ());
 			notifyCompleted ();
 		}
 		catch (Exception e)
 		{
+			metrics.finish ();
 			notifyError (e);
 			throw e;
 		}
 	}
 
+	/**
+	 * Throughput figures of the last execute() call.
+	 */
+	public ImportMetrics getMetrics ()
+	{
+		return metrics;
+	}
+
 	private void doExecute () throws Exception
 	{
 		validateConfiguration ();
+		if (spool != null)
+		{
+			// Sheets not spooled by now are parsed here
+			spool.drain ();
+		}
 
 		java.util.List <SheetValidationResult> sheetsToImport = config.getSheetsToImport ();
 		if (sheetsToImport == null || sheetsToImport.isEmpty ())
@@ -98,9 +160,33 @@ public class ImportExecutor
 		String normalizedTableName = normalizeIdentifier (tableName);
 		String jdbcUrl = buildJdbcUrl (dbType, host, port, dbName);
 
-		log ("Connecting to database: " + jdbcUrl);
+		log ("Connecting to database: " + ((connectionProvider != null)? "<provided connection>" : jdbcUrl));
 
-		try (Connection conn = DriverManager.getConnection (jdbcUrl, user, password))
+		ConnectionProvider connections;
+		if (connectionProvider != null)
+		{
+			connections = connectionProvider;
+		}
+		else
+		{
+			java.util.Map <String, String> driverProperties = DriverProfile.resolve (config.getDriverProfile (), dbType,
+			                                                                         config.getDriverProperties ());
+			log ("Driver profile " + config.getDriverProfile () + ": "
+			     + (driverProperties.isEmpty ()? "driver defaults" : driverProperties.toString ()));
+			metrics.setDriverSettings (config.getDriverProfile ().name (), driverProperties);
+			if (pool != null)
+			{
+				// Keeps the connections opened with these settings, such as the one tested in step 5
+				pool.configure (jdbcUrl, user, password, driverProperties);
+				connections = pool;
+			}
+			else
+			{
+				connections = () -> DatabaseConnections.open (jdbcUrl, user, password, driverProperties);
+			}
+		}
+
+		try (Connection conn = connections.getConnection ())
 		{
 			conn.setAutoCommit (false);
 
@@ -110,16 +196,38 @@ public class ImportExecutor
 				throw new IllegalStateException ("Target table '" + normalizedTableName + "' already exists.");
 			}
 
+			FastLoad fastLoad = config.isFastLoad ()? newFastLoad (dbType) : null;
+			if (config.isFastLoad () && fastLoad == null)
+			{
+				log ("Fast load has no effect on " + dbType + ".");
+			}
+
 			log ("Creating table '" + normalizedTableName + "'...");
-			createTargetTable (conn, dbType, normalizedTableName);
+			long phaseStart = System.nanoTime ();
+			boolean tableCreated = false;
+			try
+			{
+				createTargetTable (conn, dbType, normalizedTableName, fastLoad);
+				tableCreated = true;
+				phaseStart = endPhase ("create table", phaseStart);
+				if (fastLoad != null)
+				{
+					fastLoad.beforeLoad (conn, normalizedTableName, this::log);
+					phaseStart = endPhase ("fast-load setup", phaseStart);
+				}
+			}
+			catch (Exception e)
+			{
+				abandonLoad (conn, normalizedTableName, fastLoad, tableCreated, e);
+				throw e;
+			}
+			boolean committed = false;
 
-			String insertSql = buildInsertSql (normalizedTableName);
-			log ("Prepared INSERT statement: " + insertSql);
+			ImportPlan plan = ImportPlan.compile (config);
 
-			try (PreparedStatement ps = conn.prepareStatement (insertSql))
+			try (RowSink sink = openSink (conn, normalizedTableName, plan))
 			{
 				int fileIndex = 0;
-				DataFormatter formatter = new DataFormatter (Locale.getDefault ());
 
 				for (java.util.Map.Entry <File, java.util.List <SheetValidationResult>> entry : sheetsByFile
 				        .entrySet ())
@@ -133,30 +241,63 @@ public class ImportExecutor
 
 					log ("Opening file: " + file.getName ());
 
-					try (FileInputStream fis = new FileInputStream (file);
-					     Workbook workbook = WorkbookFactory.create (fis))
+					java.util.Map <String, File> spooled = spooledSheets (file, sheetResults);
+					java.util.List <SheetValidationResult> toParse = new ArrayList <> ();
+					for (SheetValidationResult svr : sheetResults)
+					{
+						if (!spooled.containsKey (svr.getSheetName ()))
+						{
+							toParse.add (svr);
+						}
+					}
+					if (!spooled.isEmpty ())
+					{
+						log ("  Using pre-parsed rows for " + spooled.size () + " sheet(s).");
+					}
+					boolean needsReader = false;
+					for (SheetValidationResult svr : toParse)
+					{
+						needsReader |= !"<all sheets>".equals (svr.getSheetName ());
+					}
+
+					try (SheetRowReader reader = needsReader? openReader (file, toParse) : null;
+					     ParallelSheetParser parser = needsReader? startParser (reader, toParse, plan) : null)
 					{
+						java.util.List <String> sheetNames = (reader != null)? reader.getSheetNames ()
+						                                                     : java.util.Collections.emptyList ();
+						int parsedIndex = 0;
 
 						for (SheetValidationResult svr : sheetResults)
 						{
 							sheetIndex++;
 							String sheetName = svr.getSheetName ();
-							if ("<all sheets>".equals (sheetName))
+							File spoolFile = spooled.get (sheetName);
+							if (spoolFile == null && !isImportable (sheetName, sheetNames))
 							{
-								// Was an error placeholder in step 3
-								continue;
-							}
-
-							Sheet sheet = workbook.getSheet (sheetName);
-							if (sheet == null)
-							{
-								log ("  Skipping sheet '" + sheetName + "' (not found).");
+								if (!"<all sheets>".equals (sheetName))
+								{
+									log ("  Skipping sheet '" + sheetName + "' (not found).");
+								}
+								// "<all sheets>" was an error placeholder in step 3
 								continue;
 							}
 
 							notifySheetStarted (fileIndex, totalFiles, sheetIndex, totalSheetsInFile, file, sheetName);
 
-							importSheetData (sheet, formatter, ps);
+							long sheetStart = System.nanoTime ();
+							SheetRows sheetRows;
+							if (spoolFile != null)
+							{
+								sheetRows = RowSpool.rows (spoolFile, plan.sourceColumns);
+							}
+							else
+							{
+								sheetRows = (parser != null)? parser.rows (parsedIndex++)
+								                            : SheetRows.of (reader.openSheet (sheetName, getDataStartIndex ()),
+								                                            plan.sourceColumns);
+							}
+							long rows = importSheetData (sheetRows, plan, sink);
+							metrics.addSheet (file.getName (), sheetName, rows, System.nanoTime () - sheetStart);
 
 							notifySheetCompleted (fileIndex, totalFiles, sheetIndex, totalSheetsInFile, file,
 							                      sheetName);
@@ -165,23 +306,77 @@ public class ImportExecutor
 					}
 				}
 
+				sink.finish ();
+				phaseStart = endPhase ("load", phaseStart);
+				if (fastLoad != null)
+				{
+					fastLoad.afterLoad (conn, normalizedTableName, this::log);
+					phaseStart = endPhase ("fast-load finish", phaseStart);
+				}
 				log ("Committing transaction...");
 				conn.commit ();
+				committed = true;
 				log ("Transaction committed.");
+				endPhase ("commit", phaseStart);
+				if (fastLoad != null)
+				{
+					fastLoad.afterTransaction (conn, this::log);
+				}
 
 				updateImportedFileList ();
 				log ("Updated traspasados_a_BBDD.txt.");
 			}
 			catch (Exception e)
 			{
-				log ("Error during import. Rolling back transaction...");
-				conn.rollback ();
-				log ("Transaction rolled back.");
+				abandonLoad (conn, normalizedTableName, fastLoad, !committed, e);
 				throw e;
 			}
+
+			java.util.List <String> indexedColumns = indexedColumnIdentifiers ();
+			if (!indexedColumns.isEmpty ())
+			{
+				log ("Creating " + indexedColumns.size () + " index(es)...");
+				long indexStart = System.nanoTime ();
+				try
+				{
+					new IndexBuilder (dbType, connections, this::log).build (conn, normalizedTableName, indexedColumns);
+				}
+				catch (SQLException e)
+				{
+					throw new SQLException ("The rows were imported, but creating the indexes failed: " + e.getMessage (),
+					                        e);
+				}
+				endPhase ("indexes", indexStart);
+			}
 		}
 	}
 
+	/**
+	 * Normalized names of the columns to index after the load, in table order.
+	 */
+	private java.util.List <String> indexedColumnIdentifiers ()
+	{
+		java.util.List <String> identifiers = new ArrayList <> ();
+		for (ColumnDefinition col : config.getColumns ())
+		{
+			if (config.getIndexedColumns ().contains (col.getName ()))
+			{
+				identifiers.add (normalizeIdentifier (col.getName ()));
+			}
+		}
+		return identifiers;
+	}
+
+	/**
+	 * Records the phase that started at phaseStart (System.nanoTime) and returns its end.
+	 */
+	private long endPhase (String phase, long phaseStart)
+	{
+		long now = System.nanoTime ();
+		metrics.addPhase (phase, now - phaseStart);
+		return now;
+	}
+
 	private void validateConfiguration ()
 	{
 		if (config.getSelectedFiles () == null || config.getSelectedFiles ().isEmpty ())
@@ -228,13 +423,69 @@ public class ImportExecutor
 
 	private String buildJdbcUrl (DbType dbType, String host, int port, String dbName)
 	{
-		if (dbType == DbType.MARIADB)
+		return DatabaseConnections.buildJdbcUrl (dbType, host, port, dbName);
+	}
+
+	/**
+	 * Fast-load steps for dbType (FastLoad.forDatabase), or null; package-private so tests can make
+	 * them fail.
+	 */
+	FastLoad newFastLoad (DbType dbType)
+	{
+		return FastLoad.forDatabase (dbType, config);
+	}
+
+	/**
+	 * Cleans up after a failed import: rolls back, has the fast load put the session settings back
+	 * and drops the target table if dropTable (DDL commits on MariaDB, so the rollback leaves it
+	 * there). Errors on the way are added to failure. If the settings could not be restored, the
+	 * connection is aborted rather than closed, so that a pool does not hand it out again.
+	 */
+	private void abandonLoad (Connection conn, String tableName, FastLoad fastLoad, boolean dropTable,
+	                          Exception failure)
+	{
+		log ("Error during import. Rolling back transaction...");
+		try
 		{
-			return "jdbc:mariadb://" + host + ":" + port + "/" + dbName;
+			conn.rollback ();
+			log ("Transaction rolled back.");
 		}
-		else
+		catch (SQLException e)
+		{
+			failure.addSuppressed (e);
+		}
+		if (fastLoad != null)
 		{
-			return "jdbc:postgresql://" + host + ":" + port + "/" + dbName;
+			try
+			{
+				fastLoad.afterTransaction (conn, this::log);
+			}
+			catch (SQLException e)
+			{
+				failure.addSuppressed (e);
+				try
+				{
+					conn.abort (Runnable::run);
+				}
+				catch (SQLException abortFailure)
+				{
+					failure.addSuppressed (abortFailure);
+				}
+				return;
+			}
+		}
+		if (dropTable)
+		{
+			try (Statement st = conn.createStatement ())
+			{
+				st.execute ("DROP TABLE IF EXISTS " + tableName);
+				conn.commit ();
+				log ("Dropped table '" + tableName + "'.");
+			}
+			catch (SQLException e)
+			{
+				failure.addSuppressed (e);
+			}
 		}
 	}
 
@@ -247,13 +498,18 @@ public class ImportExecutor
 		}
 	}
 
-	private void createTargetTable (Connection conn, DbType dbType, String tableName) throws SQLException
+	/**
+	 * @param fastLoad fast-load steps deciding the kind of table; null = a plain table
+	 */
+	private void createTargetTable (Connection conn, DbType dbType, String tableName, FastLoad fastLoad)
+	        throws SQLException
 	{
 		java.util.List <ColumnDefinition> cols = config.getColumns ();
 		boolean autoIncrement = config.isAutoIncrement ();
 
 		StringBuilder sb = new StringBuilder ();
-		sb.append ("CREATE TABLE ").append (tableName).append (" (");
+		sb.append ("CREATE ").append ((fastLoad != null)? fastLoad.tableKind () : "TABLE").append (' ').append (tableName)
+		  .append (" (");
 
 		boolean first = true;
 
@@ -295,6 +551,29 @@ public class ImportExecutor
 	}
 
 	private String buildInsertSql (String tableName)
+	{
+		StringBuilder sb = new StringBuilder (buildInsertHead (tableName));
+		sb.append ("(");
+
+		boolean first = true;
+		for (int i = 0; i < config.getColumns ().size (); i++)
+		{
+			if (!first)
+			{
+				sb.append (", ");
+			}
+			first = false;
+			sb.append ("?");
+		}
+		sb.append (")");
+
+		return sb.toString ();
+	}
+
+	/**
+	 * INSERT statement up to its rows: INSERT INTO t (a, b) VALUES
+	 */
+	private String buildInsertHead (String tableName)
 	{
 		java.util.List <ColumnDefinition> cols = config.getColumns ();
 
@@ -313,114 +592,248 @@ public class ImportExecutor
 			sb.append (normalizeIdentifier (col.getName ()));
 		}
 
-		sb.append (") VALUES (");
+		sb.append (") VALUES ");
+		return sb.toString ();
+	}
 
-		first = true;
-		for (int i = 0; i < cols.size (); i++)
+	private String buildCopySql (String tableName)
+	{
+		StringBuilder sb = new StringBuilder ();
+		sb.append ("COPY ").append (tableName).append (" (");
+
+		boolean first = true;
+		// The auto-increment ID column takes its default
+		for (ColumnDefinition col : config.getColumns ())
 		{
 			if (!first)
 			{
 				sb.append (", ");
 			}
 			first = false;
-			sb.append ("?");
+			sb.append (normalizeIdentifier (col.getName ()));
 		}
-		sb.append (")");
 
+		sb.append (") FROM STDIN (FORMAT binary)");
 		return sb.toString ();
 	}
 
-	private void importSheetData (Sheet sheet, DataFormatter formatter, PreparedStatement ps) throws SQLException
+	/**
+	 * Opens the reader for one file (see SourceReaders.open).
+	 */
+	private SheetRowReader openReader (File file, java.util.List <SheetValidationResult> sheetResults)
+	        throws IOException
 	{
+		java.util.List <String> sheetNames = new ArrayList <> ();
+		for (SheetValidationResult svr : sheetResults)
+		{
+			sheetNames.add (svr.getSheetName ());
+		}
+		return SourceReaders.open (file, sheetNames, config.getFormulaMode () == FormulaMode.EVALUATE,
+		                           getDataStartIndex (), this::log);
+	}
 
-		// Integer headerRow = config.getHeaderRow (); // 1-based or null
-		Integer dataStartRow = config.getDataStartRow (); // 1-based
-
-		// int headerRowIndex = (headerRow != null && headerRow > 0)? (headerRow - 1) : -1;
-		int dataStartIndex = (dataStartRow != null? dataStartRow - 1 : 0);
-
-		int lastRow = sheet.getLastRowNum ();
-		int columnCount = config.getColumns ().size ();
+	/**
+	 * Spool files of the sheets of file that the spool holds complete and current, by sheet name.
+	 */
+	private java.util.Map <String, File> spooledSheets (File file, java.util.List <SheetValidationResult> sheetResults)
+	        throws IOException
+	{
+		if (spool == null)
+		{
+			return java.util.Collections.emptyMap ();
+		}
+		java.util.List <String> sheetNames = new ArrayList <> ();
+		for (SheetValidationResult svr : sheetResults)
+		{
+			sheetNames.add (svr.getSheetName ());
+		}
+		return spool.completedSheets (file, sheetNames, getDataStartIndex (),
+		                              config.getFormulaMode () == FormulaMode.EVALUATE);
+	}
 
-		// per-column fillEmptyCells
+	private static boolean isImportable (String sheetName, java.util.List <String> sheetNames)
+	{
+		return !"<all sheets>".equals (sheetName) && sheetNames.contains (sheetName);
+	}
 
-		boolean[] fillEmptyByColumn = new boolean[columnCount];
+	/**
+	 * Starts parsing the importable sheets of the file in the background when the reader allows
+	 * concurrent sheets; null means the sheets are read on the import thread.
+	 */
+	private ParallelSheetParser startParser (SheetRowReader reader, java.util.List <SheetValidationResult> sheetResults,
+	                                         ImportPlan plan)
+	{
+		if (!reader.supportsConcurrentSheets ())
+		{
+			return null;
+		}
+		java.util.List <String> sheetNames = reader.getSheetNames ();
+		java.util.List <String> importable = new ArrayList <> ();
+		for (SheetValidationResult svr : sheetResults)
 		{
-			List <Boolean> fillEmptyColumnsCfg = config.getFillEmptyColumns ();
-			for (int c = 0; c < columnCount; c++)
+			if (isImportable (svr.getSheetName (), sheetNames))
 			{
-				boolean fill = false;
-				if (fillEmptyColumnsCfg != null && c < fillEmptyColumnsCfg.size ())
-				{
-					Boolean b = fillEmptyColumnsCfg.get (c);
-					fill = (b != null && b.booleanValue ());
-				}
-				fillEmptyByColumn[c] = fill;
+				importable.add (svr.getSheetName ());
 			}
 		}
+		if (importable.isEmpty ())
+		{
+			return null;
+		}
+		int threads = ParallelSheetParser.threadBudget (importable.size ());
+		log ("  Parsing " + importable.size () + " sheet(s) on " + threads + " thread(s).");
+		return new ParallelSheetParser (reader, importable, getDataStartIndex (), plan.sourceColumns, threads);
+	}
+
+	private int getDataStartIndex ()
+	{
+		Integer dataStartRow = config.getDataStartRow (); // 1-based
+		return (dataStartRow != null? dataStartRow - 1 : 0);
+	}
+
+	/**
+	 * Sink for the target table, as chosen by ImportConfiguration.getInsertMode: binary COPY (only on
+	 * a PostgreSQL connection; multi-row INSERTs on others), multi-row or batched INSERTs.
+	 */
+	private RowSink openSink (Connection conn, String tableName, ImportPlan plan) throws SQLException
+	{
+		InsertMode mode = config.getInsertMode ();
+		if (mode == InsertMode.COPY && DatabaseConnections.isPostgreSql (conn))
+		{
+			String copySql = buildCopySql (tableName);
+			log ("Loading rows with: " + copySql);
+			metrics.setLoadMethod ("binary COPY");
+			return new PgBinaryCopySink (conn, copySql, plan.columnCount);
+		}
+		if (mode != InsertMode.BATCHED)
+		{
+			String insertHead = buildInsertHead (tableName);
+			log ("Loading rows with: " + insertHead + "(...), ... ("
+			     + MultiRowInsertSink.rowsPerStatement (plan.columnCount) + " rows per statement)");
+			metrics.setLoadMethod ("multi-row INSERT");
+			return new MultiRowInsertSink (conn, insertHead, plan);
+		}
+		String insertSql = buildInsertSql (tableName);
+		log ("Prepared INSERT statement: " + insertSql);
+		metrics.setLoadMethod ("batched INSERT");
+		return new InsertSink (conn, insertSql, plan);
+	}
 
-		String[] previousRowValues = new String[columnCount];
+	/**
+	 * Adds the data rows of one sheet to the sink and returns how many rows were added.
+	 */
+	private long importSheetData (SheetRows sheetRows, ImportPlan plan, RowSink sink)
+	        throws SQLException, IOException
+	{
+		int dataStartIndex = getDataStartIndex ();
+
+		int maxEmptyRun = config.getMaxConsecutiveEmptyRows ();
+		int emptyRun = 0;
+		int columnCount = plan.columnCount;
+
+		long insertedRows = 0;
 
-		for (int r = dataStartIndex; r <= lastRow; r++)
+		try (SheetRows source = sheetRows)
 		{
-			Row row = sheet.getRow (r);
+			// One reused row: holds the current row and the last added row's fill-down values
+			TargetRow row = new TargetRow (source, plan.fillDown, sink.writesUtf8 ());
+			int nextRow = dataStartIndex;
 
-			String[] currentValues = new String[columnCount];
-			boolean rowHasAnyValue = false;
+			// Rows without a source value since the last row with one: they are only data (blank or
+			// filled down) if another row with a value follows before the empty-row limit
+			int blankRun = 0;
 
-			for (int c = 0; c < columnCount; c++)
+			rows:
+			while (source.next ())
 			{
-				Cell cell = (row != null)? row.getCell (c, MissingCellPolicy.RETURN_BLANK_AS_NULL) : null;
+				int rowIndex = source.getRowIndex ();
+				boolean populated = source.isPopulated ();
 
-				String value;
-				if (cell == null)
+				// Empty and missing rows only count once a populated row follows (styled blank rows at
+				// the end are not data), unless they already reach the empty-row limit
+				if (!populated && (maxEmptyRun <= 0 || emptyRun + rowIndex - nextRow + 1 < maxEmptyRun))
 				{
-					value = "";
-				}
-				else
-				{
-					value = formatter.formatCellValue (cell);
+					continue;
 				}
 
-				if ((value == null || value.trim ().isEmpty ()) && fillEmptyByColumn[c])
+				for (int r = nextRow; r <= rowIndex; r++)
 				{
-					if (previousRowValues[c] != null)
+					if (r < rowIndex || !populated || !hasSourceValue (source, columnCount))
 					{
-						value = previousRowValues[c];
+						if (maxEmptyRun > 0 && ++emptyRun >= maxEmptyRun)
+						{
+							log ("  Stopped at row " + (r + 1) + " after " + emptyRun + " consecutive empty rows.");
+							break rows;
+						}
+						blankRun++;
+						continue;
 					}
-				}
 
-				if (value != null && !value.trim ().isEmpty ())
-				{
-					rowHasAnyValue = true;
-				}
+					insertedRows += addBlankRows (row, blankRun, columnCount, sink);
+					blankRun = 0;
+					emptyRun = 0;
 
-				currentValues[c] = value;
+					for (int c = 0; c < columnCount; c++)
+					{
+						if (row.setFromSource (c) && row.canFillDown (c))
+						{
+							row.setFilledDown (c);
+						}
+					}
+					sink.addRow (row);
+					insertedRows++;
+					row.keepFillDownValues ();
+				}
+				nextRow = rowIndex + 1;
 			}
+		}
+
+		sink.flush ();
+		return insertedRows;
+	}
 
-			if (!rowHasAnyValue)
+	/** True if the current source row has a non-blank value in some planned column. */
+	private static boolean hasSourceValue (SheetRows source, int columnCount)
+	{
+		for (int c = 0; c < columnCount; c++)
+		{
+			if (!source.isBlank (c))
 			{
-				continue;
+				return true;
 			}
+		}
+		return false;
+	}
 
-			for (int c = 0; c < columnCount; c++)
+	/**
+	 * Adds count rows without a source value, as their fill-down values (none are added if no
+	 * column has one) and returns how many were added.
+	 */
+	private static long addBlankRows (TargetRow row, int count, int columnCount, RowSink sink) throws SQLException
+	{
+		if (count == 0)
+		{
+			return 0;
+		}
+		boolean rowHasAnyValue = false;
+		for (int c = 0; c < columnCount; c++)
+		{
+			row.setEmpty (c);
+			if (row.canFillDown (c))
 			{
-				String v = currentValues[c];
-				if (v == null)
-				{
-					ps.setNull (c + 1, Types.VARCHAR);
-				}
-				else
-				{
-					ps.setString (c + 1, v);
-				}
+				rowHasAnyValue |= !row.setFilledDown (c);
 			}
-
-			ps.addBatch ();
-			previousRowValues = currentValues;
 		}
-
-		ps.executeBatch ();
+		if (!rowHasAnyValue)
+		{
+			return 0;
+		}
+		for (int i = 0; i < count; i++)
+		{
+			sink.addRow (row);
+		}
+		row.keepFillDownValues ();
+		return count;
 	}
 
 	private void updateImportedFileList ()
@@ -0,0 +1,162 @@
+package es.ipb.excelfusion.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Collects throughput figures for one import run.
+ * Filled by ImportExecutor and available after execute() returns (or fails).
+ */
+public class ImportMetrics
+{
+
+	private long					 startNanos;
+	private long					 endNanos;
+	private long					 totalRows;
+	private final List <SheetMetrics> sheets = new ArrayList <> ();
+	private String					 driverProfile;
+	private Map <String, String>	 driverProperties = Collections.emptyMap ();
+	private String					 loadMethod;
+	private final Map <String, Long> phaseNanos		= new LinkedHashMap <> ();
+
+	void start ()
+	{
+		startNanos = System.nanoTime ();
+		endNanos = 0;
+		totalRows = 0;
+		sheets.clear ();
+		driverProfile = null;
+		driverProperties = Collections.emptyMap ();
+		loadMethod = null;
+		phaseNanos.clear ();
+	}
+
+	void finish ()
+	{
+		endNanos = System.nanoTime ();
+	}
+
+	void addSheet (String fileName, String sheetName, long rows, long elapsedNanos)
+	{
+		sheets.add (new SheetMetrics (fileName, sheetName, rows, elapsedNanos));
+		totalRows += rows;
+	}
+
+	void setDriverSettings (String profile, Map <String, String> properties)
+	{
+		driverProfile = profile;
+		driverProperties = Collections.unmodifiableMap (new LinkedHashMap <> (properties));
+	}
+
+	void addPhase (String phase, long elapsedNanos)
+	{
+		phaseNanos.merge (phase, elapsedNanos, Long::sum);
+	}
+
+	void setLoadMethod (String method)
+	{
+		loadMethod = method;
+	}
+
+	public long getTotalRows ()
+	{
+		return totalRows;
+	}
+
+	public long getElapsedMillis ()
+	{
+		long end = (endNanos != 0)? endNanos : System.nanoTime ();
+		return (end - startNanos) / 1_000_000L;
+	}
+
+	public double getRowsPerSecond ()
+	{
+		long millis = getElapsedMillis ();
+		return (millis > 0)? (totalRows * 1000.0 / millis) : 0.0;
+	}
+
+	/**
+	 * Driver profile of the import connection; null for a connection from a ConnectionProvider.
+	 */
+	public String getDriverProfile ()
+	{
+		return driverProfile;
+	}
+
+	/**
+	 * Driver properties the import connection was opened with (profile plus overrides).
+	 */
+	public Map <String, String> getDriverProperties ()
+	{
+		return driverProperties;
+	}
+
+	/**
+	 * How the rows were sent: "binary COPY", "multi-row INSERT" or "batched INSERT".
+	 */
+	public String getLoadMethod ()
+	{
+		return loadMethod;
+	}
+
+	/**
+	 * Elapsed time of each phase of the run (create table, load, commit...), in order.
+	 */
+	public Map <String, Long> getPhaseMillis ()
+	{
+		Map <String, Long> millis = new LinkedHashMap <> ();
+		for (Map.Entry <String, Long> phase : phaseNanos.entrySet ())
+		{
+			millis.put (phase.getKey (), phase.getValue () / 1_000_000L);
+		}
+		return millis;
+	}
+
+	public List <SheetMetrics> getSheets ()
+	{
+		return Collections.unmodifiableList (sheets);
+	}
+
+	/**
+	 * Rows and elapsed time for a single file@sheet.
+	 */
+	public static class SheetMetrics
+	{
+		private final String fileName;
+		private final String sheetName;
+		private final long	 rows;
+		private final long	 elapsedNanos;
+
+		SheetMetrics (String fileName, String sheetName, long rows, long elapsedNanos)
+		{
+			this.fileName = fileName;
+			this.sheetName = sheetName;
+			this.rows = rows;
+			this.elapsedNanos = elapsedNanos;
+		}
+
+		public String getFileName ()
+		{
+			return fileName;
+		}
+
+		public String getSheetName ()
+		{
+			return sheetName;
+		}
+
+		public long getRows ()
+		{
+			return rows;
+		}
+
+		public long getElapsedMillis ()
+		{
+			return elapsedNanos / 1_000_000L;
+		}
+	}
+}
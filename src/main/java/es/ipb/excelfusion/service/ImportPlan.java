@@ -0,0 +1,80 @@
+package es.ipb.excelfusion.service;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.List;
+
+import es.ipb.excelfusion.config.ImportConfiguration;
+import es.ipb.excelfusion.ui.wizard.Step4TypeInferencePage.ColumnDefinition;
+
+
+/**
+ * Import plan compiled once per run from the column list, their types and the fill-down flags.
+ *
+ * Every column gets its source column and binder (text -> statement parameter), chosen from the
+ * column type before the row loop starts, so the inner loop only indexes fixed arrays instead of
+ * re-deciding per cell. Cell text comes from RowData.getText, which formats numbers with the
+ * compiled format of the cell and passes strings through as stored.
+ */
+final class ImportPlan
+{
+
+	/**
+	 * Binds one value to a statement parameter.
+	 */
+	interface ParameterBinder
+	{
+		void bind (PreparedStatement ps, int parameterIndex, String value) throws SQLException;
+	}
+
+	private static final ParameterBinder TEXT_BINDER		= ImportPlan::bindText;
+
+	final int							 columnCount;
+	final int[]							 sourceColumns;
+	final ParameterBinder[]				 binders;
+	final boolean[]						 fillDown;
+
+	private ImportPlan (int columnCount)
+	{
+		this.columnCount = columnCount;
+		this.sourceColumns = new int[columnCount];
+		this.binders = new ParameterBinder[columnCount];
+		this.fillDown = new boolean[columnCount];
+	}
+
+	static ImportPlan compile (ImportConfiguration config)
+	{
+		List <ColumnDefinition> columns = config.getColumns ();
+		List <Boolean> fillEmptyColumnsCfg = config.getFillEmptyColumns ();
+
+		ImportPlan plan = new ImportPlan (columns.size ());
+		for (int c = 0; c < plan.columnCount; c++)
+		{
+			ColumnDefinition col = columns.get (c);
+
+			plan.sourceColumns[c] = col.getIndex ();
+			// All target columns are created as TEXT, so every column binds as a string
+			plan.binders[c] = TEXT_BINDER;
+
+			if (fillEmptyColumnsCfg != null && c < fillEmptyColumnsCfg.size ())
+			{
+				Boolean b = fillEmptyColumnsCfg.get (c);
+				plan.fillDown[c] = (b != null && b.booleanValue ());
+			}
+		}
+		return plan;
+	}
+
+	private static void bindText (PreparedStatement ps, int parameterIndex, String value) throws SQLException
+	{
+		if (value == null)
+		{
+			ps.setNull (parameterIndex, Types.VARCHAR);
+		}
+		else
+		{
+			ps.setString (parameterIndex, value);
+		}
+	}
+}
@@ -0,0 +1,236 @@
+package es.ipb.excelfusion.service;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+import es.ipb.excelfusion.db.ConnectionProvider;
+import es.ipb.excelfusion.db.DatabaseConnections;
+import es.ipb.excelfusion.ui.wizard.Step5DatabaseConfigPage.DbType;
+
+
+/**
+ * Creates the indexes of the imported table after the rows are committed, so the load itself
+ * never maintains them.
+ *
+ * MariaDB gets a single ALTER TABLE ... ADD INDEX ..., ADD INDEX ...: InnoDB builds all of them in
+ * one pass over the table. PostgreSQL builds one index per statement, and builds on the same table
+ * do not block each other (SHARE lock), so they are spread over up to MAX_CONNECTIONS connections
+ * of their own, each letting the server use up to PARALLEL_WORKERS workers per build
+ * (max_parallel_maintenance_workers). Other databases (an embedded one in PostgreSQL mode) get
+ * the statements one after another on the import connection.
+ *
+ * Every column is TEXT. MariaDB cannot index TEXT as a whole, so its indexes cover the first
+ * MARIADB_PREFIX_LENGTH characters. A PostgreSQL btree entry must fit in about a third of a page
+ * (2704 bytes), so a column holding a longer value gets a hash index instead: equality lookups
+ * only, but no size limit.
+ */
+final class IndexBuilder
+{
+
+	/** Connections building PostgreSQL indexes at the same time, at most. */
+	static final int				 MAX_CONNECTIONS	   = 4;
+
+	/** Parallel maintenance workers per PostgreSQL index build. */
+	static final int				 PARALLEL_WORKERS	   = 2;
+
+	private static final String		 MAINTENANCE_WORK_MEM  = "256MB";
+
+	/** Indexed characters of a MariaDB TEXT column: 1020 bytes in utf8mb4, under InnoDB's 3072. */
+	static final int				 MARIADB_PREFIX_LENGTH = 255;
+
+	/** Longest value (in bytes) that keeps a PostgreSQL column on a btree index, with room to spare. */
+	static final int				 BTREE_MAX_VALUE_BYTES = 2000;
+
+	/** PostgreSQL identifiers are truncated at 63 bytes, MariaDB's are limited to 64 characters. */
+	private static final int		 MAX_NAME_LENGTH	   = 63;
+
+	private final DbType			 dbType;
+	private final ConnectionProvider connections;
+	private final Consumer <String>	 log;
+
+	/**
+	 * @param connections source of the extra connections for parallel builds
+	 */
+	IndexBuilder (DbType dbType, ConnectionProvider connections, Consumer <String> log)
+	{
+		this.dbType = dbType;
+		this.connections = connections;
+		this.log = log;
+	}
+
+	/**
+	 * Creates one index per column of tableName (normalized identifiers). conn is the import
+	 * connection, with nothing pending.
+	 */
+	void build (Connection conn, String tableName, List <String> columnNames) throws SQLException
+	{
+		if (columnNames.isEmpty ())
+		{
+			return;
+		}
+		if (dbType == DbType.MARIADB)
+		{
+			execute (conn, mariaDbIndexSql (tableName, columnNames));
+			return;
+		}
+
+		if (!DatabaseConnections.isPostgreSql (conn))
+		{
+			for (String column : columnNames)
+			{
+				execute (conn, indexSql (tableName, column, false));
+			}
+			conn.commit ();
+			return;
+		}
+		Queue <String> pending = new ConcurrentLinkedQueue <> (columnNames);
+		List <SQLException> failures = new ArrayList <> ();
+		List <Thread> builders = new ArrayList <> ();
+		int threads = Math.min (columnNames.size (), MAX_CONNECTIONS);
+		for (int t = 0; t < threads; t++)
+		{
+			Thread builder = new Thread ( () -> buildPending (tableName, pending, failures), "IndexBuilder-" + t);
+			builder.setDaemon (true);
+			builder.start ();
+			builders.add (builder);
+		}
+		for (Thread builder : builders)
+		{
+			try
+			{
+				builder.join ();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread ().interrupt ();
+				pending.clear ();
+				throw new SQLException ("Interrupted while creating indexes", e);
+			}
+		}
+
+		if (!failures.isEmpty ())
+		{
+			SQLException first = failures.get (0);
+			for (int i = 1; i < failures.size (); i++)
+			{
+				first.addSuppressed (failures.get (i));
+			}
+			throw first;
+		}
+	}
+
+	/** One builder thread: takes columns to index until none is left. */
+	private void buildPending (String tableName, Queue <String> pending, List <SQLException> failures)
+	{
+		try (Connection conn = connections.getConnection ())
+		{
+			conn.setAutoCommit (true);
+			SQLException failure = null;
+			try
+			{
+				try (Statement st = conn.createStatement ())
+				{
+					st.execute ("SET max_parallel_maintenance_workers = " + PARALLEL_WORKERS);
+					st.execute ("SET maintenance_work_mem = '" + MAINTENANCE_WORK_MEM + "'");
+				}
+				String column;
+				while ((column = pending.poll ()) != null)
+				{
+					boolean hash = longestValueBytes (conn, tableName, column) > BTREE_MAX_VALUE_BYTES;
+					execute (conn, indexSql (tableName, column, hash));
+				}
+			}
+			catch (SQLException e)
+			{
+				failure = e;
+			}
+			// The connection goes back to a pool, also after a failed build
+			try (Statement st = conn.createStatement ())
+			{
+				st.execute ("RESET max_parallel_maintenance_workers");
+				st.execute ("RESET maintenance_work_mem");
+			}
+			catch (SQLException e)
+			{
+				if (failure == null)
+				{
+					failure = e;
+				}
+				else
+				{
+					failure.addSuppressed (e);
+				}
+			}
+			if (failure != null)
+			{
+				throw failure;
+			}
+		}
+		catch (SQLException e)
+		{
+			synchronized (failures)
+			{
+				failures.add (e);
+			}
+		}
+	}
+
+	/** ALTER TABLE adding the MariaDB indexes of columnNames, on a prefix of each. */
+	static String mariaDbIndexSql (String tableName, List <String> columnNames)
+	{
+		StringBuilder sb = new StringBuilder ("ALTER TABLE ").append (tableName);
+		for (int i = 0; i < columnNames.size (); i++)
+		{
+			sb.append ((i == 0)? " " : ", ").append ("ADD INDEX ").append (indexName (tableName, columnNames.get (i)))
+			  .append (" (").append (columnNames.get (i)).append ("(").append (MARIADB_PREFIX_LENGTH).append ("))");
+		}
+		return sb.toString ();
+	}
+
+	/** CREATE INDEX on one column: a btree, or a hash index if hash. */
+	static String indexSql (String tableName, String columnName, boolean hash)
+	{
+		return "CREATE INDEX " + indexName (tableName, columnName) + " ON " + tableName + (hash? " USING hash" : "")
+		       + " (" + columnName + ")";
+	}
+
+	/** Length in bytes of the longest value of a PostgreSQL column (0 if there are none). */
+	private static long longestValueBytes (Connection conn, String tableName, String columnName) throws SQLException
+	{
+		try (Statement st = conn.createStatement ();
+		     ResultSet rs = st.executeQuery ("SELECT max(octet_length(" + columnName + ")) FROM " + tableName))
+		{
+			return rs.next ()? rs.getLong (1) : 0;
+		}
+	}
+
+	private void execute (Connection conn, String sql) throws SQLException
+	{
+		long start = System.nanoTime ();
+		try (Statement st = conn.createStatement ())
+		{
+			st.execute (sql);
+		}
+		// One line per statement: parallel builds finish in any order
+		log.accept ("Executed in " + (System.nanoTime () - start) / 1_000_000L + " ms: " + sql);
+	}
+
+	private static String indexName (String tableName, String columnName)
+	{
+		String name = tableName + "_" + columnName + "_idx";
+		if (name.length () > MAX_NAME_LENGTH)
+		{
+			// Keep the names of long table/column pairs distinct
+			String hash = Integer.toHexString (name.hashCode ());
+			name = name.substring (0, MAX_NAME_LENGTH - hash.length () - 1) + "_" + hash;
+		}
+		return name;
+	}
+}
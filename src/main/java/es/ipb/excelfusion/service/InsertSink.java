@@ -0,0 +1,64 @@
+package es.ipb.excelfusion.service;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+
+/**
+ * Loads rows with a batched INSERT ... VALUES (?, ...) statement, for any JDBC driver.
+ */
+final class InsertSink implements RowSink
+{
+
+	/** Rows added to the JDBC batch before it is sent to the server. */
+	private static final int				 BATCH_SIZE	= 1000;
+
+	private final PreparedStatement			 ps;
+	private final ImportPlan.ParameterBinder[] binders;
+	private int								 pendingBatch;
+
+	InsertSink (Connection conn, String insertSql, ImportPlan plan) throws SQLException
+	{
+		this.ps = conn.prepareStatement (insertSql);
+		this.binders = plan.binders;
+	}
+
+	@Override
+	public void addRow (TargetRow row) throws SQLException
+	{
+		for (int c = 0; c < binders.length; c++)
+		{
+			binders[c].bind (ps, c + 1, row.getText (c));
+		}
+		ps.addBatch ();
+
+		// Flush regularly so the driver does not keep every parameter set of the sheet in memory
+		if (++pendingBatch >= BATCH_SIZE)
+		{
+			flush ();
+		}
+	}
+
+	@Override
+	public void flush () throws SQLException
+	{
+		if (pendingBatch > 0)
+		{
+			ps.executeBatch ();
+			pendingBatch = 0;
+		}
+	}
+
+	@Override
+	public void finish () throws SQLException
+	{
+		flush ();
+	}
+
+	@Override
+	public void close () throws SQLException
+	{
+		ps.close ();
+	}
+}
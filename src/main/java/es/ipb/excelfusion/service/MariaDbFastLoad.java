@@ -0,0 +1,155 @@
+package es.ipb.excelfusion.service;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Locale;
+import java.util.function.Consumer;
+
+
+/**
+ * MariaDB fast load: the rows go in with unique_checks and foreign_key_checks off (InnoDB then
+ * buffers secondary index changes instead of checking them row by row), restored to the session's
+ * values before the commit. Keys are disabled during the load where the engine supports it
+ * (MyISAM, Aria); InnoDB ignores DISABLE KEYS, so it is not sent there.
+ *
+ * The binary log is kept unless ImportConfiguration.isSkipBinaryLog is set, since replicas would
+ * not get the rows: then sql_log_bin is turned off for the session if the user may (it cannot
+ * change inside a transaction, so it is set before the load starts and restored after the commit
+ * or rollback).
+ */
+final class MariaDbFastLoad implements FastLoad
+{
+
+	private final boolean skipBinaryLog;
+
+	private int			  uniqueChecks;
+	private int			  foreignKeyChecks;
+	private boolean		  checksChanged;
+	private boolean		  keysDisabled;
+	private boolean		  binaryLogSkipped;
+
+	MariaDbFastLoad (boolean skipBinaryLog)
+	{
+		this.skipBinaryLog = skipBinaryLog;
+	}
+
+	@Override
+	public String tableKind ()
+	{
+		return "TABLE";
+	}
+
+	@Override
+	public void beforeLoad (Connection conn, String tableName, Consumer <String> log) throws SQLException
+	{
+		// CREATE TABLE committed implicitly: no transaction is active yet
+		boolean binaryLogOn;
+		try (Statement st = conn.createStatement ();
+		     ResultSet rs = st.executeQuery ("SELECT @@session.unique_checks, @@session.foreign_key_checks, @@global.log_bin"))
+		{
+			rs.next ();
+			uniqueChecks = rs.getInt (1);
+			foreignKeyChecks = rs.getInt (2);
+			binaryLogOn = rs.getInt (3) != 0;
+		}
+
+		if (!binaryLogOn)
+		{
+			log.accept ("Binary log is off on the server.");
+		}
+		else if (!skipBinaryLog)
+		{
+			log.accept ("Binary log kept, so replicas receive the rows (skipBinaryLog=true in the DB config file skips it).");
+		}
+		else
+		{
+			try
+			{
+				execute (conn, "SET SESSION sql_log_bin = 0", log);
+				binaryLogSkipped = true;
+			}
+			catch (SQLException e)
+			{
+				log.accept ("Binary log kept: " + e.getMessage ());
+			}
+		}
+
+		execute (conn, "SET SESSION unique_checks = 0, foreign_key_checks = 0", log);
+		checksChanged = true;
+
+		String engine = engine (conn, tableName);
+		if ("MYISAM".equals (engine) || "ARIA".equals (engine))
+		{
+			execute (conn, "ALTER TABLE " + tableName + " DISABLE KEYS", log);
+			keysDisabled = true;
+		}
+		else
+		{
+			log.accept ("Keys stay enabled (" + engine + " tables do not support DISABLE KEYS).");
+		}
+	}
+
+	@Override
+	public void afterLoad (Connection conn, String tableName, Consumer <String> log) throws SQLException
+	{
+		if (keysDisabled)
+		{
+			execute (conn, "ALTER TABLE " + tableName + " ENABLE KEYS", log);
+			keysDisabled = false;
+		}
+		restoreChecks (conn, log);
+	}
+
+	@Override
+	public void afterTransaction (Connection conn, Consumer <String> log) throws SQLException
+	{
+		try
+		{
+			restoreChecks (conn, log);
+		}
+		finally
+		{
+			if (binaryLogSkipped)
+			{
+				execute (conn, "SET SESSION sql_log_bin = 1", log);
+				binaryLogSkipped = false;
+			}
+		}
+	}
+
+	private void restoreChecks (Connection conn, Consumer <String> log) throws SQLException
+	{
+		if (checksChanged)
+		{
+			execute (conn, "SET SESSION unique_checks = " + uniqueChecks + ", foreign_key_checks = " + foreignKeyChecks,
+			         log);
+			checksChanged = false;
+		}
+	}
+
+	/** Storage engine of the table, in upper case ("?" if unknown). */
+	private static String engine (Connection conn, String tableName) throws SQLException
+	{
+		try (PreparedStatement ps = conn.prepareStatement (
+		        "SELECT ENGINE FROM information_schema.TABLES WHERE TABLE_SCHEMA = DATABASE () AND TABLE_NAME = ?"))
+		{
+			ps.setString (1, tableName);
+			try (ResultSet rs = ps.executeQuery ())
+			{
+				return (rs.next () && rs.getString (1) != null)? rs.getString (1).toUpperCase (Locale.ROOT) : "?";
+			}
+		}
+	}
+
+	private static void execute (Connection conn, String sql, Consumer <String> log) throws SQLException
+	{
+		log.accept ("Executing: " + sql);
+		try (Statement st = conn.createStatement ())
+		{
+			st.execute (sql);
+		}
+	}
+}
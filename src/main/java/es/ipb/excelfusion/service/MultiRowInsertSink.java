@@ -0,0 +1,140 @@
+package es.ipb.excelfusion.service;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+
+/**
+ * Loads rows with INSERT ... VALUES (?, ...), (?, ...), ... statements, for any JDBC driver: one
+ * round trip and one statement parse per group of rows instead of per row.
+ *
+ * A group has as many rows as fit under MAX_PARAMETERS (the smallest bind parameter limit among
+ * the supported servers) and MAX_ROWS; full groups reuse one prepared statement. A group is also
+ * sent early when its text reaches MAX_GROUP_CHARS, so the statement stays well under the server's
+ * packet limit (MariaDB's max_allowed_packet) whatever the cell sizes. Short groups (those, and the
+ * last one of each sheet) go through a statement prepared for their own row count.
+ */
+final class MultiRowInsertSink implements RowSink
+{
+
+	/** Bind parameters per statement; PostgreSQL's protocol allows 32767. */
+	static final int						 MAX_PARAMETERS	 = 32767;
+
+	/** Rows per statement, at most. */
+	static final int						 MAX_ROWS		 = 1000;
+
+	/** Characters of cell text per statement, at most (3 MB of UTF-8 in the worst case). */
+	private static final int				 MAX_GROUP_CHARS = 1 << 20;
+
+	private final Connection				 conn;
+	private final String					 insertHead;
+	private final ImportPlan.ParameterBinder[] binders;
+	private final int						 columnCount;
+	private final String[][]				 group;
+	private final PreparedStatement			 fullStatement;
+	private int								 groupRows;
+	private long							 groupChars;
+
+	/**
+	 * @param insertHead the statement up to the rows: INSERT INTO t (a, b) VALUES
+	 */
+	MultiRowInsertSink (Connection conn, String insertHead, ImportPlan plan) throws SQLException
+	{
+		this.conn = conn;
+		this.insertHead = insertHead;
+		this.binders = plan.binders;
+		this.columnCount = plan.columnCount;
+		this.group = new String[rowsPerStatement (columnCount)][columnCount];
+		this.fullStatement = conn.prepareStatement (buildSql (group.length));
+	}
+
+	/** Rows of a full statement for the given number of columns. */
+	static int rowsPerStatement (int columnCount)
+	{
+		return Math.max (1, Math.min (MAX_ROWS, MAX_PARAMETERS / Math.max (1, columnCount)));
+	}
+
+	@Override
+	public void addRow (TargetRow row) throws SQLException
+	{
+		// The caller reuses row for the next one
+		String[] values = group[groupRows++];
+		for (int c = 0; c < columnCount; c++)
+		{
+			values[c] = row.getText (c);
+			if (values[c] != null)
+			{
+				groupChars += values[c].length ();
+			}
+		}
+
+		if (groupRows == group.length)
+		{
+			execute (fullStatement);
+			groupRows = 0;
+			groupChars = 0;
+		}
+		else if (groupChars >= MAX_GROUP_CHARS)
+		{
+			flush ();
+		}
+	}
+
+	@Override
+	public void flush () throws SQLException
+	{
+		if (groupRows == 0)
+		{
+			return;
+		}
+		try (PreparedStatement tail = conn.prepareStatement (buildSql (groupRows)))
+		{
+			execute (tail);
+		}
+		groupRows = 0;
+		groupChars = 0;
+	}
+
+	@Override
+	public void finish () throws SQLException
+	{
+		flush ();
+	}
+
+	@Override
+	public void close () throws SQLException
+	{
+		fullStatement.close ();
+	}
+
+	private void execute (PreparedStatement ps) throws SQLException
+	{
+		int parameter = 1;
+		for (int r = 0; r < groupRows; r++)
+		{
+			String[] values = group[r];
+			for (int c = 0; c < columnCount; c++)
+			{
+				binders[c].bind (ps, parameter++, values[c]);
+			}
+		}
+		ps.executeUpdate ();
+	}
+
+	private String buildSql (int rows)
+	{
+		StringBuilder sb = new StringBuilder (insertHead.length () + rows * (columnCount * 3 + 3));
+		sb.append (insertHead);
+		for (int r = 0; r < rows; r++)
+		{
+			sb.append ((r == 0)? "(" : ", (");
+			for (int c = 0; c < columnCount; c++)
+			{
+				sb.append ((c == 0)? "?" : ", ?");
+			}
+			sb.append (')');
+		}
+		return sb.toString ();
+	}
+}
@@ -0,0 +1,501 @@
+package es.ipb.excelfusion.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import es.ipb.excelfusion.excel.RowCursor;
+import es.ipb.excelfusion.excel.RowData;
+import es.ipb.excelfusion.excel.SharedStringStore;
+import es.ipb.excelfusion.excel.SheetRowReader;
+
+
+/**
+ * Reads the selected sheets of one file concurrently, while the import loop still consumes
+ * them one after the other in their original order.
+ *
+ * Every sheet is a task on a pool of at most threadBudget threads: it opens its own cursor (so
+ * the sheet's zip entry is inflated and parsed on that thread), formats the planned columns and
+ * hands the rows over in batches (off-heap, recycled) through a small bounded queue. A sheet
+ * further down the list therefore runs ahead only by a few batches before it waits for the
+ * writer, and tasks start in sheet order, so the sheet being written always has a thread.
+ *
+ * Only for readers whose supportsConcurrentSheets () is true.
+ */
+final class ParallelSheetParser implements Closeable
+{
+
+	/** Rows per batch handed to the writer. */
+	private static final int			  BATCH_ROWS	= 256;
+
+	/** Batches a sheet may parse ahead of the writer. */
+	private static final int			  QUEUE_BATCHES	= 8;
+
+	/** Poll interval of a producer waiting for queue space, to notice cancellation. */
+	private static final long			  OFFER_TIMEOUT_MS = 100;
+
+	/** Longest wait on close for the tasks to stop. */
+	private static final long			  CLOSE_TIMEOUT_S = 30;
+
+	/** Marks the end of a sheet (failure, if any, is set before it is queued). */
+	private static final Batch			  END			= new Batch (0, 0);
+
+	/** Initial off-heap bytes of a batch per value; batches grow as needed and are reused. */
+	private static final int			  BYTES_PER_VALUE = 16;
+
+	/** Largest UTF-8 length of one char of a Java string. */
+	private static final int			  MAX_BYTES_PER_CHAR = 3;
+
+	private final SheetRowReader		  reader;
+	private final SharedStringStore		  sharedStrings;
+	private final int					  firstRow;
+	private final int[]					  sourceColumns;
+	private final ExecutorService		  pool;
+	private final List <SheetTask>		  tasks			= new ArrayList <> ();
+
+	/**
+	 * Starts parsing the given sheets (in this order) from firstRow on.
+	 */
+	ParallelSheetParser (SheetRowReader reader, List <String> sheetNames, int firstRow, int[] sourceColumns,
+	                     int threads)
+	{
+		this.reader = reader;
+		this.sharedStrings = reader.getSharedStrings ();
+		this.firstRow = firstRow;
+		this.sourceColumns = sourceColumns;
+		this.pool = Executors.newFixedThreadPool (Math.max (1, threads), r -> {
+			Thread t = new Thread (r, "SheetParser");
+			t.setDaemon (true);
+			return t;
+		});
+		for (String sheetName : sheetNames)
+		{
+			SheetTask task = new SheetTask (sheetName);
+			tasks.add (task);
+			pool.execute (task);
+		}
+	}
+
+	/**
+	 * Threads for parsing sheetCount sheets: one per sheet, leaving a core to the writer.
+	 */
+	static int threadBudget (int sheetCount)
+	{
+		return Math.max (1, Math.min (sheetCount, Runtime.getRuntime ().availableProcessors () - 1));
+	}
+
+	/** Rows of the index-th sheet passed to the constructor. Closing them stops that sheet's task. */
+	SheetRows rows (int index)
+	{
+		return tasks.get (index);
+	}
+
+	@Override
+	public void close ()
+	{
+		for (SheetTask task : tasks)
+		{
+			task.cancel ();
+		}
+		pool.shutdownNow ();
+		try
+		{
+			// Cancelled tasks stop at their next batch; the reader must not be closed under them
+			pool.awaitTermination (CLOSE_TIMEOUT_S, TimeUnit.SECONDS);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread ().interrupt ();
+		}
+	}
+
+	/**
+	 * Rows of a batch: the values encoded as UTF-8 straight into a direct buffer, outside the heap,
+	 * with the end offset of each one (values are laid out row by row, one per planned column).
+	 * Shared strings are kept by index instead, and handed to the consumer as the table's own
+	 * String or bytes. Batches cycle between producer and consumer, so a long sheet leaves no cell
+	 * strings behind to be promoted to the old generation: a sink that writes UTF-8 copies the bytes
+	 * out (copyUtf8) without any String, and a String is only created when the consumer asks for
+	 * one, and dies young.
+	 */
+	private static final class Batch
+	{
+		final int[]		  rowIndexes;
+		final boolean[]	  populated;
+		final int[]		  valueEnds;
+
+		/** Shared string index of each value, -1 for a value in bytes. */
+		final int[]		  sharedIndexes;
+		private ByteBuffer bytes;
+		int				  size;
+
+		/** Encodes what is not ASCII (as String.getBytes does: '?' for a lone surrogate). */
+		private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder ()
+		                                                             .onMalformedInput (CodingErrorAction.REPLACE)
+		                                                             .onUnmappableCharacter (CodingErrorAction.REPLACE);
+
+		Batch (int rows, int columns)
+		{
+			this.rowIndexes = new int[rows];
+			this.populated = new boolean[rows];
+			this.valueEnds = new int[rows * columns];
+			this.sharedIndexes = new int[rows * columns];
+			this.bytes = ByteBuffer.allocateDirect (rows * columns * BYTES_PER_VALUE);
+		}
+
+		void clear ()
+		{
+			size = 0;
+			bytes.clear ();
+		}
+
+		/** Appends value number index (values are appended in order), encoded into the buffer. */
+		void put (int index, String value)
+		{
+			int length = value.length ();
+			ensureRemaining (length * MAX_BYTES_PER_CHAR);
+			int position = bytes.position ();
+			int i = 0;
+			for (; i < length; i++)
+			{
+				char ch = value.charAt (i);
+				if (ch >= 0x80)
+				{
+					break;
+				}
+				bytes.put (position++, (byte) ch);
+			}
+			bytes.position (position);
+			if (i < length)
+			{
+				// Not ASCII from here on: the encoder writes the rest (room was reserved above)
+				encoder.reset ();
+				encoder.encode (CharBuffer.wrap (value, i, length), bytes, true);
+				encoder.flush (bytes);
+			}
+			valueEnds[index] = bytes.position ();
+			sharedIndexes[index] = -1;
+		}
+
+		/** Appends value number index as a reference to shared string sharedIndex. */
+		void putShared (int index, int sharedIndex)
+		{
+			valueEnds[index] = bytes.position ();
+			sharedIndexes[index] = sharedIndex;
+		}
+
+		/** Skips value number index (it reads as ""). */
+		void putEmpty (int index)
+		{
+			valueEnds[index] = bytes.position ();
+			sharedIndexes[index] = -1;
+		}
+
+		String get (int index, byte[] scratch, SharedStringStore sharedStrings)
+		{
+			if (sharedIndexes[index] >= 0)
+			{
+				return sharedStrings.get (sharedIndexes[index]);
+			}
+			int start = (index == 0)? 0 : valueEnds[index - 1];
+			int length = valueEnds[index] - start;
+			if (length == 0)
+			{
+				return "";
+			}
+			bytes.get (start, scratch, 0, length);
+			return new String (scratch, 0, length, StandardCharsets.UTF_8);
+		}
+
+		boolean isBlank (int index, SharedStringStore sharedStrings)
+		{
+			if (sharedIndexes[index] >= 0)
+			{
+				return sharedStrings.isBlank (sharedIndexes[index]);
+			}
+			for (int i = (index == 0)? 0 : valueEnds[index - 1]; i < valueEnds[index]; i++)
+			{
+				// Bytes of a multi-byte character are all above 0x7F
+				if ((bytes.get (i) & 0xFF) > ' ')
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+
+		int utf8Length (int index, SharedStringStore sharedStrings)
+		{
+			if (sharedIndexes[index] >= 0)
+			{
+				return sharedStrings.utf8Length (sharedIndexes[index]);
+			}
+			return valueEnds[index] - ((index == 0)? 0 : valueEnds[index - 1]);
+		}
+
+		void copyUtf8 (int index, byte[] dest, int offset, SharedStringStore sharedStrings)
+		{
+			if (sharedIndexes[index] >= 0)
+			{
+				sharedStrings.copyUtf8 (sharedIndexes[index], dest, offset);
+				return;
+			}
+			int start = (index == 0)? 0 : valueEnds[index - 1];
+			bytes.get (start, dest, offset, valueEnds[index] - start);
+		}
+
+		/** Longest value in bytes, for the consumer's scratch array. */
+		int maxValueLength (int values)
+		{
+			int max = 0;
+			int start = 0;
+			for (int i = 0; i < values; i++)
+			{
+				max = Math.max (max, valueEnds[i] - start);
+				start = valueEnds[i];
+			}
+			return max;
+		}
+
+		private void ensureRemaining (int length)
+		{
+			if (bytes.remaining () < length)
+			{
+				ByteBuffer grown = ByteBuffer.allocateDirect (Math.max (bytes.capacity () * 2,
+				                                                        bytes.position () + length));
+				bytes.flip ();
+				grown.put (bytes);
+				bytes = grown;
+			}
+		}
+	}
+
+	/**
+	 * Producer (run, on a pool thread) and consumer (SheetRows, on the writer thread) of one
+	 * sheet.
+	 */
+	private final class SheetTask implements Runnable, SheetRows
+	{
+		private final String				sheetName;
+		private final BlockingQueue <Batch>	queue	  = new ArrayBlockingQueue <> (QUEUE_BATCHES);
+
+		/** Batches the consumer is done with, for the producer to refill. */
+		private final BlockingQueue <Batch>	free	  = new ArrayBlockingQueue <> (QUEUE_BATCHES + 2);
+		private volatile boolean			cancelled;
+		private volatile Exception			failure;
+
+		private Batch						current;
+		private int							position;
+		private boolean						finished;
+		private byte[]						scratch	  = new byte[256];
+
+		SheetTask (String sheetName)
+		{
+			this.sheetName = sheetName;
+		}
+
+		// === Producer ===
+
+		@Override
+		public void run ()
+		{
+			if (cancelled)
+			{
+				return;
+			}
+			int columnCount = sourceColumns.length;
+			try (RowCursor cursor = reader.openSheet (sheetName, firstRow))
+			{
+				Batch batch = nextFreeBatch (columnCount);
+				while (cursor.next ())
+				{
+					RowData row = cursor.getRow ();
+					int i = batch.size++;
+					batch.rowIndexes[i] = row.getRowIndex ();
+					batch.populated[i] = !row.isEmpty ();
+					int base = i * columnCount;
+					for (int c = 0; c < columnCount; c++)
+					{
+						if (!batch.populated[i])
+						{
+							batch.putEmpty (base + c);
+							continue;
+						}
+						int shared = (sharedStrings != null)? row.getSharedStringIndex (sourceColumns[c]) : -1;
+						if (shared >= 0)
+						{
+							// No copy: the consumer gets the table's String
+							batch.putShared (base + c, shared);
+						}
+						else
+						{
+							batch.put (base + c, row.getText (sourceColumns[c]));
+						}
+					}
+					if (batch.size == BATCH_ROWS)
+					{
+						if (!publish (batch))
+						{
+							return;
+						}
+						batch = nextFreeBatch (columnCount);
+					}
+				}
+				if (batch.size > 0 && !publish (batch))
+				{
+					return;
+				}
+			}
+			catch (IOException | RuntimeException e)
+			{
+				failure = e;
+			}
+			publish (END);
+		}
+
+		/** A batch given back by the consumer, or a new one. */
+		private Batch nextFreeBatch (int columnCount)
+		{
+			Batch batch = free.poll ();
+			if (batch == null)
+			{
+				return new Batch (BATCH_ROWS, columnCount);
+			}
+			batch.clear ();
+			return batch;
+		}
+
+		/** Waits for queue space; false if the sheet was cancelled or the pool shut down. */
+		private boolean publish (Batch batch)
+		{
+			try
+			{
+				while (!queue.offer (batch, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS))
+				{
+					if (cancelled)
+					{
+						return false;
+					}
+				}
+				return true;
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread ().interrupt ();
+				return false;
+			}
+		}
+
+		void cancel ()
+		{
+			cancelled = true;
+			queue.clear ();
+		}
+
+		// === Consumer ===
+
+		@Override
+		public boolean next () throws IOException
+		{
+			if (current != null && ++position < current.size)
+			{
+				return true;
+			}
+			if (finished)
+			{
+				return false;
+			}
+			if (current != null)
+			{
+				free.offer (current);
+			}
+			Batch batch;
+			try
+			{
+				batch = queue.take ();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread ().interrupt ();
+				throw new InterruptedIOException ("Interrupted while reading sheet " + sheetName);
+			}
+			if (batch == END)
+			{
+				finished = true;
+				current = null;
+				Exception e = failure;
+				if (e instanceof IOException)
+				{
+					throw (IOException) e;
+				}
+				if (e != null)
+				{
+					throw (RuntimeException) e;
+				}
+				return false;
+			}
+			current = batch;
+			position = 0;
+			int maxLength = batch.maxValueLength (batch.size * sourceColumns.length);
+			if (maxLength > scratch.length)
+			{
+				scratch = new byte[Math.max (maxLength, scratch.length * 2)];
+			}
+			return true;
+		}
+
+		@Override
+		public int getRowIndex ()
+		{
+			return current.rowIndexes[position];
+		}
+
+		@Override
+		public boolean isPopulated ()
+		{
+			return current.populated[position];
+		}
+
+		@Override
+		public String getValue (int c)
+		{
+			return current.get (position * sourceColumns.length + c, scratch, sharedStrings);
+		}
+
+		@Override
+		public boolean isBlank (int c)
+		{
+			return current.isBlank (position * sourceColumns.length + c, sharedStrings);
+		}
+
+		@Override
+		public int getUtf8Length (int c)
+		{
+			return current.utf8Length (position * sourceColumns.length + c, sharedStrings);
+		}
+
+		@Override
+		public void copyUtf8 (int c, byte[] dest, int offset)
+		{
+			current.copyUtf8 (position * sourceColumns.length + c, dest, offset, sharedStrings);
+		}
+
+		@Override
+		public void close ()
+		{
+			cancel ();
+		}
+	}
+}
@@ -0,0 +1,133 @@
+package es.ipb.excelfusion.service;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyManager;
+
+
+/**
+ * Loads rows into PostgreSQL with COPY ... FROM STDIN (FORMAT binary).
+ *
+ * Every target column is TEXT, whose binary wire value is the UTF-8 text itself (the driver sets
+ * client_encoding to UTF8): a row goes out as its field count and a length-prefixed byte string
+ * per field, with no quoting or escaping here and no literal parsing on the server. The bytes
+ * are copied from where the source rows hold them (TargetRow.copyUtf8), without a String per
+ * cell. Rows are gathered in a buffer that is handed to the copy stream when full; one COPY spans the whole
+ * import, inside its transaction.
+ */
+final class PgBinaryCopySink implements RowSink
+{
+
+	/** Header of the binary format: signature, flags and header extension length. */
+	private static final byte[] SIGNATURE	= {'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xFF, '\r', '\n', 0 };
+
+	private static final int	BUFFER_SIZE	= 1 << 20;
+
+	private final CopyIn		copyIn;
+	private final int			columnCount;
+	private final byte[]		buffer		= new byte[BUFFER_SIZE];
+	private int					position;
+	private boolean				finished;
+
+	PgBinaryCopySink (Connection conn, String copySql, int columnCount) throws SQLException
+	{
+		CopyManager copy = conn.unwrap (PGConnection.class).getCopyAPI ();
+		this.copyIn = copy.copyIn (copySql);
+		this.columnCount = columnCount;
+		System.arraycopy (SIGNATURE, 0, buffer, 0, SIGNATURE.length);
+		position = SIGNATURE.length;
+		putInt (0);
+		putInt (0);
+	}
+
+	@Override
+	public void addRow (TargetRow row) throws SQLException
+	{
+		ensure (Short.BYTES);
+		putShort (columnCount);
+		for (int c = 0; c < columnCount; c++)
+		{
+			int length = row.getUtf8Length (c);
+			if (Integer.BYTES + length > buffer.length)
+			{
+				// Longer than the buffer: length here, bytes straight to the stream
+				ensure (Integer.BYTES);
+				putInt (length);
+				send ();
+				byte[] bytes = new byte[length];
+				row.copyUtf8 (c, bytes, 0);
+				copyIn.writeToCopy (bytes, 0, length);
+				continue;
+			}
+			ensure (Integer.BYTES + length);
+			putInt (length);
+			row.copyUtf8 (c, buffer, position);
+			position += length;
+		}
+	}
+
+	@Override
+	public boolean writesUtf8 ()
+	{
+		return true;
+	}
+
+	@Override
+	public void flush () throws SQLException
+	{
+		send ();
+	}
+
+	@Override
+	public void finish () throws SQLException
+	{
+		ensure (Short.BYTES);
+		putShort (-1);
+		send ();
+		copyIn.endCopy ();
+		finished = true;
+	}
+
+	@Override
+	public void close () throws SQLException
+	{
+		if (!finished && copyIn.isActive ())
+		{
+			copyIn.cancelCopy ();
+		}
+	}
+
+	private void ensure (int length) throws SQLException
+	{
+		if (buffer.length - position < length)
+		{
+			send ();
+		}
+	}
+
+	private void send () throws SQLException
+	{
+		if (position > 0)
+		{
+			copyIn.writeToCopy (buffer, 0, position);
+			position = 0;
+		}
+	}
+
+	private void putShort (int value)
+	{
+		buffer[position++] = (byte) (value >>> 8);
+		buffer[position++] = (byte) value;
+	}
+
+	private void putInt (int value)
+	{
+		buffer[position++] = (byte) (value >>> 24);
+		buffer[position++] = (byte) (value >>> 16);
+		buffer[position++] = (byte) (value >>> 8);
+		buffer[position++] = (byte) value;
+	}
+}
@@ -0,0 +1,50 @@
+package es.ipb.excelfusion.service;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.function.Consumer;
+
+
+/**
+ * PostgreSQL fast load: the table is created UNLOGGED, so the rows are loaded without writing
+ * WAL for each of them, and switched to LOGGED (one pass over the finished table) before the
+ * commit; then ANALYZE gives the planner statistics right away. The session settings are
+ * SET LOCAL, so they end with the transaction: synchronous_commit is off (the commit does not wait
+ * for the WAL flush; a server crash can lose the import, never corrupt it) and
+ * maintenance_work_mem is raised for the rewrite and the analysis.
+ */
+final class PgFastLoad implements FastLoad
+{
+
+	private static final String MAINTENANCE_WORK_MEM = "512MB";
+
+	@Override
+	public String tableKind ()
+	{
+		return "UNLOGGED TABLE";
+	}
+
+	@Override
+	public void beforeLoad (Connection conn, String tableName, Consumer <String> log) throws SQLException
+	{
+		execute (conn, "SET LOCAL synchronous_commit = off", log);
+		execute (conn, "SET LOCAL maintenance_work_mem = '" + MAINTENANCE_WORK_MEM + "'", log);
+	}
+
+	@Override
+	public void afterLoad (Connection conn, String tableName, Consumer <String> log) throws SQLException
+	{
+		execute (conn, "ALTER TABLE " + tableName + " SET LOGGED", log);
+		execute (conn, "ANALYZE " + tableName, log);
+	}
+
+	private static void execute (Connection conn, String sql, Consumer <String> log) throws SQLException
+	{
+		log.accept ("Executing: " + sql);
+		try (Statement st = conn.createStatement ())
+		{
+			st.execute (sql);
+		}
+	}
+}
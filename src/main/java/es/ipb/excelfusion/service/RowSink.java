@@ -0,0 +1,35 @@
+package es.ipb.excelfusion.service;
+
+import java.sql.SQLException;
+
+
+/**
+ * Destination of the imported rows: receives each target row, in column order, and sends it to
+ * the database in whatever way suits the connection (InsertSink, MultiRowInsertSink,
+ * PgBinaryCopySink).
+ */
+interface RowSink extends AutoCloseable
+{
+
+	/**
+	 * Adds one row, read through TargetRow.getText, or its UTF-8 accessors if writesUtf8. The row
+	 * changes once this returns.
+	 */
+	void addRow (TargetRow row) throws SQLException;
+
+	/** True if the sink reads rows as UTF-8 bytes rather than as text. */
+	default boolean writesUtf8 ()
+	{
+		return false;
+	}
+
+	/** Sends the rows added so far (end of a sheet). */
+	void flush () throws SQLException;
+
+	/** Completes the load, before the transaction is committed. */
+	void finish () throws SQLException;
+
+	/** Releases the sink; a load that was not finished is abandoned. */
+	@Override
+	void close () throws SQLException;
+}
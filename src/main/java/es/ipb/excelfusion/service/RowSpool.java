@@ -0,0 +1,486 @@
+package es.ipb.excelfusion.service;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import es.ipb.excelfusion.config.ImportConfiguration;
+import es.ipb.excelfusion.config.ImportConfiguration.FormulaMode;
+import es.ipb.excelfusion.excel.RowCursor;
+import es.ipb.excelfusion.excel.RowData;
+import es.ipb.excelfusion.excel.SheetRowReader;
+import es.ipb.excelfusion.ui.wizard.Step3StructureValidationPage.SheetValidationResult;
+
+
+/**
+ * Rows of the selected sheets, parsed in the background while the user is still in the wizard
+ * and spooled to temp files, so the import only has to stream them to the database.
+ *
+ * start () is called once the sheet selection is known (leaving step 3). A single low-priority
+ * thread then parses the sheets in import order, through the readers the import would open
+ * (SourceReaders, so the memory budget applies), and writes each sheet to its own columnar file
+ * (SpoolWriter). The import takes a sheet from the spool only if it was spooled completely for the
+ * same data start row and formula mode and its file has not changed since; it stops the spool
+ * when it starts (the sheet in progress still completes) and parses anything else itself, as
+ * before. Those sheets are not spooled after the import, which would parse them a second time;
+ * the spool only picks them up again when the selection is started anew. The files stay until
+ * the selection changes or the spool is closed, so a retry, or a load into another database,
+ * reads the spooled sheets from the spool. pause () lets the wizard open the files itself (step 4
+ * samples them) without competing with the spool for the reader memory budget.
+ */
+public final class RowSpool implements Closeable
+{
+
+	/** Rows between checks for cancellation while spooling. */
+	private static final int				  CANCEL_CHECK_ROWS	= 1024;
+
+	/** Longest wait in pause () for the spool to close its reader. */
+	private static final long				  PAUSE_WAIT_MS		= 2_000;
+
+	private enum State
+	{
+		PENDING, RUNNING, DONE, FAILED
+	}
+
+	private final ExecutorService			  worker;
+	private final Map <String, SpooledSheet> sheets		= new LinkedHashMap <> ();
+
+	private int								  firstRow	= -1;
+	private boolean							  evaluate;
+	private int								  generation;
+	private boolean							  draining;
+	private boolean							  closed;
+
+	/** Open pause () calls; read without the lock by the spooling loop. */
+	private volatile int					  pauses;
+
+	/** True while the spool thread opens or holds a reader. */
+	private boolean							  readerOpen;
+
+	public RowSpool ()
+	{
+		this.worker = Executors.newSingleThreadExecutor (r -> {
+			Thread t = new Thread (r, "RowSpool");
+			t.setDaemon (true);
+			t.setPriority (Thread.MIN_PRIORITY);
+			return t;
+		});
+	}
+
+	/**
+	 * (Re)starts spooling the sheets selected in config. Sheets already spooled with the same
+	 * data start row and formula mode are kept; the rest of the previous selection is dropped.
+	 */
+	public synchronized void start (ImportConfiguration config)
+	{
+		if (closed)
+		{
+			return;
+		}
+		Integer dataStartRow = config.getDataStartRow (); // 1-based
+		int newFirstRow = (dataStartRow != null? dataStartRow - 1 : 0);
+		boolean newEvaluate = config.getFormulaMode () == FormulaMode.EVALUATE;
+		if (newFirstRow != firstRow || newEvaluate != evaluate)
+		{
+			discard (new ArrayList <> (sheets.values ()));
+			sheets.clear ();
+		}
+		firstRow = newFirstRow;
+		evaluate = newEvaluate;
+		draining = false;
+		generation++;
+
+		Map <String, SpooledSheet> selected = new LinkedHashMap <> ();
+		for (SheetValidationResult svr : config.getSheetsToImport ())
+		{
+			if ("<all sheets>".equals (svr.getSheetName ()))
+			{
+				continue;
+			}
+			String key = key (svr.getFile (), svr.getSheetName ());
+			SpooledSheet sheet = sheets.remove (key);
+			if (sheet == null || sheet.state == State.FAILED || (sheet.state == State.DONE && !sheet.isCurrent ()))
+			{
+				discard (sheet);
+				sheet = new SpooledSheet (svr.getFile (), svr.getSheetName ());
+			}
+			selected.put (key, sheet);
+		}
+		discard (new ArrayList <> (sheets.values ()));
+		sheets.clear ();
+		sheets.putAll (selected);
+
+		int taskGeneration = generation;
+		worker.execute ( () -> spoolPending (taskGeneration));
+		notifyAll ();
+	}
+
+	/**
+	 * Stops spooling after the sheet in progress, for the import to take over (until the next
+	 * start).
+	 */
+	synchronized void drain ()
+	{
+		draining = true;
+		notifyAll ();
+	}
+
+	/**
+	 * Pauses spooling so the wizard can open the same files (its readers do not wait for memory):
+	 * the sheet in progress is put back and its reader closed, waiting up to PAUSE_WAIT_MS for
+	 * that. Spooling goes on, from that sheet, after the matching unpause.
+	 */
+	public synchronized void pause ()
+	{
+		pauses++;
+		long deadline = System.currentTimeMillis () + PAUSE_WAIT_MS;
+		long remaining;
+		while (readerOpen && (remaining = deadline - System.currentTimeMillis ()) > 0)
+		{
+			try
+			{
+				wait (remaining);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread ().interrupt ();
+				return;
+			}
+		}
+	}
+
+	/** Ends a pause (). */
+	public synchronized void unpause ()
+	{
+		if (pauses > 0)
+		{
+			pauses--;
+			notifyAll ();
+		}
+	}
+
+	/**
+	 * Spool files of the given sheets of file that are complete and current for firstRow and the
+	 * formula mode, by sheet name; waits for a sheet still being spooled.
+	 */
+	synchronized Map <String, File> completedSheets (File file, List <String> sheetNames, int firstRow,
+	                                                 boolean evaluate) throws IOException
+	{
+		Map <String, File> completed = new LinkedHashMap <> ();
+		if (firstRow != this.firstRow || evaluate != this.evaluate)
+		{
+			return completed;
+		}
+		for (String sheetName : sheetNames)
+		{
+			SpooledSheet sheet = sheets.get (key (file, sheetName));
+			if (sheet == null)
+			{
+				continue;
+			}
+			while (sheet.state == State.RUNNING || (sheet.state == State.PENDING && !draining && !closed))
+			{
+				try
+				{
+					wait ();
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread ().interrupt ();
+					throw new InterruptedIOException ("Interrupted while waiting for sheet " + sheetName);
+				}
+			}
+			if (sheet.state == State.DONE && sheet.isCurrent ())
+			{
+				completed.put (sheetName, sheet.spoolFile);
+			}
+		}
+		return completed;
+	}
+
+	/**
+	 * Reads a spool file returned by completedSheets.
+	 */
+	static SheetRows rows (File spoolFile, int[] sourceColumns) throws IOException
+	{
+		return new SpoolRows (spoolFile, sourceColumns);
+	}
+
+	/**
+	 * Stops spooling and deletes the spool files.
+	 */
+	@Override
+	public synchronized void close ()
+	{
+		closed = true;
+		generation++;
+		discard (new ArrayList <> (sheets.values ()));
+		sheets.clear ();
+		worker.shutdown ();
+		notifyAll ();
+	}
+
+	// === Background spooling ===
+
+	private void spoolPending (int taskGeneration)
+	{
+		Map <File, List <SpooledSheet>> byFile = new LinkedHashMap <> ();
+		int spoolFirstRow;
+		boolean spoolEvaluate;
+		synchronized (this)
+		{
+			if (taskGeneration != generation)
+			{
+				return;
+			}
+			for (SpooledSheet sheet : sheets.values ())
+			{
+				if (sheet.state == State.PENDING)
+				{
+					byFile.computeIfAbsent (sheet.file, f -> new ArrayList <> ()).add (sheet);
+				}
+			}
+			spoolFirstRow = firstRow;
+			spoolEvaluate = evaluate;
+		}
+
+		for (Map.Entry <File, List <SpooledSheet>> entry : byFile.entrySet ())
+		{
+			// A pause closes the reader; the file is opened again for the sheets still pending
+			boolean paused = true;
+			while (paused)
+			{
+				if (!awaitUnpaused (taskGeneration))
+				{
+					return;
+				}
+				List <SpooledSheet> pending = pending (entry.getValue ());
+				if (pending.isEmpty ())
+				{
+					break;
+				}
+				List <String> sheetNames = new ArrayList <> ();
+				for (SpooledSheet sheet : pending)
+				{
+					sheetNames.add (sheet.sheetName);
+				}
+
+				paused = false;
+				setReaderOpen (true);
+				try (SheetRowReader reader = SourceReaders.open (entry.getKey (), sheetNames, spoolEvaluate, spoolFirstRow,
+				                                                 message -> {}))
+				{
+					for (SpooledSheet sheet : pending)
+					{
+						if (!claim (sheet, taskGeneration))
+						{
+							if (pauses > 0 && isActive (taskGeneration))
+							{
+								paused = true;
+								break;
+							}
+							return;
+						}
+						if (!spool (reader, sheet, spoolFirstRow))
+						{
+							paused = true;
+							break;
+						}
+					}
+				}
+				catch (IOException | RuntimeException e)
+				{
+					// The import parses these sheets itself and reports the error
+					fail (pending);
+				}
+				finally
+				{
+					setReaderOpen (false);
+				}
+			}
+		}
+	}
+
+	/** Waits while spooling is paused; false if the task is no longer active. */
+	private synchronized boolean awaitUnpaused (int taskGeneration)
+	{
+		while (pauses > 0 && isActive (taskGeneration))
+		{
+			try
+			{
+				wait ();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread ().interrupt ();
+				return false;
+			}
+		}
+		return isActive (taskGeneration);
+	}
+
+	private synchronized List <SpooledSheet> pending (List <SpooledSheet> sheetsOfFile)
+	{
+		List <SpooledSheet> pending = new ArrayList <> ();
+		for (SpooledSheet sheet : sheetsOfFile)
+		{
+			if (sheet.state == State.PENDING && !sheet.cancelled)
+			{
+				pending.add (sheet);
+			}
+		}
+		return pending;
+	}
+
+	private synchronized void setReaderOpen (boolean open)
+	{
+		readerOpen = open;
+		notifyAll ();
+	}
+
+	private synchronized boolean isActive (int taskGeneration)
+	{
+		return taskGeneration == generation && !draining && !closed;
+	}
+
+	private synchronized boolean claim (SpooledSheet sheet, int taskGeneration)
+	{
+		if (!isActive (taskGeneration) || pauses > 0 || sheet.state != State.PENDING || sheet.cancelled)
+		{
+			return false;
+		}
+		sheet.state = State.RUNNING;
+		return true;
+	}
+
+	/** Spools one claimed sheet; false if a pause stopped it (the sheet is pending again). */
+	private boolean spool (SheetRowReader reader, SpooledSheet sheet, int spoolFirstRow)
+	{
+		File spoolFile = null;
+		boolean complete = false;
+		boolean paused = false;
+		try
+		{
+			spoolFile = File.createTempFile ("excelfusion-", ".rows");
+			spoolFile.deleteOnExit ();
+			try (RowCursor cursor = reader.openSheet (sheet.sheetName, spoolFirstRow);
+			     SpoolWriter out = new SpoolWriter (spoolFile))
+			{
+				int rows = 0;
+				while (cursor.next ())
+				{
+					out.writeRow (cursor.getRow ());
+					if (++rows % CANCEL_CHECK_ROWS == 0 && (sheet.cancelled || pauses > 0))
+					{
+						paused = !sheet.cancelled;
+						break;
+					}
+				}
+				complete = !sheet.cancelled && !paused;
+			}
+		}
+		catch (IOException | RuntimeException e)
+		{
+			complete = false;
+		}
+
+		synchronized (this)
+		{
+			if (complete && !sheet.cancelled)
+			{
+				sheet.spoolFile = spoolFile;
+				sheet.state = State.DONE;
+			}
+			else
+			{
+				sheet.state = (paused && !sheet.cancelled)? State.PENDING : State.FAILED;
+				delete (spoolFile);
+			}
+			notifyAll ();
+		}
+		return !paused;
+	}
+
+	private synchronized void fail (List <SpooledSheet> pending)
+	{
+		for (SpooledSheet sheet : pending)
+		{
+			if (sheet.state == State.PENDING || sheet.state == State.RUNNING)
+			{
+				sheet.state = State.FAILED;
+			}
+		}
+		notifyAll ();
+	}
+
+	/** Drops sheets; a sheet being spooled deletes its file when it notices. */
+	private void discard (List <SpooledSheet> dropped)
+	{
+		for (SpooledSheet sheet : dropped)
+		{
+			discard (sheet);
+		}
+	}
+
+	private void discard (SpooledSheet sheet)
+	{
+		if (sheet == null)
+		{
+			return;
+		}
+		sheet.cancelled = true;
+		if (sheet.state == State.DONE)
+		{
+			delete (sheet.spoolFile);
+			sheet.state = State.FAILED;
+		}
+	}
+
+	private static void delete (File file)
+	{
+		if (file != null && !file.delete ())
+		{
+			file.deleteOnExit ();
+		}
+	}
+
+	private static String key (File file, String sheetName)
+	{
+		return file.getAbsolutePath () + '\n' + sheetName;
+	}
+
+	/**
+	 * One selected sheet; state and spoolFile are guarded by the RowSpool.
+	 */
+	private static final class SpooledSheet
+	{
+		final File		 file;
+		final String	 sheetName;
+		final long		 lastModified;
+		final long		 length;
+		State			 state = State.PENDING;
+		File			 spoolFile;
+		volatile boolean cancelled;
+
+		SpooledSheet (File file, String sheetName)
+		{
+			this.file = file;
+			this.sheetName = sheetName;
+			this.lastModified = file.lastModified ();
+			this.length = file.length ();
+		}
+
+		/** False if the source file changed after the sheet was selected. */
+		boolean isCurrent ()
+		{
+			return file.lastModified () == lastModified && file.length () == length;
+		}
+	}
+}
@@ -0,0 +1,145 @@
+package es.ipb.excelfusion.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import es.ipb.excelfusion.excel.RowCursor;
+import es.ipb.excelfusion.excel.RowData;
+
+
+/**
+ * Rows of one sheet as the import loop consumes them: the row index, whether the row has any
+ * value, and the display text of each planned column, as a String (getValue) or as UTF-8 bytes
+ * copied into a sink's buffer (getUtf8Length, copyUtf8). Rows that hold their values as bytes
+ * (parser batches, spool blocks) only create the String when it is asked for.
+ */
+interface SheetRows extends Closeable
+{
+
+	/** Moves to the next row present in the sheet; false once the sheet is exhausted. */
+	boolean next () throws IOException;
+
+	/** 0-based index of the current row. */
+	int getRowIndex ();
+
+	/** True if the current row has a value in any column (planned or not). */
+	boolean isPopulated ();
+
+	/** Text of planned column c of the current row ("" if blank). */
+	String getValue (int c);
+
+	/** True if the text of planned column c of the current row only holds characters up to ' '. */
+	boolean isBlank (int c);
+
+	/** Length of the text of planned column c of the current row in UTF-8 bytes. */
+	int getUtf8Length (int c);
+
+	/** Copies the text of planned column c of the current row as UTF-8 (getUtf8Length bytes) to dest at offset. */
+	void copyUtf8 (int c, byte[] dest, int offset);
+
+	/**
+	 * True if value only holds characters up to ' ' (value.trim ().isEmpty () without the copy).
+	 */
+	static boolean isBlank (String value)
+	{
+		if (value == null)
+		{
+			return true;
+		}
+		for (int i = 0, n = value.length (); i < n; i++)
+		{
+			if (value.charAt (i) > ' ')
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Reads the cursor on the calling thread.
+	 */
+	static SheetRows of (RowCursor cursor, int[] sourceColumns)
+	{
+		return new CursorRows (cursor, sourceColumns);
+	}
+
+	final class CursorRows implements SheetRows
+	{
+		private final RowCursor cursor;
+		private final int[]		sourceColumns;
+
+		/** UTF-8 of planned column encodedColumn of the current row, for getUtf8Length then copyUtf8. */
+		private int				encodedColumn = -1;
+		private byte[]			encoded;
+
+		CursorRows (RowCursor cursor, int[] sourceColumns)
+		{
+			this.cursor = cursor;
+			this.sourceColumns = sourceColumns;
+		}
+
+		@Override
+		public boolean next () throws IOException
+		{
+			encodedColumn = -1;
+			return cursor.next ();
+		}
+
+		@Override
+		public int getRowIndex ()
+		{
+			return cursor.getRow ().getRowIndex ();
+		}
+
+		@Override
+		public boolean isPopulated ()
+		{
+			return !cursor.getRow ().isEmpty ();
+		}
+
+		@Override
+		public String getValue (int c)
+		{
+			RowData row = cursor.getRow ();
+			return row.getText (sourceColumns[c]);
+		}
+
+		@Override
+		public boolean isBlank (int c)
+		{
+			return SheetRows.isBlank (getValue (c));
+		}
+
+		@Override
+		public int getUtf8Length (int c)
+		{
+			return encode (c).length;
+		}
+
+		@Override
+		public void copyUtf8 (int c, byte[] dest, int offset)
+		{
+			byte[] bytes = encode (c);
+			System.arraycopy (bytes, 0, dest, offset, bytes.length);
+		}
+
+		private byte[] encode (int c)
+		{
+			if (encodedColumn != c)
+			{
+				String value = getValue (c);
+				encoded = (value != null)? value.getBytes (StandardCharsets.UTF_8) : new byte[0];
+				encodedColumn = c;
+			}
+			return encoded;
+		}
+
+		@Override
+		public void close () throws IOException
+		{
+			cursor.close ();
+		}
+	}
+}
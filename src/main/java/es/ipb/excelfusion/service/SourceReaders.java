@@ -0,0 +1,89 @@
+package es.ipb.excelfusion.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.function.Consumer;
+
+import es.ipb.excelfusion.excel.CsvSheetReader;
+import es.ipb.excelfusion.excel.SheetReaders;
+import es.ipb.excelfusion.excel.SheetRowReader;
+import es.ipb.excelfusion.excel.WorkbookSheetReader;
+import es.ipb.excelfusion.excel.XlsbStreamingReader;
+import es.ipb.excelfusion.excel.XlsxStreamingReader;
+
+
+/**
+ * Opens source files the way the import reads them, for ImportExecutor and RowSpool, so rows
+ * spooled ahead of the import are the rows the import would have read.
+ */
+final class SourceReaders
+{
+
+	private SourceReaders ()
+	{
+	}
+
+	/**
+	 * Opens the reader for one file. With evaluate the file is loaded as a workbook and the
+	 * formulas of the given sheets are recomputed, in parallel across sheets; XLSB and CSV files,
+	 * and workbooks too large for the memory budget, are streamed with their cached results
+	 * instead. What was chosen is reported to log.
+	 */
+	static SheetRowReader open (File file, List <String> sheetNames, boolean evaluate, int firstRow,
+	                            Consumer <String> log) throws IOException
+	{
+		if (evaluate && !SheetReaders.canEvaluateFormulas (file))
+		{
+			log.accept ("  Formula evaluation is not available for this file type; using the stored values.");
+			evaluate = false;
+		}
+		else if (evaluate && !SheetReaders.fitsInMemory (file))
+		{
+			log.accept ("  Loading the workbook would take about " + (SheetReaders.workbookHeapEstimate (file) >> 20) +
+			            " MB of heap, over the reader budget; streaming it with cached formula results.");
+			evaluate = false;
+		}
+		if (!evaluate)
+		{
+			SheetRowReader reader = SheetReaders.open (file);
+			if (reader instanceof XlsxStreamingReader)
+			{
+				log.accept ("  Streaming sheet XML" +
+				            (((XlsxStreamingReader) reader).isSharedStringsSpilled ()? " (shared strings in temp file)"
+				                                                                      : "") +
+				            ".");
+			}
+			else if (reader instanceof XlsbStreamingReader)
+			{
+				log.accept ("  Streaming sheet records" +
+				            (((XlsbStreamingReader) reader).isSharedStringsSpilled ()? " (shared strings in temp file)"
+				                                                                      : "") +
+				            ".");
+			}
+			else if (reader instanceof CsvSheetReader)
+			{
+				CsvSheetReader csv = (CsvSheetReader) reader;
+				String delimiter = (csv.getDelimiter () == '\t')? "tab" : "'" + csv.getDelimiter () + "'";
+				log.accept ("  Streaming delimited text (" + delimiter + " delimiter, " + csv.getCharset ().name () +
+				            ").");
+			}
+			return reader;
+		}
+
+		WorkbookSheetReader reader = SheetReaders.openWorkbook (file);
+		try
+		{
+			long start = System.nanoTime ();
+			int evaluated = reader.evaluateFormulas (sheetNames, firstRow, -1);
+			log.accept ("  Evaluated " + evaluated + " formula cells in " + sheetNames.size () + " sheet(s) in " +
+			            (System.nanoTime () - start) / 1_000_000 + " ms.");
+			return reader;
+		}
+		catch (RuntimeException e)
+		{
+			reader.close ();
+			throw e;
+		}
+	}
+}
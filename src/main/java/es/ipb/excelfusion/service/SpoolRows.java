@@ -0,0 +1,395 @@
+package es.ipb.excelfusion.service;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+
+/**
+ * Rows of a spool file written by SpoolWriter. Each block is read in turn into one reused buffer
+ * (not memory-mapped: Windows could not delete the spool file while a mapping is alive) and only
+ * the columns of the plan are decoded, a whole column of the block at a time, into positions of
+ * their text in that buffer (or integers, for LONG columns): copyUtf8 copies the bytes from there,
+ * and a String is only created for getValue. Dictionary-encoded cells share one String per
+ * distinct value.
+ */
+final class SpoolRows implements SheetRows
+{
+
+	private final FileChannel channel;
+	private final long		  size;
+	private final int[]		  sourceColumns;
+
+	/** Decoded columns of the block by planned column (null: source column not in the block). */
+	private final Column[]	  columns;
+
+	/** Column objects, reused from block to block; planned columns with the same source share one. */
+	private final Column[]	  decoders;
+	private final int[]		  rowIndexes	= new int[SpoolWriter.GROUP_ROWS];
+	private final int[]		  counts		= new int[SpoolWriter.GROUP_ROWS];
+	private long			  blockOffset;
+	private int				  blockRows;
+	private int				  position;
+	private int				  lastRowIndex	= -1;
+	private final ByteBuffer  header		= ByteBuffer.allocate (Integer.BYTES);
+	private ByteBuffer		  block			= ByteBuffer.allocate (1 << 16);
+
+	SpoolRows (File file, int[] sourceColumns) throws IOException
+	{
+		this.channel = FileChannel.open (file.toPath (), StandardOpenOption.READ);
+		this.size = channel.size ();
+		this.sourceColumns = sourceColumns;
+		this.columns = new Column[sourceColumns.length];
+		this.decoders = new Column[sourceColumns.length];
+		for (int c = 0; c < sourceColumns.length; c++)
+		{
+			for (int first = 0; first <= c; first++)
+			{
+				if (sourceColumns[first] == sourceColumns[c])
+				{
+					decoders[c] = (first == c)? new Column () : decoders[first];
+					break;
+				}
+			}
+		}
+	}
+
+	@Override
+	public boolean next () throws IOException
+	{
+		if (++position < blockRows)
+		{
+			return true;
+		}
+		if (blockOffset >= size)
+		{
+			return false;
+		}
+		readBlock ();
+		position = 0;
+		return blockRows > 0;
+	}
+
+	@Override
+	public int getRowIndex ()
+	{
+		return rowIndexes[position];
+	}
+
+	@Override
+	public boolean isPopulated ()
+	{
+		return counts[position] > 0;
+	}
+
+	@Override
+	public String getValue (int c)
+	{
+		Column column = present (c);
+		return (column != null)? column.text (position, block.array ()) : "";
+	}
+
+	@Override
+	public boolean isBlank (int c)
+	{
+		Column column = present (c);
+		return column == null || column.isBlank (position, block.array ());
+	}
+
+	@Override
+	public int getUtf8Length (int c)
+	{
+		Column column = present (c);
+		return (column != null)? column.lengths[position] : 0;
+	}
+
+	@Override
+	public void copyUtf8 (int c, byte[] dest, int offset)
+	{
+		Column column = present (c);
+		if (column != null)
+		{
+			column.copyUtf8 (position, block.array (), dest, offset);
+		}
+	}
+
+	@Override
+	public void close () throws IOException
+	{
+		channel.close ();
+	}
+
+	/** Column of planned column c if the current row has a cell there, else null. */
+	private Column present (int c)
+	{
+		Column column = columns[c];
+		return (column != null && sourceColumns[c] + 1 < counts[position])? column : null;
+	}
+
+	private void readBlock () throws IOException
+	{
+		if (size - blockOffset < Integer.BYTES)
+		{
+			throw new EOFException ("Truncated spool file");
+		}
+		header.clear ();
+		readFully (header, blockOffset);
+		int length = header.getInt (0);
+		if (length < 0 || blockOffset + Integer.BYTES + length > size)
+		{
+			throw new EOFException ("Truncated spool file");
+		}
+		if (length > block.capacity ())
+		{
+			block = ByteBuffer.allocate (Math.max (length, block.capacity () * 2));
+		}
+		block.clear ().limit (length);
+		readFully (block, blockOffset + Integer.BYTES);
+		block.flip ();
+		blockOffset += Integer.BYTES + length;
+
+		blockRows = block.getInt ();
+		int width = block.getInt ();
+		for (int r = 0; r < blockRows; r++)
+		{
+			lastRowIndex += readVarint (block);
+			rowIndexes[r] = lastRowIndex;
+		}
+		for (int r = 0; r < blockRows; r++)
+		{
+			counts[r] = readVarint (block);
+		}
+
+		Arrays.fill (columns, null);
+		for (int source = 0; source < width; source++)
+		{
+			int columnLength = block.getInt ();
+			int columnEnd = block.position () + columnLength;
+			boolean decoded = false;
+			for (int c = 0; c < sourceColumns.length; c++)
+			{
+				if (sourceColumns[c] == source)
+				{
+					if (!decoded)
+					{
+						// Later planned columns of this source share the decoded column
+						decoders[c].decode (block, blockRows);
+						decoded = true;
+					}
+					columns[c] = decoders[c];
+				}
+			}
+			block.position (columnEnd);
+		}
+	}
+
+	/** Fills buffer from the file at position on. */
+	private void readFully (ByteBuffer buffer, long position) throws IOException
+	{
+		while (buffer.hasRemaining ())
+		{
+			if (channel.read (buffer, position + buffer.position ()) < 0)
+			{
+				throw new EOFException ("Truncated spool file");
+			}
+		}
+	}
+
+	private static int readVarint (ByteBuffer block)
+	{
+		int value = 0;
+		for (int shift = 0;; shift += 7)
+		{
+			byte b = block.get ();
+			value |= (b & 0x7F) << shift;
+			if (b >= 0)
+			{
+				return value;
+			}
+		}
+	}
+
+	private static long readVarLong (ByteBuffer block)
+	{
+		long value = 0;
+		for (int shift = 0;; shift += 7)
+		{
+			byte b = block.get ();
+			value |= (long) (b & 0x7F) << shift;
+			if (b >= 0)
+			{
+				return value;
+			}
+		}
+	}
+
+	/**
+	 * One column of the current block: per row, the UTF-8 length of the value and either its start
+	 * in the block buffer (PLAIN, DICTIONARY) or the integer itself (LONG). A length of 0 is "".
+	 */
+	private static final class Column
+	{
+		byte	 encoding;
+		int[]	 lengths	= new int[0];
+		int[]	 starts		= new int[0];
+		int[]	 codes		= new int[0];
+		long[]	 longs		= new long[0];
+
+		/** Dictionary values decoded so far (DICTIONARY). */
+		String[] dictionary	= new String[0];
+
+		void decode (ByteBuffer block, int rows)
+		{
+			if (lengths.length < rows)
+			{
+				lengths = new int[SpoolWriter.GROUP_ROWS];
+				starts = new int[SpoolWriter.GROUP_ROWS];
+			}
+			encoding = block.get ();
+			if (encoding == SpoolWriter.ENC_LONG)
+			{
+				if (longs.length < rows)
+				{
+					longs = new long[SpoolWriter.GROUP_ROWS];
+				}
+				long previous = 0;
+				for (int r = 0; r < rows; r++)
+				{
+					long zigzag = readVarLong (block);
+					if (zigzag == 0)
+					{
+						lengths[r] = 0;
+						continue;
+					}
+					zigzag--;
+					previous += (zigzag >>> 1) ^ -(zigzag & 1);
+					longs[r] = previous;
+					lengths[r] = digits (previous);
+				}
+			}
+			else if (encoding == SpoolWriter.ENC_DICTIONARY)
+			{
+				int size = readVarint (block);
+				if (dictionary.length < size)
+				{
+					dictionary = new String[Math.max (size, dictionary.length * 2)];
+				}
+				Arrays.fill (dictionary, 0, size, null);
+				// The entries come first, then the code of each row: rows point at their entry
+				int[] entryStarts = new int[size];
+				int[] entryLengths = new int[size];
+				for (int i = 0; i < size; i++)
+				{
+					entryLengths[i] = readVarint (block);
+					entryStarts[i] = block.position ();
+					block.position (block.position () + entryLengths[i]);
+				}
+				if (codes.length < rows)
+				{
+					codes = new int[SpoolWriter.GROUP_ROWS];
+				}
+				int codeBytes = SpoolWriter.codeBytes (size);
+				for (int r = 0; r < rows; r++)
+				{
+					int code = (codeBytes == 1)? block.get () & 0xFF
+					                           : (codeBytes == 2)? block.getShort () & 0xFFFF : block.getInt ();
+					codes[r] = code;
+					starts[r] = entryStarts[code];
+					lengths[r] = entryLengths[code];
+				}
+			}
+			else
+			{
+				for (int r = 0; r < rows; r++)
+				{
+					lengths[r] = readVarint (block);
+					starts[r] = block.position ();
+					block.position (block.position () + lengths[r]);
+				}
+			}
+		}
+
+		String text (int r, byte[] bytes)
+		{
+			if (lengths[r] == 0)
+			{
+				return "";
+			}
+			if (encoding == SpoolWriter.ENC_LONG)
+			{
+				return Long.toString (longs[r]);
+			}
+			if (encoding == SpoolWriter.ENC_DICTIONARY)
+			{
+				String value = dictionary[codes[r]];
+				if (value == null)
+				{
+					value = new String (bytes, starts[r], lengths[r], StandardCharsets.UTF_8);
+					dictionary[codes[r]] = value;
+				}
+				return value;
+			}
+			return new String (bytes, starts[r], lengths[r], StandardCharsets.UTF_8);
+		}
+
+		boolean isBlank (int r, byte[] bytes)
+		{
+			if (encoding == SpoolWriter.ENC_LONG)
+			{
+				return lengths[r] == 0;
+			}
+			for (int i = starts[r], end = starts[r] + lengths[r]; i < end; i++)
+			{
+				// Bytes of a multi-byte character are all above 0x7F
+				if ((bytes[i] & 0xFF) > ' ')
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+
+		void copyUtf8 (int r, byte[] bytes, byte[] dest, int offset)
+		{
+			if (encoding != SpoolWriter.ENC_LONG)
+			{
+				System.arraycopy (bytes, starts[r], dest, offset, lengths[r]);
+				return;
+			}
+			if (lengths[r] == 0)
+			{
+				return;
+			}
+			// The digits of Long.toString, written from the last one back
+			long value = longs[r];
+			int at = offset + lengths[r];
+			long rest = Math.abs (value);
+			do
+			{
+				dest[--at] = (byte) ('0' + rest % 10);
+				rest /= 10;
+			}
+			while (rest != 0);
+			if (value < 0)
+			{
+				dest[--at] = '-';
+			}
+		}
+
+		/** Length of Long.toString (value); LONG columns never hold Long.MIN_VALUE. */
+		private static int digits (long value)
+		{
+			int length = (value < 0)? 2 : 1;
+			for (long rest = Math.abs (value); rest >= 10; rest /= 10)
+			{
+				length++;
+			}
+			return length;
+		}
+	}
+}
@@ -0,0 +1,279 @@
+package es.ipb.excelfusion.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import es.ipb.excelfusion.excel.RowData;
+
+
+/**
+ * Writes the rows of one sheet to a columnar spool file, read back by SpoolRows.
+ *
+ * Rows are buffered in groups of GROUP_ROWS and each group is written as one block: its byte
+ * length, row count and width (widest row), the row index deltas and cell counts (cell count + 1,
+ * 0 for a row without values) as varints, then every column as its byte length, an encoding and
+ * its values. Cells are display text, so the encoding is picked per column and group from the
+ * text: LONG for columns holding only canonical integers (or blanks), as zigzag deltas; DICTIONARY
+ * for columns with few distinct values (dates, codes, names), as the distinct strings plus 1, 2 or
+ * 4 byte codes; PLAIN for the rest, as length-prefixed UTF-8. A reader skips a column it does not
+ * need by its length, without touching its bytes.
+ */
+final class SpoolWriter implements Closeable
+{
+
+	/** Rows per block. */
+	static final int				 GROUP_ROWS		  = 8192;
+
+	static final byte				 ENC_PLAIN		  = 0;
+	static final byte				 ENC_DICTIONARY	  = 1;
+	static final byte				 ENC_LONG		  = 2;
+
+	/** Largest share of distinct values of a dictionary-encoded column. */
+	private static final int		 MAX_DISTINCT_DIV = 2;
+
+	/** Digits of the longest integer encoded as LONG (so deltas cannot overflow). */
+	private static final int		 MAX_LONG_DIGITS  = 18;
+
+	private final DataOutputStream	 out;
+	private final int[]				 rowIndexes		  = new int[GROUP_ROWS];
+	private final int[]				 counts			  = new int[GROUP_ROWS];
+	private String[][]				 columns		  = new String[0][];
+	private int						 rows;
+	private int						 width;
+	private int						 lastRowIndex	  = -1;
+
+	private final ByteArrayOutputStream block		  = new ByteArrayOutputStream (256 * 1024);
+	private final ByteArrayOutputStream column		  = new ByteArrayOutputStream (64 * 1024);
+	private final DataOutputStream	 blockOut		  = new DataOutputStream (block);
+	private final DataOutputStream	 columnOut		  = new DataOutputStream (column);
+
+	SpoolWriter (File file) throws IOException
+	{
+		this.out = new DataOutputStream (new FileOutputStream (file));
+	}
+
+	void writeRow (RowData row) throws IOException
+	{
+		int r = rows++;
+		rowIndexes[r] = row.getRowIndex ();
+		int cellCount = row.isEmpty ()? 0 : row.getCellCount ();
+		counts[r] = row.isEmpty ()? 0 : cellCount + 1;
+		if (cellCount > columns.length)
+		{
+			columns = Arrays.copyOf (columns, Math.max (cellCount, columns.length * 2));
+		}
+		for (int c = 0; c < cellCount; c++)
+		{
+			if (columns[c] == null)
+			{
+				columns[c] = new String[GROUP_ROWS];
+			}
+			columns[c][r] = row.getText (c);
+		}
+		width = Math.max (width, cellCount);
+		if (rows == GROUP_ROWS)
+		{
+			flushGroup ();
+		}
+	}
+
+	private void flushGroup () throws IOException
+	{
+		block.reset ();
+		blockOut.writeInt (rows);
+		blockOut.writeInt (width);
+		for (int r = 0; r < rows; r++)
+		{
+			writeVarint (blockOut, rowIndexes[r] - lastRowIndex);
+			lastRowIndex = rowIndexes[r];
+		}
+		for (int r = 0; r < rows; r++)
+		{
+			writeVarint (blockOut, counts[r]);
+		}
+		for (int c = 0; c < width; c++)
+		{
+			String[] values = columns[c];
+			for (int r = 0; r < rows; r++)
+			{
+				// Cells past the end of a shorter row are blank
+				if (counts[r] <= c + 1)
+				{
+					values[r] = "";
+				}
+			}
+			column.reset ();
+			writeColumn (values);
+			blockOut.writeInt (column.size ());
+			column.writeTo (blockOut);
+		}
+
+		out.writeInt (block.size ());
+		block.writeTo (out);
+		rows = 0;
+		width = 0;
+	}
+
+	private void writeColumn (String[] values) throws IOException
+	{
+		if (isLongColumn (values))
+		{
+			columnOut.writeByte (ENC_LONG);
+			long previous = 0;
+			for (int r = 0; r < rows; r++)
+			{
+				if (values[r].isEmpty ())
+				{
+					writeVarint (columnOut, 0);
+					continue;
+				}
+				long value = Long.parseLong (values[r]);
+				long delta = value - previous;
+				writeVarLong (columnOut, ((delta << 1) ^ (delta >> 63)) + 1);
+				previous = value;
+			}
+			return;
+		}
+
+		Map <String, Integer> codes = new HashMap <> ();
+		int maxDistinct = Math.max (1, rows / MAX_DISTINCT_DIV);
+		for (int r = 0; r < rows && codes.size () <= maxDistinct; r++)
+		{
+			codes.putIfAbsent (values[r], codes.size ());
+		}
+		if (codes.size () > maxDistinct)
+		{
+			columnOut.writeByte (ENC_PLAIN);
+			for (int r = 0; r < rows; r++)
+			{
+				writeText (columnOut, values[r]);
+			}
+			return;
+		}
+
+		columnOut.writeByte (ENC_DICTIONARY);
+		String[] dictionary = new String[codes.size ()];
+		for (Map.Entry <String, Integer> entry : codes.entrySet ())
+		{
+			dictionary[entry.getValue ()] = entry.getKey ();
+		}
+		writeVarint (columnOut, dictionary.length);
+		for (String value : dictionary)
+		{
+			writeText (columnOut, value);
+		}
+		int codeBytes = codeBytes (dictionary.length);
+		for (int r = 0; r < rows; r++)
+		{
+			int code = codes.get (values[r]);
+			if (codeBytes == 1)
+			{
+				columnOut.writeByte (code);
+			}
+			else if (codeBytes == 2)
+			{
+				columnOut.writeShort (code);
+			}
+			else
+			{
+				columnOut.writeInt (code);
+			}
+		}
+	}
+
+	/** Bytes per code of a dictionary of the given size. */
+	static int codeBytes (int dictionarySize)
+	{
+		return (dictionarySize <= 1 << 8)? 1 : (dictionarySize <= 1 << 16)? 2 : 4;
+	}
+
+	private boolean isLongColumn (String[] values)
+	{
+		boolean any = false;
+		for (int r = 0; r < rows; r++)
+		{
+			String value = values[r];
+			if (value.isEmpty ())
+			{
+				continue;
+			}
+			if (!isCanonicalLong (value))
+			{
+				return false;
+			}
+			any = true;
+		}
+		return any;
+	}
+
+	/** True for integers that Long.toString prints back exactly (no plus sign, leading zeros or spaces). */
+	private static boolean isCanonicalLong (String value)
+	{
+		int start = (value.charAt (0) == '-')? 1 : 0;
+		int digits = value.length () - start;
+		if (digits == 0 || digits > MAX_LONG_DIGITS || (value.charAt (start) == '0' && (digits > 1 || start > 0)))
+		{
+			return false;
+		}
+		for (int i = start; i < value.length (); i++)
+		{
+			char ch = value.charAt (i);
+			if (ch < '0' || ch > '9')
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void writeText (DataOutputStream out, String value) throws IOException
+	{
+		byte[] bytes = value.getBytes (StandardCharsets.UTF_8);
+		writeVarint (out, bytes.length);
+		out.write (bytes);
+	}
+
+	private static void writeVarint (DataOutputStream out, int value) throws IOException
+	{
+		while ((value & ~0x7F) != 0)
+		{
+			out.writeByte ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte (value);
+	}
+
+	private static void writeVarLong (DataOutputStream out, long value) throws IOException
+	{
+		while ((value & ~0x7FL) != 0)
+		{
+			out.writeByte ((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte ((int) value);
+	}
+
+	@Override
+	public void close () throws IOException
+	{
+		try
+		{
+			if (rows > 0)
+			{
+				flushGroup ();
+			}
+		}
+		finally
+		{
+			out.close ();
+		}
+	}
+}
@@ -0,0 +1,187 @@
+package es.ipb.excelfusion.service;
+
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ * One row of the target table as the import loop hands it to a RowSink: column c holds planned
+ * column c of the current source row, the value kept for fill-down from an earlier row, or ""
+ * (a row missing from the sheet).
+ *
+ * Sinks that bind text read getText. Sinks that write UTF-8 (RowSink.writesUtf8) read
+ * getUtf8Length and copyUtf8, which copy a source value's bytes from where the rows hold them
+ * (parser batch, shared strings table, spool block), so no String is created for the cell; the
+ * fill-down values are then kept as bytes too, since the source reuses its buffers.
+ */
+final class TargetRow
+{
+
+	private static final byte SOURCE = 0;
+	private static final byte KEPT	 = 1;
+	private static final byte EMPTY	 = 2;
+
+	private final SheetRows	  source;
+	private final boolean	  utf8;
+	private final boolean[]	  fillDown;
+
+	/** Where the value of each column comes from in the current row, and whether it is blank. */
+	private final byte[]	  kinds;
+	private final boolean[]	  blanks;
+
+	/** Text of each column of the current row (text mode). */
+	private final String[]	  texts;
+
+	/** Fill-down value of each column: as text (text mode) or UTF-8 bytes. */
+	private final boolean[]	  kept;
+	private final boolean[]	  keptBlanks;
+	private final String[]	  keptTexts;
+	private final byte[][]	  keptBytes;
+	private final int[]		  keptLengths;
+
+	/**
+	 * @param utf8 UTF-8 mode, for a sink that reads getUtf8Length and copyUtf8 (RowSink.writesUtf8)
+	 */
+	TargetRow (SheetRows source, boolean[] fillDown, boolean utf8)
+	{
+		int columnCount = fillDown.length;
+		this.source = source;
+		this.utf8 = utf8;
+		this.fillDown = fillDown;
+		this.kinds = new byte[columnCount];
+		this.blanks = new boolean[columnCount];
+		this.texts = new String[columnCount];
+		this.kept = new boolean[columnCount];
+		this.keptBlanks = new boolean[columnCount];
+		this.keptTexts = new String[columnCount];
+		this.keptBytes = new byte[columnCount][];
+		this.keptLengths = new int[columnCount];
+	}
+
+	// === Import loop ===
+
+	/** Takes column c from the current source row; returns true if it is blank. */
+	boolean setFromSource (int c)
+	{
+		kinds[c] = SOURCE;
+		if (utf8)
+		{
+			blanks[c] = source.isBlank (c);
+		}
+		else
+		{
+			texts[c] = source.getValue (c);
+			blanks[c] = SheetRows.isBlank (texts[c]);
+		}
+		return blanks[c];
+	}
+
+	/** Leaves column c empty (""). */
+	void setEmpty (int c)
+	{
+		kinds[c] = EMPTY;
+		texts[c] = "";
+		blanks[c] = true;
+	}
+
+	/** True if column c fills down and a value was kept for it. */
+	boolean canFillDown (int c)
+	{
+		return fillDown[c] && kept[c];
+	}
+
+	/** Takes the kept value for column c; returns true if it is blank. */
+	boolean setFilledDown (int c)
+	{
+		kinds[c] = KEPT;
+		texts[c] = keptTexts[c];
+		blanks[c] = keptBlanks[c];
+		return blanks[c];
+	}
+
+	/** Keeps the values of the fill-down columns of this row (once it was added to the sink). */
+	void keepFillDownValues ()
+	{
+		for (int c = 0; c < fillDown.length; c++)
+		{
+			if (!fillDown[c] || kinds[c] == KEPT)
+			{
+				continue;
+			}
+			if (!utf8)
+			{
+				keptTexts[c] = texts[c];
+				kept[c] = texts[c] != null;
+			}
+			else
+			{
+				int length = (kinds[c] == SOURCE)? source.getUtf8Length (c) : 0;
+				if (keptBytes[c] == null || keptBytes[c].length < length)
+				{
+					keptBytes[c] = new byte[Math.max (length, 16)];
+				}
+				if (length > 0)
+				{
+					source.copyUtf8 (c, keptBytes[c], 0);
+				}
+				keptLengths[c] = length;
+				keptTexts[c] = null;
+				kept[c] = true;
+			}
+			keptBlanks[c] = blanks[c];
+		}
+	}
+
+	// === Sinks ===
+
+	/** Text of column c ("" or null for an empty value). */
+	String getText (int c)
+	{
+		if (!utf8)
+		{
+			return texts[c];
+		}
+		switch (kinds[c])
+		{
+			case SOURCE:
+				return source.getValue (c);
+			case KEPT:
+				if (keptTexts[c] == null)
+				{
+					keptTexts[c] = new String (keptBytes[c], 0, keptLengths[c], StandardCharsets.UTF_8);
+				}
+				return keptTexts[c];
+			default:
+				return "";
+		}
+	}
+
+	/** Length of column c in UTF-8 bytes (UTF-8 mode). */
+	int getUtf8Length (int c)
+	{
+		switch (kinds[c])
+		{
+			case SOURCE:
+				return source.getUtf8Length (c);
+			case KEPT:
+				return keptLengths[c];
+			default:
+				return 0;
+		}
+	}
+
+	/** Copies column c as UTF-8 (getUtf8Length bytes) to dest at offset (UTF-8 mode). */
+	void copyUtf8 (int c, byte[] dest, int offset)
+	{
+		switch (kinds[c])
+		{
+			case SOURCE:
+				source.copyUtf8 (c, dest, offset);
+				break;
+			case KEPT:
+				System.arraycopy (keptBytes[c], 0, dest, offset, keptLengths[c]);
+				break;
+			default:
+				break;
+		}
+	}
+}
@@ -198,7 +198,7 @@ public class Step1FileSelectionPage implements WizardPage
 	private void onBrowseDirectory ()
 	{
 		DirectoryDialog dialog = new DirectoryDialog (control.getShell ());
-		dialog.setMessage ("Select the directory containing Excel files (.xls, .xlsx)");
+		dialog.setMessage ("Select the directory containing Excel or CSV files (.xls, .xlsx, .xlsb, .csv, .tsv)");
 		String dir = dialog.open ();
 		if (dir != null)
 		{
@@ -254,7 +254,8 @@ public class Step1FileSelectionPage implements WizardPage
 
 		File[] files = currentDirectory.listFiles ( (dir, name) -> {
 			String lower = name.toLowerCase (Locale.ROOT);
-			return lower.endsWith (".xls") || lower.endsWith (".xlsx");
+			return lower.endsWith (".xls") || lower.endsWith (".xlsx") || lower.endsWith (".xlsb") ||
+			       lower.endsWith (".csv") || lower.endsWith (".tsv");
 		});
 
 		if (files == null)
@@ -2,20 +2,12 @@
 package es.ipb.excelfusion.ui.wizard;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
 
-import org.apache.poi.ss.usermodel.Cell;
-import org.apache.poi.ss.usermodel.DataFormatter;
-import org.apache.poi.ss.usermodel.Row;
-import org.apache.poi.ss.usermodel.Sheet;
-import org.apache.poi.ss.usermodel.Workbook;
-import org.apache.poi.ss.usermodel.WorkbookFactory;
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.events.ModifyEvent;
 import org.eclipse.swt.events.ModifyListener;
@@ -39,6 +31,11 @@ import org.eclipse.swt.widgets.TableItem;
 import org.eclipse.swt.widgets.Text;
 
 import es.ipb.excelfusion.config.ImportConfiguration;
+import es.ipb.excelfusion.config.ImportConfiguration.FormulaMode;
+import es.ipb.excelfusion.excel.RowCursor;
+import es.ipb.excelfusion.excel.RowData;
+import es.ipb.excelfusion.excel.SheetReaders;
+import es.ipb.excelfusion.excel.SheetRowReader;
 
 
 /**
@@ -67,6 +64,8 @@ public class Step2PreviewPage implements WizardPage
 	private Text									 dataStartRowText;
 
 	private Button									 autoIncrementCheckbox;
+	private Button									 evaluateFormulasCheckbox;
+	private Text									 maxEmptyRowsText;
 
 	private Text									 tableNameText;
 
@@ -231,6 +230,16 @@ public class Step2PreviewPage implements WizardPage
 		autoIncrementCheckbox.setText ("Add auto-increment column (ID)");
 		autoIncrementCheckbox.setSelection (true);
 
+		evaluateFormulasCheckbox = new Button (group, SWT.CHECK);
+		evaluateFormulasCheckbox.setText ("Recalculate formulas (files saved without cached results)");
+		evaluateFormulasCheckbox.setToolTipText ("Unchecked: formula cells import the result stored in the file. "
+		                                         + "Checked: every formula is recalculated, which is much slower.");
+		evaluateFormulasCheckbox.setSelection (false);
+
+		Label maxEmptyRowsLabel = new Label (group, SWT.NONE);
+		maxEmptyRowsLabel.setText ("Stop after consecutive empty rows (0 = never):");
+		maxEmptyRowsText = new Text (group, SWT.BORDER);
+		maxEmptyRowsText.setText ("0");
 	}
 
 	private void createTableNameSection (Composite parent)
@@ -284,6 +293,14 @@ public class Step2PreviewPage implements WizardPage
 		{
 			autoIncrementCheckbox.setSelection (config.isAutoIncrement ());
 		}
+		if (evaluateFormulasCheckbox != null && !evaluateFormulasCheckbox.isDisposed ())
+		{
+			evaluateFormulasCheckbox.setSelection (config.getFormulaMode () == FormulaMode.EVALUATE);
+		}
+		if (maxEmptyRowsText != null && !maxEmptyRowsText.isDisposed ())
+		{
+			maxEmptyRowsText.setText (String.valueOf (config.getMaxConsecutiveEmptyRows ()));
+		}
 
 		applyHeaderHighlight ();
 	}
@@ -318,51 +335,33 @@ public class Step2PreviewPage implements WizardPage
 		previewDataBySheet.clear ();
 		sheetNames.clear ();
 
-		try (FileInputStream fis = new FileInputStream (file); Workbook workbook = WorkbookFactory.create (fis))
+		try (SheetRowReader reader = SheetReaders.open (file, false))
 		{
-
-			int numberOfSheets = workbook.getNumberOfSheets ();
-			for (int i = 0; i < numberOfSheets; i++)
+			for (String sheetName : reader.getSheetNames ())
 			{
-				Sheet sheet = workbook.getSheetAt (i);
-				String sheetName = sheet.getSheetName ();
 				sheetNames.add (sheetName);
 
 				List <List <String>> rows = new ArrayList <> ();
-
-				int maxRow = Math.min (sheet.getLastRowNum (), MAX_PREVIEW_ROWS - 1);
-				DataFormatter formatter = new DataFormatter (Locale.getDefault ());
-
-				for (int r = 0; r <= maxRow; r++)
+				try (RowCursor cursor = reader.openSheet (sheetName, 0))
 				{
-					Row row = sheet.getRow (r);
-					if (row == null)
-					{
-						rows.add (new ArrayList <> ());
-						continue;
-					}
-
-					int lastCellNum = row.getLastCellNum ();
-					if (lastCellNum < 0)
-					{
-						rows.add (new ArrayList <> ());
-						continue;
-					}
-
-					List <String> values = new ArrayList <> ();
-					for (int c = 0; c < lastCellNum; c++)
+					while (cursor.next ())
 					{
-						Cell cell = row.getCell (c, Row.MissingCellPolicy.RETURN_BLANK_AS_NULL);
-						if (cell == null)
+						RowData row = cursor.getRow ();
+						if (row.getRowIndex () >= MAX_PREVIEW_ROWS)
+						{
+							break;
+						}
+						if (row.isEmpty ())
 						{
-							values.add ("");
+							continue;
 						}
-						else
+						// Rows missing from the file are shown empty
+						while (rows.size () < row.getRowIndex ())
 						{
-							values.add (formatter.formatCellValue (cell));
+							rows.add (new ArrayList <> ());
 						}
+						rows.add (row.getTexts ());
 					}
-					rows.add (values);
 				}
 
 				previewDataBySheet.put (sheetName, rows);
@@ -680,6 +679,22 @@ public class Step2PreviewPage implements WizardPage
 			}
 		}
 
+		int maxEmptyRows;
+		try
+		{
+			String text = maxEmptyRowsText.getText ().trim ();
+			maxEmptyRows = text.isEmpty ()? 0 : Integer.parseInt (text);
+		}
+		catch (NumberFormatException e)
+		{
+			maxEmptyRows = -1;
+		}
+		if (maxEmptyRows < 0)
+		{
+			showError ("Invalid empty row limit", "The empty row limit must be 0 or a positive integer.");
+			return false;
+		}
+
 		String tableName = (tableNameText != null)? tableNameText.getText ().trim () : "";
 		if (tableName.isEmpty ())
 		{
@@ -700,6 +715,9 @@ public class Step2PreviewPage implements WizardPage
 		config.setHeaderRow (headerRow);
 		config.setDataStartRow (dataStartRow);
 		config.setAutoIncrement (autoIncrementCheckbox.getSelection ());
+		config.setFormulaMode (evaluateFormulasCheckbox.getSelection ()? FormulaMode.EVALUATE
+		                                                               : FormulaMode.CACHED_RESULT);
+		config.setMaxConsecutiveEmptyRows (maxEmptyRows);
 		config.setSheetNames (new ArrayList <> (sheetNames));
 		config.setTableName (tableName);
 		config.setFillEmptyColumns (fillColumnList);
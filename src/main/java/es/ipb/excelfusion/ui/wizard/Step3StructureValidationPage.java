@@ -2,17 +2,9 @@
 package es.ipb.excelfusion.ui.wizard;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Locale;
-
-import org.apache.poi.ss.usermodel.Cell;
-import org.apache.poi.ss.usermodel.DataFormatter;
-import org.apache.poi.ss.usermodel.Row;
-import org.apache.poi.ss.usermodel.Sheet;
-import org.apache.poi.ss.usermodel.Workbook;
-import org.apache.poi.ss.usermodel.WorkbookFactory;
+
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.graphics.Color;
 import org.eclipse.swt.layout.GridData;
@@ -26,6 +18,9 @@ import org.eclipse.swt.widgets.TableColumn;
 import org.eclipse.swt.widgets.TableItem;
 
 import es.ipb.excelfusion.config.ImportConfiguration;
+import es.ipb.excelfusion.excel.SheetReaders;
+import es.ipb.excelfusion.excel.SheetRowReader;
+import es.ipb.excelfusion.service.RowSpool;
 
 
 /**
@@ -58,10 +53,20 @@ public class Step3StructureValidationPage implements WizardPage
 	private Color								   errorColor;
 
 	private ImportConfiguration					   config;
+	private final RowSpool						   spool;
 
 	public Step3StructureValidationPage (ImportConfiguration config)
+	{
+		this (config, null);
+	}
+
+	/**
+	 * @param spool started with the selection on leaving the page; null = no pre-parsing
+	 */
+	public Step3StructureValidationPage (ImportConfiguration config, RowSpool spool)
 	{
 		this.config = config;
+		this.spool = spool;
 	}
 
 	@Override
@@ -189,7 +194,6 @@ public class Step3StructureValidationPage implements WizardPage
 
 		// 0-based index for POI (headerRow is 1-based)
 		int headerRowIndex = headerRow - 1;
-		DataFormatter formatter = new DataFormatter (Locale.getDefault ());
 
 		java.util.List <String> referenceHeader = null;
 		File referenceFile = null;
@@ -198,46 +202,18 @@ public class Step3StructureValidationPage implements WizardPage
 		// Iterate over all files and all sheets
 		for (File file : selectedFiles)
 		{
-			try (FileInputStream fis = new FileInputStream (file); Workbook workbook = WorkbookFactory.create (fis))
+			try (SheetRowReader reader = SheetReaders.open (file, false))
 			{
 
-				int numberOfSheets = workbook.getNumberOfSheets ();
-
-				for (int i = 0; i < numberOfSheets; i++)
+				for (String sheetName : reader.getSheetNames ())
 				{
-					Sheet sheet = workbook.getSheetAt (i);
-					String sheetName = sheet.getSheetName ();
 
 					SheetValidationResult result = new SheetValidationResult (file, sheetName);
 
 					try
 					{
-						Row row = sheet.getRow (headerRowIndex);
-						java.util.List <String> headerValues = new ArrayList <> ();
-
-						if (row != null)
-						{
-							short lastCellNum = row.getLastCellNum ();
-							if (lastCellNum < 0)
-							{
-								// row exists but has no cells
-								lastCellNum = 0;
-							}
-							for (int c = 0; c < lastCellNum; c++)
-							{
-								Cell cell = row.getCell (c, Row.MissingCellPolicy.RETURN_BLANK_AS_NULL);
-								String value;
-								if (cell == null)
-								{
-									value = "";
-								}
-								else
-								{
-									value = formatter.formatCellValue (cell);
-								}
-								headerValues.add (value);
-							}
-						}
+						// Trailing styled blank cells are not part of the header
+						java.util.List <String> headerValues = reader.readRowTexts (sheetName, headerRowIndex);
 
 						if (referenceHeader == null)
 						{
@@ -394,6 +370,12 @@ public class Step3StructureValidationPage implements WizardPage
 		config.getSheetsToImport ().clear ();
 		config.getSheetsToImport ().addAll (getSheetsToImport ());
 
+		// Parse the selected sheets while the user finishes the wizard
+		if (spool != null)
+		{
+			spool.start (config);
+		}
+
 		return true;
 	}
 
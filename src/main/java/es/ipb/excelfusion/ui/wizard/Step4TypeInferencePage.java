@@ -2,24 +2,14 @@
 package es.ipb.excelfusion.ui.wizard;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.text.Normalizer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
 import java.util.regex.Pattern;
 
-import org.apache.poi.ss.usermodel.Cell;
-import org.apache.poi.ss.usermodel.CellType;
-import org.apache.poi.ss.usermodel.DataFormatter;
-import org.apache.poi.ss.usermodel.DateUtil;
-import org.apache.poi.ss.usermodel.Row;
-import org.apache.poi.ss.usermodel.Sheet;
-import org.apache.poi.ss.usermodel.Workbook;
-import org.apache.poi.ss.usermodel.WorkbookFactory;
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.events.SelectionAdapter;
 import org.eclipse.swt.events.SelectionEvent;
@@ -36,6 +26,14 @@ import org.eclipse.swt.widgets.TableColumn;
 import org.eclipse.swt.widgets.TableItem;
 
 import es.ipb.excelfusion.config.ImportConfiguration;
+import es.ipb.excelfusion.config.ImportConfiguration.FormulaMode;
+import es.ipb.excelfusion.excel.MemoryBusyException;
+import es.ipb.excelfusion.excel.RowCursor;
+import es.ipb.excelfusion.excel.RowData;
+import es.ipb.excelfusion.excel.SheetReaders;
+import es.ipb.excelfusion.excel.SheetRowReader;
+import es.ipb.excelfusion.excel.WorkbookSheetReader;
+import es.ipb.excelfusion.service.RowSpool;
 import es.ipb.excelfusion.ui.wizard.Step3StructureValidationPage.SheetValidationResult;
 
 
@@ -107,10 +105,24 @@ public class Step4TypeInferencePage implements WizardPage
 	private final List <ColumnDefinition>	columns		  = new ArrayList <> ();
 	private final Map <Integer, ColumnType>	typeByIndex	  = new HashMap <> ();
 	private ImportConfiguration				config;
+	private final RowSpool					spool;
+
+	/** file @ sheet: message, for each sheet that could not be read during the last inference. */
+	private final List <String>				readFailures  = new ArrayList <> ();
 
 	public Step4TypeInferencePage (ImportConfiguration config)
+	{
+		this (config, null);
+	}
+
+	/**
+	 * @param spool paused while the sheets are sampled, so both do not hold the same files in
+	 *            memory; null = no pre-parsing
+	 */
+	public Step4TypeInferencePage (ImportConfiguration config, RowSpool spool)
 	{
 		this.config = config;
+		this.spool = spool;
 	}
 
 	@Override
@@ -151,7 +163,9 @@ public class Step4TypeInferencePage implements WizardPage
 		group.setLayoutData (new GridData (SWT.FILL, SWT.FILL, true, true));
 		group.setLayout (new GridLayout (1, false));
 
-		columnTable = new Table (group, SWT.BORDER | SWT.FULL_SELECTION | SWT.SINGLE | SWT.V_SCROLL | SWT.H_SCROLL);
+		// Checked columns get an index after the import
+		columnTable = new Table (group, SWT.BORDER | SWT.CHECK | SWT.FULL_SELECTION | SWT.SINGLE | SWT.V_SCROLL |
+		                                SWT.H_SCROLL);
 		columnTable.setHeaderVisible (true);
 		columnTable.setLinesVisible (true);
 
@@ -160,7 +174,8 @@ public class Step4TypeInferencePage implements WizardPage
 		columnTable.setLayoutData (gd);
 
 		TableColumn colName = new TableColumn (columnTable, SWT.LEFT);
-		colName.setText ("Column");
+		colName.setText ("Column (checked: index)");
+		colName.setToolTipText ("Checked columns are indexed once all rows are loaded.");
 		colName.setWidth (200);
 
 		TableColumn colType = new TableColumn (columnTable, SWT.LEFT);
@@ -226,6 +241,37 @@ public class Step4TypeInferencePage implements WizardPage
 	}
 
 	private void runInference ()
+	{
+		readFailures.clear ();
+		if (spool != null)
+		{
+			spool.pause ();
+		}
+		try
+		{
+			inferColumns ();
+		}
+		finally
+		{
+			if (spool != null)
+			{
+				spool.unpause ();
+			}
+		}
+
+		if (!readFailures.isEmpty ())
+		{
+			// Sampled again when the page is entered next time
+			inferenceDone = false;
+			MessageBox mb = new MessageBox (control.getShell (), SWT.ICON_WARNING | SWT.OK);
+			mb.setText ("Some sheets could not be read");
+			mb.setMessage ("Column types were inferred without these sheets:\n\n" + String.join ("\n", readFailures) +
+			               "\n\nThey are sampled again the next time this page is shown.");
+			mb.open ();
+		}
+	}
+
+	private void inferColumns ()
 	{
 		columns.clear ();
 		typeByIndex.clear ();
@@ -282,8 +328,6 @@ public class Step4TypeInferencePage implements WizardPage
 			samplesByColumn.add (new ArrayList <> ());
 		}
 
-		DataFormatter formatter = new DataFormatter (Locale.getDefault ());
-
 		for (SheetValidationResult svr : sheetsToImport)
 		{
 			File file = svr.getFile ();
@@ -295,54 +339,49 @@ public class Step4TypeInferencePage implements WizardPage
 				continue;
 			}
 
-			try (FileInputStream fis = new FileInputStream (file); Workbook workbook = WorkbookFactory.create (fis))
+			try (SheetRowReader reader = openReader (file, sheetName, dataStartIndex))
 			{
 
-				Sheet sheet = workbook.getSheet (sheetName);
-				if (sheet == null)
+				if (!reader.getSheetNames ().contains (sheetName))
 				{
 					continue;
 				}
 
-				int lastRow = sheet.getLastRowNum ();
-				int maxRowToScan = Math.min (lastRow, dataStartIndex + MAX_ROWS_PER_SHEET - 1);
-
-				for (int r = dataStartIndex; r <= maxRowToScan; r++)
+				int maxRowToScan = dataStartIndex + MAX_ROWS_PER_SHEET - 1;
+				try (RowCursor cursor = reader.openSheet (sheetName, dataStartIndex))
 				{
-					Row row = sheet.getRow (r);
-					if (row == null)
-					{
-						continue;
-					}
-					for (int c = 0; c < columnCount; c++)
+					while (cursor.next ())
 					{
-						Cell cell = row.getCell (c, Row.MissingCellPolicy.RETURN_BLANK_AS_NULL);
-						if (cell == null)
+						RowData row = cursor.getRow ();
+						if (row.getRowIndex () > maxRowToScan)
 						{
-							continue;
+							break;
 						}
-						String textValue = formatter.formatCellValue (cell);
-						if (textValue == null || textValue.trim ().isEmpty ())
+						for (int c = 0; c < columnCount; c++)
 						{
-							continue;
+							if (row.isBlank (c))
+							{
+								continue;
+							}
+							String textValue = row.getText (c);
+							if (textValue == null || textValue.trim ().isEmpty ())
+							{
+								continue;
+							}
+
+							ColumnType cellType = detectCellType (row, c, textValue);
+							SampleCell sample = new SampleCell (cellType, textValue);
+
+							samplesByColumn.get (c).add (sample);
 						}
-
-						ColumnType cellType = detectCellType (cell, textValue);
-						SampleCell sample = new SampleCell (cellType, textValue);
-
-						samplesByColumn.get (c).add (sample);
 					}
 				}
 
 			}
-			catch (IOException e)
-			{
-				// Log as needed later; for inference we just skip problematic file@sheets
-				e.printStackTrace ();
-			}
-			catch (Exception ex)
+			catch (Exception e)
 			{
-				ex.printStackTrace ();
+				// Inference goes on with the other sheets; the user is told once it is done
+				readFailures.add (file.getName () + " @ " + sheetName + ": " + e.getMessage ());
 			}
 		}
 
@@ -366,6 +405,7 @@ public class Step4TypeInferencePage implements WizardPage
 			item.setText (0, def.getName ());
 			item.setText (1, def.getType ().name ());
 			item.setText (2, def.getSampleValue ());
+			item.setChecked (config.getIndexedColumns ().contains (def.getName ()));
 		}
 
 		inferenceDone = true;
@@ -374,8 +414,6 @@ public class Step4TypeInferencePage implements WizardPage
 	private ColumnHeaderInfo readHeaderFromReferenceSheet (List <SheetValidationResult> sheetsToImport,
 	                                                       int headerRowIndex)
 	{
-		DataFormatter formatter = new DataFormatter (Locale.getDefault ());
-
 		for (SheetValidationResult svr : sheetsToImport)
 		{
 			if (!svr.isMatches ())
@@ -390,42 +428,15 @@ public class Step4TypeInferencePage implements WizardPage
 				continue;
 			}
 
-			try (FileInputStream fis = new FileInputStream (file); Workbook workbook = WorkbookFactory.create (fis))
+			try (SheetRowReader reader = SheetReaders.open (file, false))
 			{
 
-				Sheet sheet = workbook.getSheet (sheetName);
-				if (sheet == null)
+				if (!reader.getSheetNames ().contains (sheetName))
 				{
 					continue;
 				}
 
-				Row row = sheet.getRow (headerRowIndex);
-				if (row == null)
-				{
-					continue;
-				}
-
-				List <String> headerValues = new ArrayList <> ();
-				short lastCellNum = row.getLastCellNum ();
-				if (lastCellNum < 0)
-				{
-					continue;
-				}
-
-				for (int c = 0; c < lastCellNum; c++)
-				{
-					Cell cell = row.getCell (c, Row.MissingCellPolicy.RETURN_BLANK_AS_NULL);
-					String value;
-					if (cell == null)
-					{
-						value = "";
-					}
-					else
-					{
-						value = formatter.formatCellValue (cell);
-					}
-					headerValues.add (value);
-				}
+				List <String> headerValues = reader.readRowTexts (sheetName, headerRowIndex);
 
 				if (!headerValues.isEmpty ())
 				{
@@ -437,13 +448,10 @@ public class Step4TypeInferencePage implements WizardPage
 				}
 
 			}
-			catch (IOException e)
-			{
-				e.printStackTrace ();
-			}
-			catch (Exception ex)
+			catch (Exception e)
 			{
-				ex.printStackTrace ();
+				// Inference goes on with the other sheets; the user is told once it is done
+				readFailures.add (file.getName () + " @ " + sheetName + ": " + e.getMessage ());
 			}
 		}
 
@@ -457,42 +465,15 @@ public class Step4TypeInferencePage implements WizardPage
 				continue;
 			}
 
-			try (FileInputStream fis = new FileInputStream (file); Workbook workbook = WorkbookFactory.create (fis))
+			try (SheetRowReader reader = SheetReaders.open (file, false))
 			{
 
-				Sheet sheet = workbook.getSheet (sheetName);
-				if (sheet == null)
+				if (!reader.getSheetNames ().contains (sheetName))
 				{
 					continue;
 				}
 
-				Row row = sheet.getRow (headerRowIndex);
-				if (row == null)
-				{
-					continue;
-				}
-
-				List <String> headerValues = new ArrayList <> ();
-				short lastCellNum = row.getLastCellNum ();
-				if (lastCellNum < 0)
-				{
-					continue;
-				}
-
-				for (int c = 0; c < lastCellNum; c++)
-				{
-					Cell cell = row.getCell (c, Row.MissingCellPolicy.RETURN_BLANK_AS_NULL);
-					String value;
-					if (cell == null)
-					{
-						value = "";
-					}
-					else
-					{
-						value = formatter.formatCellValue (cell);
-					}
-					headerValues.add (value);
-				}
+				List <String> headerValues = reader.readRowTexts (sheetName, headerRowIndex);
 
 				if (!headerValues.isEmpty ())
 				{
@@ -504,13 +485,10 @@ public class Step4TypeInferencePage implements WizardPage
 				}
 
 			}
-			catch (IOException e)
+			catch (Exception e)
 			{
-				e.printStackTrace ();
-			}
-			catch (Exception ex)
-			{
-				ex.printStackTrace ();
+				// Inference goes on with the other sheets; the user is told once it is done
+				readFailures.add (file.getName () + " @ " + sheetName + ": " + e.getMessage ());
 			}
 		}
 
@@ -529,45 +507,68 @@ public class Step4TypeInferencePage implements WizardPage
 				continue;
 			}
 
-			try (FileInputStream fis = new FileInputStream (file); Workbook workbook = WorkbookFactory.create (fis))
+			try (SheetRowReader reader = SheetReaders.open (file, false))
 			{
 
-				Sheet sheet = workbook.getSheet (sheetName);
-				if (sheet == null)
+				if (!reader.getSheetNames ().contains (sheetName))
 				{
 					continue;
 				}
 
-				int lastRow = sheet.getLastRowNum ();
-				int maxRowToScan = Math.min (lastRow, dataStartIndex + MAX_ROWS_PER_SHEET - 1);
-
-				for (int r = dataStartIndex; r <= maxRowToScan; r++)
+				int maxRowToScan = dataStartIndex + MAX_ROWS_PER_SHEET - 1;
+				try (RowCursor cursor = reader.openSheet (sheetName, dataStartIndex))
 				{
-					Row row = sheet.getRow (r);
-					if (row == null)
+					while (cursor.next () && cursor.getRow ().getRowIndex () <= maxRowToScan)
 					{
-						continue;
-					}
-					short lastCellNum = row.getLastCellNum ();
-					if (lastCellNum > max)
-					{
-						max = lastCellNum;
+						max = Math.max (max, cursor.getRow ().getCellCount ());
 					}
 				}
 
 			}
-			catch (IOException e)
+			catch (Exception e)
 			{
-				e.printStackTrace ();
-			}
-			catch (Exception ex)
-			{
-				ex.printStackTrace ();
+				// Inference goes on with the other sheets; the user is told once it is done
+				readFailures.add (file.getName () + " @ " + sheetName + ": " + e.getMessage ());
 			}
 		}
 		return max;
 	}
 
+	/**
+	 * Reader for sampling one sheet; in EVALUATE mode the sampled rows are recalculated first
+	 * (except for XLSB files, which only have cached results, and workbooks too large to load, or
+	 * that cannot be loaded now because files being read hold the memory: those are streamed).
+	 * Never waits for memory (this runs on the UI thread).
+	 */
+	private SheetRowReader openReader (File file, String sheetName, int dataStartIndex) throws IOException
+	{
+		if (config.getFormulaMode () != FormulaMode.EVALUATE || !SheetReaders.canEvaluateFormulas (file) ||
+		    !SheetReaders.fitsInMemory (file))
+		{
+			return SheetReaders.open (file, false);
+		}
+		WorkbookSheetReader reader;
+		try
+		{
+			reader = SheetReaders.openWorkbook (file, false);
+		}
+		catch (MemoryBusyException e)
+		{
+			// Cached formula results are good enough for type inference
+			return SheetReaders.open (file, false);
+		}
+		try
+		{
+			reader.evaluateFormulas (List.of (sheetName), dataStartIndex, dataStartIndex + MAX_ROWS_PER_SHEET - 1);
+			return reader;
+		}
+		catch (RuntimeException e)
+		{
+			reader.close ();
+			throw e;
+		}
+	}
+
 	private List <String> generateGenericColumnNames (int count)
 	{
 		List <String> names = new ArrayList <> ();
@@ -611,19 +612,18 @@ public class Step4TypeInferencePage implements WizardPage
 		}
 	}
 
-	private ColumnType detectCellType (Cell cell, String formattedValue)
+	private ColumnType detectCellType (RowData row, int column, String formattedValue)
 	{
-		CellType ct = cell.getCellType ();
-
-		if (ct == CellType.NUMERIC)
+		// Formulas are typed by their cached (or pre-evaluated) result
+		if (row.getKind (column) == RowData.Kind.NUMERIC)
 		{
-			if (DateUtil.isCellDateFormatted (cell))
+			if (row.isDate (column))
 			{
 				return ColumnType.DATE;
 			}
 			// numeric but not date
 			// check if integer-ish
-			double d = cell.getNumericCellValue ();
+			double d = row.getNumber (column);
 			if (Math.floor (d) == d)
 			{
 				// integer number
@@ -636,13 +636,6 @@ public class Step4TypeInferencePage implements WizardPage
 			}
 		}
 
-		// For formulas, try evaluated type via formatted string heuristics
-		if (ct == CellType.FORMULA)
-		{
-			// We rely on formattedValue heuristics
-			return inferTypeFromFormattedString (formattedValue);
-		}
-
 		// Strings, booleans, etc. -> use formatted string
 		return inferTypeFromFormattedString (formattedValue);
 	}
@@ -674,7 +667,7 @@ public class Step4TypeInferencePage implements WizardPage
 		}
 
 		// Date-like detection is tricky via text; we leave it as TEXT in this branch.
-		// (Pure date cells are already handled via NUMERIC + DateUtil above.)
+		// (Pure date cells are already handled via NUMERIC + the date format check above.)
 		return ColumnType.TEXT;
 	}
 
@@ -798,6 +791,16 @@ public class Step4TypeInferencePage implements WizardPage
 	{
 		config.setColumns (new ArrayList <> (columns));
 		config.setColumnTypesByIndex (new HashMap <> (typeByIndex));
+
+		List <String> indexedColumns = new ArrayList <> ();
+		for (int i = 0; i < columns.size (); i++)
+		{
+			if (columnTable.getItem (i).getChecked ())
+			{
+				indexedColumns.add (columns.get (i).getName ());
+			}
+		}
+		config.setIndexedColumns (indexedColumns);
 		return true;
 	}
 
@@ -6,8 +6,9 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Properties;
 
 import org.eclipse.swt.SWT;
@@ -24,6 +25,10 @@ import org.eclipse.swt.widgets.MessageBox;
 import org.eclipse.swt.widgets.Text;
 
 import es.ipb.excelfusion.config.ImportConfiguration;
+import es.ipb.excelfusion.config.ImportConfiguration.InsertMode;
+import es.ipb.excelfusion.db.ConnectionPool;
+import es.ipb.excelfusion.db.DatabaseConnections;
+import es.ipb.excelfusion.db.DriverProfile;
 
 
 /**
@@ -41,6 +46,9 @@ public class Step5DatabaseConfigPage implements WizardPage
 		MARIADB, POSTGRESQL
 	}
 
+	/** Prefix of the driver property overrides in the DB config file (driver.useCompression=false). */
+	private static final String	DRIVER_PROPERTY_PREFIX = "driver.";
+
 	private Composite			control;
 
 	private Combo				dbTypeCombo;
@@ -50,6 +58,7 @@ public class Step5DatabaseConfigPage implements WizardPage
 	private Text				userText;
 	private Text				passwordText;
 	private Button				createDbIfMissingCheckbox;
+	private Button				fastLoadCheckbox;
 	private Button				testConnectionButton;
 	private Label				testResultLabel;
 
@@ -57,10 +66,21 @@ public class Step5DatabaseConfigPage implements WizardPage
 	private DbType				selectedDbType = DbType.MARIADB;
 
 	private ImportConfiguration	config;
+	private final ConnectionPool pool;
 
 	public Step5DatabaseConfigPage (ImportConfiguration config)
+	{
+		this (config, null);
+	}
+
+	/**
+	 * @param pool connections of the wizard session: the tested connection stays open for the
+	 *            import; null = the test opens and closes its own
+	 */
+	public Step5DatabaseConfigPage (ImportConfiguration config, ConnectionPool pool)
 	{
 		this.config = config;
+		this.pool = pool;
 	}
 
 	@Override
@@ -152,6 +172,17 @@ public class Step5DatabaseConfigPage implements WizardPage
 
 		createDbIfMissingCheckbox = new Button (group, SWT.CHECK);
 		createDbIfMissingCheckbox.setSelection (false);
+
+		// Fast load
+		Label fastLoadLabel = new Label (group, SWT.NONE);
+		fastLoadLabel.setText ("Fast load:");
+
+		fastLoadCheckbox = new Button (group, SWT.CHECK);
+		fastLoadCheckbox.setSelection (false);
+		fastLoadCheckbox.setToolTipText ("PostgreSQL: load into an UNLOGGED table and switch it to LOGGED before "
+		                                 + "committing, without waiting for the commit to reach disk.\n"
+		                                 + "MariaDB: load without unique and foreign key checks (and with keys "
+		                                 + "disabled where the engine allows it).");
 	}
 
 	private void createBottomSection (Composite parent)
@@ -224,6 +255,15 @@ public class Step5DatabaseConfigPage implements WizardPage
 		config.setDbUser (getUser ());
 		config.setDbPassword (getPassword ());
 		config.setCreateDbIfMissing (isCreateDbIfMissing ());
+		config.setFastLoad (isFastLoad ());
+
+		if (pool != null)
+		{
+			// Connect while the user reviews step 6 (a tested connection is already there)
+			String jdbcUrl = buildJdbcUrl (getDbType (), getHost (), String.valueOf (getPort ()), getDatabaseName ());
+			pool.configure (jdbcUrl, getUser (), getPassword (), driverProperties (getDbType ()));
+			pool.warmUp (1);
+		}
 
 		return true;
 	}
@@ -263,6 +303,37 @@ public class Step5DatabaseConfigPage implements WizardPage
 
 		if (props.getProperty ("createDbIfMissing") != null)
 		    createDbIfMissingCheckbox.setSelection (Boolean.parseBoolean (props.getProperty ("createDbIfMissing")));
+
+		if (props.getProperty ("fastLoad") != null)
+		    fastLoadCheckbox.setSelection (Boolean.parseBoolean (props.getProperty ("fastLoad")));
+
+		// Not on the page: edited in the file
+		String insertModeStr = props.getProperty ("insertMode");
+		for (InsertMode mode : InsertMode.values ())
+		{
+			if (mode.name ().equalsIgnoreCase (insertModeStr))
+			{
+				config.setInsertMode (mode);
+			}
+		}
+		config.setSkipBinaryLog (Boolean.parseBoolean (props.getProperty ("skipBinaryLog")));
+		String profileStr = props.getProperty ("driverProfile");
+		for (DriverProfile profile : DriverProfile.values ())
+		{
+			if (profile.name ().equalsIgnoreCase (profileStr))
+			{
+				config.setDriverProfile (profile);
+			}
+		}
+		Map <String, String> driverProperties = new LinkedHashMap <> ();
+		for (String name : props.stringPropertyNames ())
+		{
+			if (name.startsWith (DRIVER_PROPERTY_PREFIX))
+			{
+				driverProperties.put (name.substring (DRIVER_PROPERTY_PREFIX.length ()), props.getProperty (name).trim ());
+			}
+		}
+		config.setDriverProperties (driverProperties);
 	}
 
 	private void saveConfigToFile (File confFile)
@@ -276,6 +347,14 @@ public class Step5DatabaseConfigPage implements WizardPage
 		props.setProperty ("user", userText.getText ().trim ());
 		props.setProperty ("password", passwordText.getText ());
 		props.setProperty ("createDbIfMissing", String.valueOf (createDbIfMissingCheckbox.getSelection ()));
+		props.setProperty ("fastLoad", String.valueOf (fastLoadCheckbox.getSelection ()));
+		props.setProperty ("insertMode", config.getInsertMode ().name ());
+		props.setProperty ("skipBinaryLog", String.valueOf (config.isSkipBinaryLog ()));
+		props.setProperty ("driverProfile", config.getDriverProfile ().name ());
+		for (Map.Entry <String, String> entry : config.getDriverProperties ().entrySet ())
+		{
+			props.setProperty (DRIVER_PROPERTY_PREFIX + entry.getKey (), entry.getValue ());
+		}
 
 		try (FileOutputStream fos = new FileOutputStream (confFile))
 		{
@@ -409,7 +488,7 @@ public class Step5DatabaseConfigPage implements WizardPage
 			loadDriverClass (dbType);
 
 			// Try connecting directly to the DB
-			try (Connection conn = DriverManager.getConnection (jdbcUrl, user, password))
+			try (Connection conn = connectPooled (dbType, jdbcUrl, user, password))
 			{
 				testResultLabel.setText ("Connection successful.");
 				showInfo ("Connection test", "Successfully connected to the database.");
@@ -461,14 +540,34 @@ public class Step5DatabaseConfigPage implements WizardPage
 
 	private String buildJdbcUrl (DbType dbType, String host, String port, String dbName)
 	{
-		if (dbType == DbType.MARIADB)
-		{
-			return "jdbc:mariadb://" + host + ":" + port + "/" + dbName;
-		}
-		else
+		return DatabaseConnections.buildJdbcUrl (dbType, host, port, dbName);
+	}
+
+	/**
+	 * Connects with the driver properties the import will use, so the test also checks them.
+	 */
+	private Connection connect (DbType dbType, String jdbcUrl, String user, String password) throws SQLException
+	{
+		return DatabaseConnections.open (jdbcUrl, user, password, driverProperties (dbType));
+	}
+
+	/**
+	 * Connects through the session pool if there is one, so the import reuses the connection.
+	 */
+	private Connection connectPooled (DbType dbType, String jdbcUrl, String user, String password)
+	        throws SQLException
+	{
+		if (pool == null)
 		{
-			return "jdbc:postgresql://" + host + ":" + port + "/" + dbName;
+			return connect (dbType, jdbcUrl, user, password);
 		}
+		pool.configure (jdbcUrl, user, password, driverProperties (dbType));
+		return pool.getConnection ();
+	}
+
+	private Map <String, String> driverProperties (DbType dbType)
+	{
+		return DriverProfile.resolve (config.getDriverProfile (), dbType, config.getDriverProperties ());
 	}
 
 	/**
@@ -485,7 +584,7 @@ public class Step5DatabaseConfigPage implements WizardPage
 
 		String createStatement = "CREATE DATABASE " + dbName;
 
-		try (Connection adminConn = DriverManager.getConnection (adminUrl, user, password);
+		try (Connection adminConn = connect (dbType, adminUrl, user, password);
 		     java.sql.Statement stmt = adminConn.createStatement ())
 		{
 
@@ -493,7 +592,7 @@ public class Step5DatabaseConfigPage implements WizardPage
 
 			// Now test connection to the newly created DB:
 			String newDbUrl = buildJdbcUrl (dbType, host, port, dbName);
-			try (Connection conn = DriverManager.getConnection (newDbUrl, user, password))
+			try (Connection conn = connect (dbType, newDbUrl, user, password))
 			{
 				return true;
 			}
@@ -566,4 +665,9 @@ public class Step5DatabaseConfigPage implements WizardPage
 	{
 		return createDbIfMissingCheckbox.getSelection ();
 	}
+
+	public boolean isFastLoad ()
+	{
+		return fastLoadCheckbox.getSelection ();
+	}
 }
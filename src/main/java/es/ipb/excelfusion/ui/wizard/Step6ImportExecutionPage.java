@@ -16,8 +16,10 @@ import org.eclipse.swt.widgets.MessageBox;
 import org.eclipse.swt.widgets.Text;
 
 import es.ipb.excelfusion.config.ImportConfiguration;
+import es.ipb.excelfusion.db.ConnectionPool;
 import es.ipb.excelfusion.service.ImportExecutor;
 import es.ipb.excelfusion.service.ImportProgressListener;
+import es.ipb.excelfusion.service.RowSpool;
 
 
 /**
@@ -29,6 +31,8 @@ public class Step6ImportExecutionPage implements WizardPage
 {
 
 	private final ImportConfiguration config;
+	private final RowSpool			  spool;
+	private final ConnectionPool	  pool;
 
 	private Composite				  control;
 	private Text					  logText;
@@ -39,8 +43,19 @@ public class Step6ImportExecutionPage implements WizardPage
 	private volatile boolean		  importFinished = false;
 
 	public Step6ImportExecutionPage (ImportConfiguration config)
+	{
+		this (config, null, null);
+	}
+
+	/**
+	 * @param spool sheets pre-parsed since step 3; null = the import parses every sheet
+	 * @param pool connections of the wizard session (the one tested in step 5); null = new ones
+	 */
+	public Step6ImportExecutionPage (ImportConfiguration config, RowSpool spool, ConnectionPool pool)
 	{
 		this.config = config;
+		this.spool = spool;
+		this.pool = pool;
 	}
 
 	@Override
@@ -166,7 +181,7 @@ public class Step6ImportExecutionPage implements WizardPage
 		Thread t = new Thread ( () -> {
 			try
 			{
-				ImportExecutor executor = new ImportExecutor (config, listener);
+				ImportExecutor executor = new ImportExecutor (config, listener, spool, pool);
 				executor.execute ();
 			}
 			catch (Exception e)
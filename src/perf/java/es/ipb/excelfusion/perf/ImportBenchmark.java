@@ -0,0 +1,477 @@
+package es.ipb.excelfusion.perf;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+
+import es.ipb.excelfusion.config.ImportConfiguration;
+import es.ipb.excelfusion.service.ImportExecutor;
+import es.ipb.excelfusion.service.ImportMetrics;
+import es.ipb.excelfusion.service.ImportProgressListener;
+import es.ipb.excelfusion.ui.wizard.Step3StructureValidationPage.SheetValidationResult;
+import es.ipb.excelfusion.ui.wizard.Step4TypeInferencePage.ColumnDefinition;
+import es.ipb.excelfusion.ui.wizard.Step4TypeInferencePage.ColumnType;
+import es.ipb.excelfusion.ui.wizard.Step5DatabaseConfigPage.DbType;
+
+
+/**
+ * End-to-end performance regression suite.
+ *
+ * Generates workbooks, runs ImportExecutor against an embedded H2 database in PostgreSQL
+ * compatibility mode and records rows/sec and peak heap per scenario, plus the parse-only rate
+ * of each sheet reader (ReaderBenchmark). Results are compared
+ * with a stored baseline; the process exits with code 1 when a scenario regresses past the
+ * configured thresholds. The baseline records the --scale it was measured at, and runs at another
+ * scale are not compared with it (rates and heap peaks do not scale linearly with the row count).
+ *
+ * Usage (normally through "mvn -Pperf verify"):
+ * ImportBenchmark [--baseline file] [--results file] [--work-dir dir] [--scale n]
+ * [--iterations n] [--throughput-threshold pct] [--heap-threshold pct] [--update-baseline]
+ */
+public class ImportBenchmark
+{
+
+	private static final String	H2_URL_TEMPLATE	= "jdbc:h2:mem:%s;MODE=PostgreSQL;DATABASE_TO_LOWER=TRUE";
+
+	/** Result and baseline key of the --scale of the run (a baseline without it was run at 1). */
+	private static final String	SCALE_KEY		= "scale";
+
+	private File				baselineFile	= new File ("perf/baseline.properties");
+	private File				resultsFile		= new File ("target/perf/results.properties");
+	private File				workDir			= new File ("target/perf/workbooks");
+	private double				scale			= 1.0;
+	private int					iterations		= 3;
+	private double				throughputThreshold = 0.20;
+	private double				heapThreshold	= 0.25;
+	private boolean				updateBaseline	= false;
+
+	public static void main (String[] args)
+	{
+		ImportBenchmark benchmark = new ImportBenchmark ();
+		try
+		{
+			benchmark.parseArguments (args);
+			int exitCode = benchmark.run ();
+			System.exit (exitCode);
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace ();
+			System.exit (2);
+		}
+	}
+
+	private void parseArguments (String[] args)
+	{
+		for (int i = 0; i < args.length; i++)
+		{
+			String arg = args[i];
+			switch (arg)
+			{
+				case "--baseline":
+					baselineFile = new File (args[++i]);
+					break;
+				case "--results":
+					resultsFile = new File (args[++i]);
+					break;
+				case "--work-dir":
+					workDir = new File (args[++i]);
+					break;
+				case "--scale":
+					scale = Double.parseDouble (args[++i]);
+					break;
+				case "--iterations":
+					iterations = Math.max (1, Integer.parseInt (args[++i]));
+					break;
+				case "--throughput-threshold":
+					throughputThreshold = Double.parseDouble (args[++i]) / 100.0;
+					break;
+				case "--heap-threshold":
+					heapThreshold = Double.parseDouble (args[++i]) / 100.0;
+					break;
+				case "--update-baseline":
+					updateBaseline = true;
+					break;
+				default:
+					throw new IllegalArgumentException ("Unknown argument: " + arg);
+			}
+		}
+	}
+
+	private int run () throws Exception
+	{
+		Files.createDirectories (workDir.toPath ());
+
+		List <Scenario> scenarios = createScenarios ();
+		Properties results = new Properties ();
+		results.setProperty (SCALE_KEY, Double.toString (scale));
+
+		for (Scenario scenario : scenarios)
+		{
+			File workbook = new File (workDir, scenario.name + (scenario.csv? ".csv" : ".xlsx"));
+			System.out.println ("[perf] Generating " + workbook.getName () + " (" + scenario.describe () + ")");
+			if (scenario.csv)
+			{
+				WorkbookGenerator.generateCsv (workbook, scenario.rowsPerSheet, scenario.columns, scenario.blankRatio);
+			}
+			else
+			{
+				WorkbookGenerator.generate (workbook, scenario.sheets, scenario.rowsPerSheet, scenario.columns,
+				                            scenario.blankRatio, scenario.phantomRows);
+			}
+
+			// Warm-up run: lets the JIT compile the hot loops before measuring
+			runScenario (scenario, workbook, 0);
+
+			double[] rowsPerSecond = new double[iterations];
+			long peakHeap = 0;
+			for (int i = 0; i < iterations; i++)
+			{
+				ScenarioResult r = runScenario (scenario, workbook, i + 1);
+				rowsPerSecond[i] = r.rowsPerSecond;
+				peakHeap = Math.max (peakHeap, r.peakHeapBytes);
+			}
+
+			Arrays.sort (rowsPerSecond);
+			double median = rowsPerSecond[rowsPerSecond.length / 2];
+			double peakHeapMb = peakHeap / (1024.0 * 1024.0);
+
+			System.out.println (String.format (Locale.ROOT, "[perf] %-18s %12.0f rows/s  %8.1f MB peak heap",
+			                                   scenario.name, median, peakHeapMb));
+
+			results.setProperty (scenario.name + ".rowsPerSecond", String.format (Locale.ROOT, "%.0f", median));
+			results.setProperty (scenario.name + ".peakHeapMb", String.format (Locale.ROOT, "%.1f", peakHeapMb));
+
+			// Parse-only comparison of the sheet readers; informational, not checked against the baseline
+			if (scenario.csv)
+			{
+				double csvRate = ReaderBenchmark.measureCsv (workbook, iterations);
+				System.out.println (String.format (Locale.ROOT, "[perf] %-18s parse only: CSV %.0f rows/s", scenario.name,
+				                                   csvRate));
+				results.setProperty (scenario.name + ".csvRowsPerSecond", String.format (Locale.ROOT, "%.0f", csvRate));
+				continue;
+			}
+			ReaderBenchmark.Result readers = ReaderBenchmark.measure (workbook, iterations);
+			System.out.println (String.format (Locale.ROOT,
+			                                   "[perf] %-18s parse only: scanner %.0f, StAX %.0f, POI events %.0f rows/s",
+			                                   scenario.name, readers.scanner, readers.stax, readers.poiEvents));
+			results.setProperty (scenario.name + ".scannerRowsPerSecond", String.format (Locale.ROOT, "%.0f", readers.scanner));
+			results.setProperty (scenario.name + ".staxRowsPerSecond", String.format (Locale.ROOT, "%.0f", readers.stax));
+			results.setProperty (scenario.name + ".poiEventsRowsPerSecond",
+			                     String.format (Locale.ROOT, "%.0f", readers.poiEvents));
+		}
+
+		store (results, resultsFile, "ExcelFusion - performance results");
+
+		if (updateBaseline)
+		{
+			store (results, baselineFile, "ExcelFusion - performance baseline");
+			System.out.println ("[perf] Baseline updated: " + baselineFile.getPath ());
+			return 0;
+		}
+
+		return compareWithBaseline (scenarios, results);
+	}
+
+	private List <Scenario> createScenarios ()
+	{
+		List <Scenario> scenarios = new ArrayList <> ();
+		scenarios.add (new Scenario ("narrow", 1, scaled (100_000), 6, 0.0, 0, false));
+		scenarios.add (new Scenario ("wide", 1, scaled (20_000), 40, 0.0, 0, false));
+		scenarios.add (new Scenario ("multi-sheet", 4, scaled (25_000), 8, 0.0, 0, false));
+		scenarios.add (new Scenario ("sparse-fill-down", 1, scaled (50_000), 6, 0.5, 0, false));
+		scenarios.add (new Scenario ("phantom-extent", 1, scaled (20_000), 6, 0.0, scaled (100_000), false));
+		scenarios.add (new Scenario ("narrow-csv", 1, scaled (100_000), 6, 0.0, 0, true));
+		return scenarios;
+	}
+
+	private int scaled (int rows)
+	{
+		return Math.max (100, (int) (rows * scale));
+	}
+
+	private ScenarioResult runScenario (Scenario scenario, File workbook, int iteration) throws Exception
+	{
+		String dbName = "bench_" + scenario.name.replace ('-', '_') + "_" + iteration;
+		String url = String.format (Locale.ROOT, H2_URL_TEMPLATE, dbName);
+
+		ImportConfiguration config = createConfiguration (scenario, workbook);
+
+		// Keeps the in-memory database alive after the executor closes its own connection
+		try (Connection keeper = DriverManager.getConnection (url, "sa", ""))
+		{
+			System.gc ();
+			resetHeapPeaks ();
+
+			ImportExecutor executor = new ImportExecutor (config, new SilentListener (),
+			                                              () -> DriverManager.getConnection (url, "sa", ""));
+			executor.execute ();
+
+			long peakHeap = currentHeapPeak ();
+			ImportMetrics metrics = executor.getMetrics ();
+
+			long expectedRows = (long) scenario.sheets * scenario.rowsPerSheet;
+			long tableRows = countRows (keeper, config.getTableName ());
+			if (metrics.getTotalRows () != expectedRows || tableRows != expectedRows)
+			{
+				throw new IllegalStateException ("Scenario " + scenario.name + " imported " + tableRows +
+				                                 " rows, expected " + expectedRows);
+			}
+
+			try (Statement st = keeper.createStatement ())
+			{
+				st.execute ("SHUTDOWN");
+			}
+
+			return new ScenarioResult (metrics.getRowsPerSecond (), peakHeap);
+		}
+	}
+
+	private ImportConfiguration createConfiguration (Scenario scenario, File workbook)
+	{
+		ImportConfiguration config = new ImportConfiguration ();
+		config.setDataDirectory (workbook.getParentFile ());
+		config.setSelectedFiles (new ArrayList <> (List.of (workbook)));
+		config.setHeaderRow (1);
+		config.setDataStartRow (2);
+		config.setAutoIncrement (true);
+		config.setTableName ("perf_" + scenario.name.replace ('-', '_'));
+
+		List <ColumnDefinition> columns = new ArrayList <> ();
+		List <Boolean> fillEmpty = new ArrayList <> ();
+		for (int c = 0; c < scenario.columns; c++)
+		{
+			columns.add (new ColumnDefinition (c, WorkbookGenerator.headerName (c), WorkbookGenerator.columnType (c),
+			                                   ""));
+			fillEmpty.add (scenario.blankRatio > 0 && WorkbookGenerator.columnType (c) != ColumnType.TEXT);
+		}
+		config.setColumns (columns);
+		config.setFillEmptyColumns (fillEmpty);
+
+		List <SheetValidationResult> sheets = new ArrayList <> ();
+		for (int s = 0; s < scenario.sheets; s++)
+		{
+			// A CSV file is one sheet named after the file
+			String sheetName = scenario.csv? scenario.name : WorkbookGenerator.sheetName (s);
+			SheetValidationResult svr = new SheetValidationResult (workbook, sheetName);
+			svr.setMatches (true);
+			svr.setStatusMessage ("OK");
+			sheets.add (svr);
+		}
+		config.setSheetsToImport (sheets);
+
+		// The embedded database is reached through the connection provider; these only satisfy validation
+		config.setDbType (DbType.POSTGRESQL);
+		config.setDbHost ("embedded");
+		config.setDbPort (1);
+		config.setDbName ("bench");
+		config.setDbUser ("sa");
+		config.setDbPassword ("");
+		return config;
+	}
+
+	private long countRows (Connection conn, String tableName) throws SQLException
+	{
+		try (Statement st = conn.createStatement (); ResultSet rs = st.executeQuery ("SELECT COUNT(*) FROM " + tableName))
+		{
+			rs.next ();
+			return rs.getLong (1);
+		}
+	}
+
+	private int compareWithBaseline (List <Scenario> scenarios, Properties results) throws IOException
+	{
+		if (!baselineFile.exists ())
+		{
+			System.out.println ("[perf] No baseline at " + baselineFile.getPath () +
+			                    "; run with --update-baseline to create one.");
+			return 0;
+		}
+
+		Properties baseline = new Properties ();
+		try (FileInputStream fis = new FileInputStream (baselineFile))
+		{
+			baseline.load (fis);
+		}
+
+		double baseScale = Double.parseDouble (baseline.getProperty (SCALE_KEY, "1"));
+		if (baseScale != scale)
+		{
+			System.out.println (String.format (Locale.ROOT,
+			                                   "[perf] Baseline recorded at scale %s, this run at scale %s; not compared "
+			                                   + "(run with --update-baseline to record one at this scale).",
+			                                   baseScale, scale));
+			return 0;
+		}
+
+		boolean regression = false;
+		for (Scenario scenario : scenarios)
+		{
+			String rateKey = scenario.name + ".rowsPerSecond";
+			String heapKey = scenario.name + ".peakHeapMb";
+			if (baseline.getProperty (rateKey) == null || baseline.getProperty (heapKey) == null)
+			{
+				System.out.println ("[perf] " + scenario.name + ": no baseline entry, skipped.");
+				continue;
+			}
+
+			double baseRate = Double.parseDouble (baseline.getProperty (rateKey));
+			double baseHeap = Double.parseDouble (baseline.getProperty (heapKey));
+			double rate = Double.parseDouble (results.getProperty (rateKey));
+			double heap = Double.parseDouble (results.getProperty (heapKey));
+
+			if (rate < baseRate * (1.0 - throughputThreshold))
+			{
+				regression = true;
+				System.out.println (String.format (Locale.ROOT,
+				                                   "[perf] REGRESSION %s: %.0f rows/s vs baseline %.0f (-%.1f%%)",
+				                                   scenario.name, rate, baseRate, 100.0 * (1.0 - rate / baseRate)));
+			}
+			if (heap > baseHeap * (1.0 + heapThreshold))
+			{
+				regression = true;
+				System.out.println (String.format (Locale.ROOT,
+				                                   "[perf] REGRESSION %s: %.1f MB peak heap vs baseline %.1f (+%.1f%%)",
+				                                   scenario.name, heap, baseHeap, 100.0 * (heap / baseHeap - 1.0)));
+			}
+		}
+
+		if (regression)
+		{
+			System.out.println ("[perf] Performance regression detected.");
+			return 1;
+		}
+		System.out.println ("[perf] All scenarios within thresholds.");
+		return 0;
+	}
+
+	private void store (Properties props, File file, String comment) throws IOException
+	{
+		File parent = file.getAbsoluteFile ().getParentFile ();
+		if (parent != null)
+		{
+			Files.createDirectories (parent.toPath ());
+		}
+		try (FileOutputStream fos = new FileOutputStream (file))
+		{
+			props.store (fos, comment);
+		}
+	}
+
+	// === Heap measurement ===
+
+	private static void resetHeapPeaks ()
+	{
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans ())
+		{
+			if (pool.getType () == MemoryType.HEAP)
+			{
+				pool.resetPeakUsage ();
+			}
+		}
+	}
+
+	private static long currentHeapPeak ()
+	{
+		long total = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans ())
+		{
+			if (pool.getType () == MemoryType.HEAP)
+			{
+				total += pool.getPeakUsage ().getUsed ();
+			}
+		}
+		return total;
+	}
+
+	// === Helper types ===
+
+	private static class Scenario
+	{
+		final String  name;
+		final int	  sheets;
+		final int	  rowsPerSheet;
+		final int	  columns;
+		final double  blankRatio;
+		final int	  phantomRows;
+		final boolean csv;
+
+		Scenario (String name, int sheets, int rowsPerSheet, int columns, double blankRatio, int phantomRows,
+		          boolean csv)
+		{
+			this.name = name;
+			this.sheets = sheets;
+			this.rowsPerSheet = rowsPerSheet;
+			this.columns = columns;
+			this.blankRatio = blankRatio;
+			this.phantomRows = phantomRows;
+			this.csv = csv;
+		}
+
+		String describe ()
+		{
+			return sheets + " sheet(s) x " + rowsPerSheet + " rows x " + columns + " columns" +
+			       (blankRatio > 0? ", " + (int) (blankRatio * 100) + "% blanks" : "") +
+			       (phantomRows > 0? ", " + phantomRows + " styled empty rows" : "") + (csv? ", CSV" : "");
+		}
+	}
+
+	private static class ScenarioResult
+	{
+		final double rowsPerSecond;
+		final long	 peakHeapBytes;
+
+		ScenarioResult (double rowsPerSecond, long peakHeapBytes)
+		{
+			this.rowsPerSecond = rowsPerSecond;
+			this.peakHeapBytes = peakHeapBytes;
+		}
+	}
+
+	private static class SilentListener implements ImportProgressListener
+	{
+		@Override
+		public void onLog (String message)
+		{
+			// benchmark output only reports the summary
+		}
+
+		@Override
+		public void onSheetStarted (int fileIndex, int totalFiles, int sheetIndex, int totalSheets, File file,
+		                            String sheetName)
+		{
+		}
+
+		@Override
+		public void onSheetCompleted (int fileIndex, int totalFiles, int sheetIndex, int totalSheets, File file,
+		                              String sheetName)
+		{
+		}
+
+		@Override
+		public void onCompleted ()
+		{
+		}
+
+		@Override
+		public void onError (Exception e)
+		{
+			System.err.println ("[perf] Import failed: " + e.getMessage ());
+		}
+	}
+}
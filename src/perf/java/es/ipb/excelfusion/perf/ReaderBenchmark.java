@@ -0,0 +1,194 @@
+package es.ipb.excelfusion.perf;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Locale;
+
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.util.XMLHelper;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler;
+import org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler.SheetContentsHandler;
+import org.apache.poi.xssf.usermodel.XSSFComment;
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
+
+import es.ipb.excelfusion.excel.CsvSheetReader;
+import es.ipb.excelfusion.excel.RowCursor;
+import es.ipb.excelfusion.excel.RowData;
+import es.ipb.excelfusion.excel.SharedStringStore;
+import es.ipb.excelfusion.excel.XlsxStreamingReader;
+
+
+/**
+ * Parse-only throughput of the sheet readers: every row of every sheet is read and every cell
+ * formatted, without touching a database. Compares SheetXmlScanner and the StAX cursor of
+ * XlsxStreamingReader with POI's event API (XSSFSheetXMLHandler), which formats cells the same
+ * way. CSV files are measured on their own (CsvSheetReader).
+ */
+final class ReaderBenchmark
+{
+
+	/** Median rows/s of the three readers over one workbook. */
+	static final class Result
+	{
+		final double scanner;
+		final double stax;
+		final double poiEvents;
+
+		Result (double scanner, double stax, double poiEvents)
+		{
+			this.scanner = scanner;
+			this.stax = stax;
+			this.poiEvents = poiEvents;
+		}
+	}
+
+	private ReaderBenchmark ()
+	{
+	}
+
+	static Result measure (File workbook, int iterations) throws Exception
+	{
+		// Warm-up pass for each reader
+		readStreaming (workbook, XlsxStreamingReader.Parser.SCANNER);
+		readStreaming (workbook, XlsxStreamingReader.Parser.STAX);
+		readPoiEvents (workbook);
+
+		double[] scanner = new double[iterations];
+		double[] stax = new double[iterations];
+		double[] poiEvents = new double[iterations];
+		for (int i = 0; i < iterations; i++)
+		{
+			scanner[i] = readStreaming (workbook, XlsxStreamingReader.Parser.SCANNER);
+			stax[i] = readStreaming (workbook, XlsxStreamingReader.Parser.STAX);
+			poiEvents[i] = readPoiEvents (workbook);
+		}
+		return new Result (median (scanner), median (stax), median (poiEvents));
+	}
+
+	/** Median rows/s of CsvSheetReader over a CSV file. */
+	static double measureCsv (File csv, int iterations) throws Exception
+	{
+		readCsv (csv);
+		double[] rates = new double[iterations];
+		for (int i = 0; i < iterations; i++)
+		{
+			rates[i] = readCsv (csv);
+		}
+		return median (rates);
+	}
+
+	private static double readCsv (File csv) throws Exception
+	{
+		long start = System.nanoTime ();
+		long rows = 0;
+		try (CsvSheetReader reader = new CsvSheetReader (csv);
+		     RowCursor cursor = reader.openSheet (reader.getSheetNames ().get (0), 0))
+		{
+			while (cursor.next ())
+			{
+				RowData row = cursor.getRow ();
+				for (int c = 0; c < row.getCellCount (); c++)
+				{
+					row.getText (c);
+				}
+				rows++;
+			}
+		}
+		return rate (rows, start);
+	}
+
+	private static double readStreaming (File workbook, XlsxStreamingReader.Parser parser) throws Exception
+	{
+		long start = System.nanoTime ();
+		long rows = 0;
+		try (XlsxStreamingReader reader = new XlsxStreamingReader (workbook, SharedStringStore.DEFAULT_SPILL_THRESHOLD))
+		{
+			reader.setParser (parser);
+			for (String sheetName : reader.getSheetNames ())
+			{
+				try (RowCursor cursor = reader.openSheet (sheetName, 0))
+				{
+					while (cursor.next ())
+					{
+						RowData row = cursor.getRow ();
+						for (int c = 0; c < row.getCellCount (); c++)
+						{
+							row.getText (c);
+						}
+						rows++;
+					}
+				}
+			}
+		}
+		return rate (rows, start);
+	}
+
+	private static double readPoiEvents (File workbook) throws Exception
+	{
+		long start = System.nanoTime ();
+		RowCounter counter = new RowCounter ();
+		OPCPackage pkg = OPCPackage.open (workbook, PackageAccess.READ);
+		try
+		{
+			XSSFReader reader = new XSSFReader (pkg);
+			ReadOnlySharedStringsTable strings = new ReadOnlySharedStringsTable (pkg);
+			DataFormatter formatter = new DataFormatter (Locale.getDefault ());
+			XSSFReader.SheetIterator sheets = (XSSFReader.SheetIterator) reader.getSheetsData ();
+			while (sheets.hasNext ())
+			{
+				try (InputStream in = sheets.next ())
+				{
+					XMLReader parser = XMLHelper.newXMLReader ();
+					parser.setContentHandler (new XSSFSheetXMLHandler (reader.getStylesTable (), null, strings, counter,
+					                                                   formatter, false));
+					parser.parse (new InputSource (in));
+				}
+			}
+		}
+		finally
+		{
+			pkg.revert ();
+		}
+		return rate (counter.rows, start);
+	}
+
+	private static double rate (long rows, long start)
+	{
+		double seconds = (System.nanoTime () - start) / 1e9;
+		return rows / Math.max (seconds, 1e-9);
+	}
+
+	private static double median (double[] values)
+	{
+		double[] sorted = values.clone ();
+		Arrays.sort (sorted);
+		return sorted[sorted.length / 2];
+	}
+
+	private static final class RowCounter implements SheetContentsHandler
+	{
+		long rows;
+
+		@Override
+		public void startRow (int rowNum)
+		{
+		}
+
+		@Override
+		public void endRow (int rowNum)
+		{
+			rows++;
+		}
+
+		@Override
+		public void cell (String cellReference, String formattedValue, XSSFComment comment)
+		{
+		}
+	}
+}
@@ -0,0 +1,185 @@
+package es.ipb.excelfusion.perf;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.DataFormat;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+
+import es.ipb.excelfusion.ui.wizard.Step4TypeInferencePage.ColumnType;
+
+
+/**
+ * Writes deterministic XLSX workbooks for the performance suite, and CSV files holding the same
+ * values as displayed text. Columns cycle through TEXT, INTEGER, CURRENCY and DATE so every
+ * formatting path is exercised; row 1 holds the header and data starts at row 2. Optional "phantom" rows after the data only
+ * hold styled blank cells, one of them far to the right, like sheets whose whole columns were
+ * formatted once.
+ */
+final class WorkbookGenerator
+{
+
+	private static final int			   DATE_SERIAL_BASE = 44927; // 2023-01-01
+	private static final LocalDate		   DATE_BASE		= LocalDate.of (2023, 1, 1);
+	private static final DateTimeFormatter DATE_FORMAT		= DateTimeFormatter.ofPattern ("dd/MM/yyyy");
+	private static final int			   WINDOW_SIZE		= 1000;
+	private static final int			   PHANTOM_COLUMN	= 1000;
+
+	private static final ColumnType[] TYPE_CYCLE  = {ColumnType.TEXT, ColumnType.INTEGER, ColumnType.CURRENCY,
+	                                                 ColumnType.DATE };
+
+	private WorkbookGenerator ()
+	{
+	}
+
+	static String sheetName (int index)
+	{
+		return "Sheet" + (index + 1);
+	}
+
+	static String headerName (int column)
+	{
+		return "Column " + (column + 1);
+	}
+
+	static ColumnType columnType (int column)
+	{
+		return TYPE_CYCLE[column % TYPE_CYCLE.length];
+	}
+
+	static void generate (File target, int sheets, int rowsPerSheet, int columns, double blankRatio,
+	                      int phantomRows) throws IOException
+	{
+		SXSSFWorkbook workbook = new SXSSFWorkbook (null, WINDOW_SIZE, true, true);
+		try (FileOutputStream fos = new FileOutputStream (target))
+		{
+			DataFormat dataFormat = workbook.createDataFormat ();
+			CellStyle currencyStyle = workbook.createCellStyle ();
+			currencyStyle.setDataFormat (dataFormat.getFormat ("#,##0.00"));
+			CellStyle dateStyle = workbook.createCellStyle ();
+			dateStyle.setDataFormat (dataFormat.getFormat ("dd/mm/yyyy"));
+			CellStyle phantomStyle = workbook.createCellStyle ();
+			phantomStyle.setDataFormat (dataFormat.getFormat ("@"));
+
+			int blankPercent = (int) Math.round (blankRatio * 100);
+
+			for (int s = 0; s < sheets; s++)
+			{
+				Sheet sheet = workbook.createSheet (sheetName (s));
+
+				Row header = sheet.createRow (0);
+				for (int c = 0; c < columns; c++)
+				{
+					header.createCell (c).setCellValue (headerName (c));
+				}
+
+				for (int r = 1; r <= rowsPerSheet; r++)
+				{
+					Row row = sheet.createRow (r);
+					for (int c = 0; c < columns; c++)
+					{
+						ColumnType type = columnType (c);
+						boolean blank = r > 1 && type != ColumnType.TEXT && ((r * 31 + c * 17) % 100) < blankPercent;
+						if (blank)
+						{
+							continue;
+						}
+
+						Cell cell = row.createCell (c);
+						switch (type)
+						{
+							case TEXT:
+								cell.setCellValue ("Customer " + ((r + c) % 500));
+								break;
+							case INTEGER:
+								cell.setCellValue ((double) (r * 7L + c));
+								break;
+							case CURRENCY:
+								cell.setCellValue ((r % 10_000) / 100.0 + c);
+								cell.setCellStyle (currencyStyle);
+								break;
+							case DATE:
+								cell.setCellValue (DATE_SERIAL_BASE + (r % 365));
+								cell.setCellStyle (dateStyle);
+								break;
+						}
+					}
+				}
+
+				for (int r = rowsPerSheet + 1; r <= rowsPerSheet + phantomRows; r++)
+				{
+					Row row = sheet.createRow (r);
+					row.createCell (0).setCellStyle (phantomStyle);
+					row.createCell (PHANTOM_COLUMN).setCellStyle (phantomStyle);
+				}
+			}
+
+			workbook.write (fos);
+		}
+		finally
+		{
+			workbook.close ();
+		}
+	}
+
+	/**
+	 * Same rows as one sheet of generate, as comma-separated text: numbers and dates are written
+	 * the way the workbook displays them.
+	 */
+	static void generateCsv (File target, int rows, int columns, double blankRatio) throws IOException
+	{
+		int blankPercent = (int) Math.round (blankRatio * 100);
+		try (Writer out = Files.newBufferedWriter (target.toPath (), StandardCharsets.UTF_8))
+		{
+			for (int c = 0; c < columns; c++)
+			{
+				out.write ((c > 0? "," : "") + headerName (c));
+			}
+			out.write ("\r\n");
+
+			for (int r = 1; r <= rows; r++)
+			{
+				for (int c = 0; c < columns; c++)
+				{
+					if (c > 0)
+					{
+						out.write (',');
+					}
+					ColumnType type = columnType (c);
+					boolean blank = r > 1 && type != ColumnType.TEXT && ((r * 31 + c * 17) % 100) < blankPercent;
+					if (blank)
+					{
+						continue;
+					}
+					switch (type)
+					{
+						case TEXT:
+							out.write ("Customer " + ((r + c) % 500));
+							break;
+						case INTEGER:
+							out.write (Long.toString (r * 7L + c));
+							break;
+						case CURRENCY:
+							out.write (String.format (Locale.ROOT, "%.2f", (r % 10_000) / 100.0 + c));
+							break;
+						case DATE:
+							out.write (DATE_BASE.plusDays (r % 365).format (DATE_FORMAT));
+							break;
+					}
+				}
+				out.write ("\r\n");
+			}
+		}
+	}
+}
@@ -0,0 +1,45 @@
+package es.ipb.excelfusion.excel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+import java.time.Duration;
+
+import org.junit.jupiter.api.Test;
+
+
+class MemoryGovernorTest
+{
+
+	@Test
+	void tryReserveNeverWaits ()
+	{
+		MemoryGovernor governor = new MemoryGovernor (100);
+		MemoryGovernor.Reservation first = governor.tryReserve (80);
+		assertNotNull (first);
+
+		assertTimeoutPreemptively (Duration.ofSeconds (1), () -> assertNull (governor.tryReserve (30)));
+		assertEquals (80, governor.getReserved ());
+
+		first.close ();
+		try (MemoryGovernor.Reservation second = governor.tryReserve (30))
+		{
+			assertNotNull (second);
+			assertEquals (30, governor.getReserved ());
+		}
+		assertEquals (0, governor.getReserved ());
+	}
+
+	@Test
+	void tryReserveAdmitsTheFirstReaderAlone ()
+	{
+		MemoryGovernor governor = new MemoryGovernor (100);
+		try (MemoryGovernor.Reservation large = governor.tryReserve (500))
+		{
+			assertNotNull (large);
+			assertEquals (100, governor.getReserved ());
+		}
+	}
+}
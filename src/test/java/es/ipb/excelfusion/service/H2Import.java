@@ -0,0 +1,142 @@
+package es.ipb.excelfusion.service;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import es.ipb.excelfusion.config.ImportConfiguration;
+import es.ipb.excelfusion.db.ConnectionProvider;
+import es.ipb.excelfusion.ui.wizard.Step3StructureValidationPage.SheetValidationResult;
+import es.ipb.excelfusion.ui.wizard.Step4TypeInferencePage.ColumnDefinition;
+import es.ipb.excelfusion.ui.wizard.Step4TypeInferencePage.ColumnType;
+import es.ipb.excelfusion.ui.wizard.Step5DatabaseConfigPage.DbType;
+
+
+/**
+ * Imports into an in-memory H2 database in PostgreSQL mode, for the tests of the import.
+ */
+final class H2Import
+{
+
+	private static final AtomicInteger DATABASES = new AtomicInteger ();
+
+	/** URL of a new in-memory database, kept until the JVM exits. */
+	static String newDatabase ()
+	{
+		return "jdbc:h2:mem:import" + DATABASES.incrementAndGet () + ";MODE=PostgreSQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1";
+	}
+
+	/**
+	 * Configuration importing sheet "Sheet1" of file into table "t": header in row 1, data from row
+	 * 2, one TEXT column per name, fill-down where fillDown is true.
+	 */
+	static ImportConfiguration config (File file, File dataDirectory, String[] names, boolean[] fillDown)
+	{
+		ImportConfiguration config = new ImportConfiguration ();
+		config.setDataDirectory (dataDirectory);
+		config.setSelectedFiles (new ArrayList <> (List.of (file)));
+		config.setHeaderRow (1);
+		config.setDataStartRow (2);
+		config.setAutoIncrement (true);
+		config.setTableName ("t");
+
+		List <ColumnDefinition> columns = new ArrayList <> ();
+		List <Boolean> fill = new ArrayList <> ();
+		for (int i = 0; i < names.length; i++)
+		{
+			columns.add (new ColumnDefinition (i, names[i], ColumnType.TEXT, ""));
+			fill.add (fillDown[i]);
+		}
+		config.setColumns (columns);
+		config.setFillEmptyColumns (fill);
+
+		List <SheetValidationResult> sheets = new ArrayList <> ();
+		SheetValidationResult sheet = new SheetValidationResult (file, "Sheet1");
+		sheet.setMatches (true);
+		sheets.add (sheet);
+		config.setSheetsToImport (sheets);
+
+		config.setDbType (DbType.POSTGRESQL);
+		config.setDbHost ("localhost");
+		config.setDbPort (5432);
+		config.setDbName ("test");
+		config.setDbUser ("sa");
+		config.setDbPassword ("");
+		return config;
+	}
+
+	/** Runs the import and returns the executor (for its metrics). */
+	static ImportExecutor run (ImportConfiguration config, ConnectionProvider connections) throws Exception
+	{
+		ImportExecutor executor = new ImportExecutor (config, listener (), connections);
+		executor.execute ();
+		return executor;
+	}
+
+	/** Listener that ignores the progress of the import. */
+	static ImportProgressListener listener ()
+	{
+		return new ImportProgressListener ()
+		{
+			@Override
+			public void onLog (String message)
+			{
+			}
+
+			@Override
+			public void onSheetStarted (int fileIndex, int totalFiles, int sheetIndex, int totalSheets, File file,
+			                            String sheetName)
+			{
+			}
+
+			@Override
+			public void onSheetCompleted (int fileIndex, int totalFiles, int sheetIndex, int totalSheets, File file,
+			                              String sheetName)
+			{
+			}
+
+			@Override
+			public void onCompleted ()
+			{
+			}
+
+			@Override
+			public void onError (Exception e)
+			{
+			}
+		};
+	}
+
+	static ConnectionProvider connections (String url)
+	{
+		return () -> DriverManager.getConnection (url, "sa", "");
+	}
+
+	/** Rows of table t in id order, each as its column values after the id. */
+	static List <List <String>> rows (String url) throws SQLException
+	{
+		List <List <String>> rows = new ArrayList <> ();
+		try (Connection conn = DriverManager.getConnection (url, "sa", "");
+		     Statement st = conn.createStatement ();
+		     ResultSet rs = st.executeQuery ("SELECT * FROM t ORDER BY id"))
+		{
+			int columns = rs.getMetaData ().getColumnCount ();
+			while (rs.next ())
+			{
+				List <String> row = new ArrayList <> ();
+				for (int c = 2; c <= columns; c++)
+				{
+					row.add (rs.getString (c));
+				}
+				rows.add (row);
+			}
+		}
+		return rows;
+	}
+}
@@ -0,0 +1,234 @@
+package es.ipb.excelfusion.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.FillPatternType;
+import org.apache.poi.ss.usermodel.IndexedColors;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.postgresql.PGConnection;
+
+import es.ipb.excelfusion.config.ImportConfiguration;
+import es.ipb.excelfusion.config.ImportConfiguration.InsertMode;
+import es.ipb.excelfusion.db.ConnectionProvider;
+import es.ipb.excelfusion.ui.wizard.Step5DatabaseConfigPage.DbType;
+
+
+class ImportExecutorTest
+{
+
+	private static final String[]  NAMES	 = {"code", "area" };
+	private static final boolean[] FILL_DOWN = {false, true };
+
+	@TempDir
+	File						   dir;
+
+	@Test
+	void trailingStyledBlankRowsAreNotFilledDown () throws Exception
+	{
+		File file = workbook ("trailing.xlsx", new String[][] {{"a1", "g1" }, {"a2", null }, {"a3", null }, {"a4", "g2" },
+		                                                      {"a5", null } },
+		                      95);
+		for (int limit : new int[] {10, 0 })
+		{
+			String url = H2Import.newDatabase ();
+			ImportConfiguration config = H2Import.config (file, dir, NAMES, FILL_DOWN);
+			config.setMaxConsecutiveEmptyRows (limit);
+			H2Import.run (config, H2Import.connections (url));
+
+			List <List <String>> rows = H2Import.rows (url);
+			assertEquals (5, rows.size (), "rows imported with an empty-row limit of " + limit);
+			assertEquals (List.of ("a5", "g2"), rows.get (4));
+		}
+	}
+
+	@Test
+	void blankRowsBeforeDataAreFilledDown () throws Exception
+	{
+		File file = workbook ("inner.xlsx", new String[][] {{"a1", "g1" }, {null, null }, {null, null }, {"a4", null } },
+		                      0);
+		String url = H2Import.newDatabase ();
+		ImportConfiguration config = H2Import.config (file, dir, NAMES, FILL_DOWN);
+		config.setMaxConsecutiveEmptyRows (10);
+		H2Import.run (config, H2Import.connections (url));
+
+		List <List <String>> rows = H2Import.rows (url);
+		assertEquals (4, rows.size ());
+		assertEquals (List.of ("", "g1"), rows.get (1));
+		assertEquals (List.of ("a4", "g1"), rows.get (3));
+	}
+
+	@Test
+	void insertModesAreUsedOnPostgreSql () throws Exception
+	{
+		File file = workbook ("modes.xlsx", new String[][] {{"a1", "g1" }, {"a2", "g2" } }, 0);
+		String[][] expected = {{"MULTI_ROW", "multi-row INSERT" }, {"BATCHED", "batched INSERT" } };
+		for (String[] modeAndMethod : expected)
+		{
+			String url = H2Import.newDatabase ();
+			ImportConfiguration config = H2Import.config (file, dir, NAMES, FILL_DOWN);
+			config.setInsertMode (InsertMode.valueOf (modeAndMethod[0]));
+			ImportExecutor executor = H2Import.run (config, postgreSqlConnections (url));
+
+			assertEquals (modeAndMethod[1], executor.getMetrics ().getLoadMethod ());
+			assertEquals (List.of (List.of ("a1", "g1"), List.of ("a2", "g2")), H2Import.rows (url));
+		}
+	}
+
+	@Test
+	void failedFastLoadSetupIsUndone () throws Exception
+	{
+		File file = workbook ("setup.xlsx", new String[][] {{"a1", "g1" } }, 0);
+		String url = H2Import.newDatabase ();
+		ImportConfiguration config = H2Import.config (file, dir, NAMES, FILL_DOWN);
+		config.setFastLoad (true);
+		FailingFastLoad fastLoad = new FailingFastLoad ();
+		ImportExecutor executor = new ImportExecutor (config, H2Import.listener (), H2Import.connections (url))
+		{
+			@Override
+			FastLoad newFastLoad (DbType dbType)
+			{
+				return fastLoad;
+			}
+		};
+
+		SQLException thrown = assertThrows (SQLException.class, executor::execute);
+		assertEquals (FailingFastLoad.FAILURE, thrown.getMessage ());
+		assertTrue (fastLoad.changed, "beforeLoad ran");
+		assertFalse (fastLoad.pending, "settings restored");
+		try (Connection conn = DriverManager.getConnection (url, "sa", "");
+		     Statement st = conn.createStatement ();
+		     ResultSet rs = st.executeQuery ("SELECT COUNT(*) FROM information_schema.tables WHERE table_name = 't'"))
+		{
+			rs.next ();
+			assertEquals (0, rs.getInt (1), "target table dropped");
+		}
+	}
+
+	/** Changes a (pretend) session setting in beforeLoad and then fails, like a lost connection. */
+	private static final class FailingFastLoad implements FastLoad
+	{
+
+		static final String FAILURE = "setup failed";
+
+		boolean				changed;
+		boolean				pending;
+
+		@Override
+		public String tableKind ()
+		{
+			return "TABLE";
+		}
+
+		@Override
+		public void beforeLoad (Connection conn, String tableName, Consumer <String> log) throws SQLException
+		{
+			changed = true;
+			pending = true;
+			throw new SQLException (FAILURE);
+		}
+
+		@Override
+		public void afterLoad (Connection conn, String tableName, Consumer <String> log)
+		{
+			pending = false;
+		}
+
+		@Override
+		public void afterTransaction (Connection conn, Consumer <String> log)
+		{
+			pending = false;
+		}
+	}
+
+	/** H2 connections that report being PostgreSQL connections (DatabaseConnections.isPostgreSql). */
+	private static ConnectionProvider postgreSqlConnections (String url)
+	{
+		ConnectionProvider h2 = H2Import.connections (url);
+		return () -> asPostgreSql (h2.getConnection ());
+	}
+
+	private static Connection asPostgreSql (Connection conn)
+	{
+		InvocationHandler handler = (proxy, method, args) -> {
+			if (method.getName ().equals ("isWrapperFor") && args[0] == PGConnection.class)
+			{
+				return true;
+			}
+			try
+			{
+				return method.invoke (conn, args);
+			}
+			catch (InvocationTargetException e)
+			{
+				throw e.getCause ();
+			}
+		};
+		return (Connection) Proxy.newProxyInstance (Connection.class.getClassLoader (), new Class <?>[] {Connection.class },
+		                                            handler);
+	}
+
+	/**
+	 * Workbook with a header row, the given data rows (null = no cell) and then styledBlankRows rows
+	 * of empty, formatted cells.
+	 */
+	private File workbook (String name, String[][] data, int styledBlankRows) throws Exception
+	{
+		File file = new File (dir, name);
+		try (XSSFWorkbook workbook = new XSSFWorkbook (); OutputStream out = new FileOutputStream (file))
+		{
+			Sheet sheet = workbook.createSheet ("Sheet1");
+			Row header = sheet.createRow (0);
+			for (int c = 0; c < NAMES.length; c++)
+			{
+				header.createCell (c).setCellValue (NAMES[c]);
+			}
+			int r = 1;
+			for (String[] values : data)
+			{
+				Row row = sheet.createRow (r++);
+				for (int c = 0; c < values.length; c++)
+				{
+					if (values[c] != null)
+					{
+						row.createCell (c).setCellValue (values[c]);
+					}
+				}
+			}
+			CellStyle style = workbook.createCellStyle ();
+			style.setFillForegroundColor (IndexedColors.YELLOW.getIndex ());
+			style.setFillPattern (FillPatternType.SOLID_FOREGROUND);
+			for (int i = 0; i < styledBlankRows; i++)
+			{
+				Row row = sheet.createRow (r++);
+				for (int c = 0; c < NAMES.length; c++)
+				{
+					row.createCell (c).setCellStyle (style);
+				}
+			}
+			workbook.write (out);
+		}
+		return file;
+	}
+}
@@ -0,0 +1,26 @@
+package es.ipb.excelfusion.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+
+class IndexBuilderTest
+{
+
+	@Test
+	void mariaDbIndexesCoverAPrefixOfTheTextColumns ()
+	{
+		assertEquals ("ALTER TABLE t ADD INDEX t_code_idx (code(255)), ADD INDEX t_area_idx (area(255))",
+		              IndexBuilder.mariaDbIndexSql ("t", List.of ("code", "area")));
+	}
+
+	@Test
+	void postgreSqlColumnsWithLongValuesGetHashIndexes ()
+	{
+		assertEquals ("CREATE INDEX t_code_idx ON t (code)", IndexBuilder.indexSql ("t", "code", false));
+		assertEquals ("CREATE INDEX t_code_idx ON t USING hash (code)", IndexBuilder.indexSql ("t", "code", true));
+	}
+}
@@ -0,0 +1,86 @@
+package es.ipb.excelfusion.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import es.ipb.excelfusion.config.ImportConfiguration;
+import es.ipb.excelfusion.excel.MemoryGovernor;
+import es.ipb.excelfusion.excel.SheetReaders;
+import es.ipb.excelfusion.excel.SheetRowReader;
+import es.ipb.excelfusion.ui.wizard.Step3StructureValidationPage.SheetValidationResult;
+
+
+class RowSpoolTest
+{
+
+	private static final int ROWS = 500_000;
+
+	@TempDir
+	File					 dir;
+
+	@Test
+	void pauseClosesTheReaderAndSpoolingCompletesAfterIt () throws Exception
+	{
+		File file = new File (dir, "rows.csv");
+		try (BufferedWriter out = new BufferedWriter (new FileWriter (file)))
+		{
+			for (int r = 0; r < ROWS; r++)
+			{
+				out.write ("code" + r + ",area" + (r % 7) + "\n");
+			}
+		}
+		List <String> sheetNames;
+		try (SheetRowReader reader = SheetReaders.open (file))
+		{
+			sheetNames = reader.getSheetNames ();
+		}
+		ImportConfiguration config = new ImportConfiguration ();
+		config.setDataStartRow (1);
+		List <SheetValidationResult> sheets = new ArrayList <> ();
+		for (String sheetName : sheetNames)
+		{
+			sheets.add (new SheetValidationResult (file, sheetName));
+		}
+		config.setSheetsToImport (sheets);
+
+		try (RowSpool spool = new RowSpool ())
+		{
+			spool.start (config);
+			long deadline = System.currentTimeMillis () + 5_000;
+			while (MemoryGovernor.shared ().getReserved () == 0 && System.currentTimeMillis () < deadline)
+			{
+				Thread.sleep (1);
+			}
+
+			spool.pause ();
+			assertEquals (0, MemoryGovernor.shared ().getReserved (), "reader memory held during a pause");
+			// Draining only returns the sheets spooled completely: the one in progress was put back
+			spool.drain ();
+			assertTrue (spool.completedSheets (file, sheetNames, 0, false).isEmpty ());
+
+			spool.start (config);
+			spool.unpause ();
+			Map <String, File> spooled = spool.completedSheets (file, sheetNames, 0, false);
+			assertTrue (spooled.keySet ().containsAll (sheetNames));
+			long rows = 0;
+			try (SheetRows rowsRead = RowSpool.rows (spooled.get (sheetNames.get (0)), new int[] {0, 1 }))
+			{
+				while (rowsRead.next ())
+				{
+					rows++;
+				}
+			}
+			assertEquals (ROWS, rows);
+		}
+	}
+}